@@ -1,180 +1,311 @@
 package app.aoki.yuki.omapistinks.core;
 
 /**
- * Holds APDU command and response data with formatting utilities.
- * Formatting preserves original casing, validates only minimal structure,
- * and returns the original string when it looks invalid to avoid behavior changes.
+ * Parsed ISO 7816-4 command/response APDU pair.
+ * The structure (case, header, Lc, data slice, Le, SW1/SW2) is decoded once from the raw
+ * bytes in the constructor; formatted text is built on first request and then reused.
+ * Formatting validates only minimal structure and keeps any part that does not parse as
+ * plain hex.
  */
 public class ApduInfo {
-    private final String command;
-    private final String response;
 
-    public ApduInfo(String command, String response) {
+    /**
+     * Command APDU case (S = short, E = extended length)
+     */
+    public enum Case {
+        CASE_1, CASE_2S, CASE_3S, CASE_4S, CASE_2E, CASE_3E, CASE_4E,
+        // Shorter than a header, or bytes left over after the last recognised field
+        MALFORMED
+    }
+
+    private static final int HEADER_BYTES = 4;
+    private static final int NONE = -1;
+
+    private final byte[] command;
+    private final byte[] response;
+
+    private final Case commandCase;
+    // Body layout as [offset, offset + length) ranges in command; length 0 when absent
+    private final int lcOffset;
+    private final int lcLength;
+    private final int dataOffset;
+    private final int dataLength;
+    private final int leOffset;
+    private final int leLength;
+    // Start of bytes that did not parse, command.length when everything did
+    private final int trailingOffset;
+    private final int ne;
+    private final int sw1;
+    private final int sw2;
+
+    // Memoized; racy initialisation is harmless because the result is always equal
+    private String formattedCommand;
+    private String formattedResponse;
+
+    public ApduInfo(byte[] command, byte[] response) {
         this.command = command;
         this.response = response;
+
+        int length = command != null ? command.length : 0;
+        int lcOff = HEADER_BYTES;
+        int lcLen = 0;
+        int dataOff = HEADER_BYTES;
+        int dataLen = 0;
+        int leOff = HEADER_BYTES;
+        int leLen = 0;
+        int trailing = length;
+        int ne = NONE;
+        Case c;
+
+        int rest = length - HEADER_BYTES;
+        if (command == null || rest < 0) {
+            c = Case.MALFORMED;
+            trailing = 0;
+        } else if (rest == 0) {
+            c = Case.CASE_1;
+        } else if (rest == 1) {
+            c = Case.CASE_2S;
+            leLen = 1;
+            ne = decodeNe(command[HEADER_BYTES] & 0xFF, 256);
+        } else if (command[HEADER_BYTES] == 0) {
+            // Extended length signalled by 0x00 after the header
+            if (rest == 3) {
+                c = Case.CASE_2E;
+                leLen = 3;
+                ne = decodeNe(u16(command, HEADER_BYTES + 1), 65536);
+            } else if (rest > 3 && 3 + u16(command, HEADER_BYTES + 1) <= rest) {
+                int lc = u16(command, HEADER_BYTES + 1);
+                lcLen = 3;
+                dataOff = HEADER_BYTES + 3;
+                dataLen = lc;
+                leOff = dataOff + lc;
+                int remaining = length - leOff;
+                if (remaining == 0) {
+                    c = Case.CASE_3E;
+                } else if (remaining == 2) {
+                    c = Case.CASE_4E;
+                    leLen = 2;
+                    ne = decodeNe(u16(command, leOff), 65536);
+                } else {
+                    c = Case.MALFORMED;
+                    trailing = leOff;
+                }
+            } else {
+                c = Case.MALFORMED;
+                trailing = HEADER_BYTES;
+            }
+        } else {
+            int lc = command[HEADER_BYTES] & 0xFF;
+            if (rest == 1 + lc || rest == 2 + lc) {
+                lcLen = 1;
+                dataOff = HEADER_BYTES + 1;
+                dataLen = lc;
+                leOff = dataOff + lc;
+                if (rest == 1 + lc) {
+                    c = Case.CASE_3S;
+                } else {
+                    c = Case.CASE_4S;
+                    leLen = 1;
+                    ne = decodeNe(command[leOff] & 0xFF, 256);
+                }
+            } else {
+                c = Case.MALFORMED;
+                trailing = HEADER_BYTES;
+            }
+        }
+
+        this.commandCase = c;
+        this.lcOffset = lcOff;
+        this.lcLength = lcLen;
+        this.dataOffset = dataOff;
+        this.dataLength = dataLen;
+        this.leOffset = leOff;
+        this.leLength = leLen;
+        this.trailingOffset = trailing;
+        this.ne = ne;
+
+        if (response != null && response.length >= 2) {
+            this.sw1 = response[response.length - 2] & 0xFF;
+            this.sw2 = response[response.length - 1] & 0xFF;
+        } else {
+            this.sw1 = NONE;
+            this.sw2 = NONE;
+        }
     }
 
-    public String getCommand() {
+    private static int u16(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Le of 0 encodes the maximum
+     */
+    private static int decodeNe(int le, int max) {
+        return le == 0 ? max : le;
+    }
+
+    public byte[] getCommandBytes() {
         return command;
     }
 
-    public String getResponse() {
+    public byte[] getResponseBytes() {
         return response;
     }
 
-    private static final int HEADER_BYTES = 4;
-    private static final int HEX_PER_BYTE = 2;
-    private static final String EXTENDED_MARKER = "00";
+    /**
+     * Command as uppercase hex (encoded on each call)
+     */
+    public String getCommand() {
+        return Hex.encode(command);
+    }
 
-    private static boolean isEvenHexLength(String s) {
-        return s != null && (s.length() % 2 == 0);
+    /**
+     * Response as uppercase hex (encoded on each call)
+     */
+    public String getResponse() {
+        return Hex.encode(response);
     }
 
-    private static String joinWithSpaces(java.util.List<String> parts) {
-        return String.join(" ", parts);
+    public Case getCase() {
+        return commandCase;
     }
 
-    public String getFormattedCommand() {
-        final String cmd = this.command;
+    /**
+     * Header byte 0..3 (CLA, INS, P1, P2) as 0..255, or -1 when the command is too short
+     */
+    private int header(int i) {
+        return command != null && command.length >= HEADER_BYTES ? command[i] & 0xFF : NONE;
+    }
 
-        // Keep early returns to avoid behavior change
-        if (cmd == null || cmd.length() < HEADER_BYTES * HEX_PER_BYTE) {
-            return cmd;
-        }
-        if (!isEvenHexLength(cmd)) {
-            return cmd;
-        }
+    public int getCla() {
+        return header(0);
+    }
+
+    public int getIns() {
+        return header(1);
+    }
 
-        java.util.ArrayList<String> out = new java.util.ArrayList<>(8);
+    public int getP1() {
+        return header(2);
+    }
 
-        // Header: CLA INS P1 P2
-        out.add(cmd.substring(0, 2));
-        out.add(cmd.substring(2, 4));
-        out.add(cmd.substring(4, 6));
-        out.add(cmd.substring(6, 8));
+    public int getP2() {
+        return header(3);
+    }
 
-        int totalBytes = cmd.length() / HEX_PER_BYTE;
-        int restBytes = totalBytes - HEADER_BYTES;
-        if (restBytes <= 0) {
-            // Case 1: header only
-            return joinWithSpaces(out);
-        }
+    /**
+     * Nc, the length of the command data field (0 for cases 1 and 2)
+     */
+    public int getLc() {
+        return dataLength;
+    }
 
-        String rest = cmd.substring(HEADER_BYTES * HEX_PER_BYTE);
+    /**
+     * Offset of the command data field in getCommandBytes()
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
 
-        // Case 2S: Le only (1 byte)
-        if (restBytes == 1) {
-            out.add(rest.substring(0, 2));
-            return joinWithSpaces(out);
-        }
+    public int getDataLength() {
+        return dataLength;
+    }
 
-        String b0 = rest.substring(0, 2);
-
-        // Extended length signaled by 0x00 after header
-        if (EXTENDED_MARKER.equalsIgnoreCase(b0)) {
-            if (restBytes == 3) {
-                // Case 2E: 00 + Le(2)
-                String leHi = rest.substring(2, 4);
-                String leLo = rest.substring(4, 6);
-                out.add("00");
-                out.add(leHi);
-                out.add(leLo);
-                return joinWithSpaces(out);
-            } else if (restBytes >= 3) {
-                // Case 3E / 4E: 00 Lc(2) Data [Le(2)]
-                String lcHi = rest.substring(2, 4);
-                String lcLo = rest.substring(4, 6);
-                int lcVal = Integer.parseInt(lcHi, 16) * 256 + Integer.parseInt(lcLo, 16);
-
-                int dataHexLen = lcVal * HEX_PER_BYTE;
-                int afterData = 6 + dataHexLen;
-
-                if (afterData > rest.length()) {
-                    // Invalid length: append raw remainder to avoid misleading formatting
-                    out.add(rest);
-                    return joinWithSpaces(out);
-                }
+    /**
+     * Ne, the maximum expected response length (Le 00 decoded as 256 or 65536), or -1 when absent
+     */
+    public int getLe() {
+        return ne;
+    }
 
-                out.add("00");
-                out.add(lcHi);
-                out.add(lcLo);
+    /**
+     * SW1 as 0..255, or -1 when there is no response status word
+     */
+    public int getSw1() {
+        return sw1;
+    }
 
-                if (dataHexLen > 0) {
-                    String dataHex = rest.substring(6, afterData);
-                    out.add(dataHex);
-                }
+    public int getSw2() {
+        return sw2;
+    }
 
-                int remaining = rest.length() - afterData;
-                if (remaining == 0) {
-                    // Case 3E: no Le
-                    return joinWithSpaces(out);
-                } else if (remaining == 4) {
-                    // Case 4E: trailing two-byte Le
-                    String leHi = rest.substring(afterData, afterData + 2);
-                    String leLo = rest.substring(afterData + 2, afterData + 4);
-                    out.add(leHi);
-                    out.add(leLo);
-                    return joinWithSpaces(out);
-                } else {
-                    // Unknown trailing content; append raw
-                    out.add(rest.substring(afterData));
-                    return joinWithSpaces(out);
-                }
-            } else {
-                // Degenerate - append raw
-                out.add(rest);
-                return joinWithSpaces(out);
-            }
-        } else {
-            // Short length forms: Case 3S / 4S
-            int lcVal = Integer.parseInt(b0, 16);
-            int dataHexLen = lcVal * HEX_PER_BYTE;
-
-            if (restBytes == 1 + lcVal) {
-                // Case 3S: Lc(1) + Data
-                out.add(b0);
-                String dataHex = rest.substring(2);
-                if (!dataHex.isEmpty()) {
-                    out.add(dataHex);
-                }
-                return joinWithSpaces(out);
-            } else if (restBytes == 1 + lcVal + 1) {
-                // Case 4S: Lc(1) + Data + Le(1)
-                out.add(b0);
-                if (dataHexLen > 0) {
-                    String dataHex = rest.substring(2, 2 + dataHexLen);
-                    out.add(dataHex);
-                }
-                String le = rest.substring(2 + dataHexLen, 2 + dataHexLen + 2);
-                out.add(le);
-                return joinWithSpaces(out);
-            } else {
-                // Unknown/invalid: append raw remainder
-                out.add(rest);
-                return joinWithSpaces(out);
-            }
+    /**
+     * SW1SW2 as a 16-bit value, or -1 when absent
+     */
+    public int getStatusWord() {
+        return sw1 != NONE ? (sw1 << 8) | sw2 : NONE;
+    }
+
+    /**
+     * Command as "CLA INS P1 P2 [Lc] [Data] [Le]"; unparsed remainder appended as plain hex
+     */
+    public String getFormattedCommand() {
+        String s = formattedCommand;
+        if (s == null) {
+            s = formatCommand();
+            formattedCommand = s;
         }
+        return s;
     }
 
-    public String getFormattedResponse() {
-        final String res = this.response;
-        if (res == null || res.length() < 4) {
-            return res;
+    private String formatCommand() {
+        if (command == null) {
+            return null;
+        }
+        if (command.length < HEADER_BYTES) {
+            return Hex.encode(command);
+        }
+        StringBuilder sb = new StringBuilder(command.length * 2 + 16);
+        appendBytes(sb, 0, HEADER_BYTES);
+        appendBytes(sb, lcOffset, lcLength);
+        if (dataLength > 0) {
+            Hex.append(sb.append(' '), command, dataOffset, dataLength);
+        }
+        appendBytes(sb, leOffset, leLength);
+        if (trailingOffset < command.length) {
+            Hex.append(sb.append(' '), command, trailingOffset, command.length - trailingOffset);
         }
-        if (!isEvenHexLength(res)) {
-            return res; // Return as-is if invalid
+        return sb.toString();
+    }
+
+    /**
+     * Append each byte as its own space-separated token
+     */
+    private void appendBytes(StringBuilder sb, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            Hex.append(sb, command[i]);
         }
+    }
 
-        // Format as: [Data] SW1 SW2 (Data kept contiguous without spacing)
-        int len = res.length();
-        String sw1 = res.substring(len - 4, len - 2);
-        String sw2 = res.substring(len - 2);
-        String data = res.substring(0, len - 4);
+    /**
+     * Response as "[Data] SW1 SW2", data kept contiguous
+     */
+    public String getFormattedResponse() {
+        String s = formattedResponse;
+        if (s == null) {
+            s = formatResponse();
+            formattedResponse = s;
+        }
+        return s;
+    }
 
-        if (data.isEmpty()) {
-            return sw1 + " " + sw2;
-        } else {
-            return data + " " + sw1 + " " + sw2;
+    private String formatResponse() {
+        if (response == null) {
+            return null;
+        }
+        if (sw1 == NONE) {
+            return Hex.encode(response);
+        }
+        int dataLen = response.length - 2;
+        StringBuilder sb = new StringBuilder(response.length * 2 + 2);
+        if (dataLen > 0) {
+            Hex.append(sb, response, 0, dataLen).append(' ');
         }
+        Hex.append(sb, sw1).append(' ');
+        Hex.append(sb, sw2);
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel scan of entries with a compiled LogQuery (or any other Matcher)
+ *
+ * The input is split into fixed-size chunks scanned on a small worker pool; results are
+ * concatenated in chunk order so the output keeps the input order. Byte-pattern terms
+ * reject most entries by the trigram signature check in BytePattern.matches without
+ * touching bytes.
+ */
+public final class ApduSearch {
+
+    private static final String TAG = "OmapiStinks.Search";
+
+    // Entries per chunk; smaller inputs are scanned on the calling thread
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "OmapiStinks-search-" + THREAD_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Per-entry condition; must be safe to call from several threads at once
+     */
+    public interface Matcher {
+        boolean matches(CallLogEntry entry);
+    }
+
+    private ApduSearch() {
+    }
+
+    /**
+     * Entries accepted by the matcher, in input order
+     */
+    public static List<CallLogEntry> filter(List<CallLogEntry> entries, Matcher matcher) {
+        if (entries.size() <= CHUNK_SIZE) {
+            return scan(entries, 0, entries.size(), matcher);
+        }
+        List<Future<List<CallLogEntry>>> chunks = new ArrayList<>();
+        for (int start = 0; start < entries.size(); start += CHUNK_SIZE) {
+            int from = start;
+            int to = Math.min(entries.size(), start + CHUNK_SIZE);
+            chunks.add(EXECUTOR.submit(() -> scan(entries, from, to, matcher)));
+        }
+        List<CallLogEntry> out = new ArrayList<>();
+        try {
+            for (Future<List<CallLogEntry>> chunk : chunks) {
+                out.addAll(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(chunks);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Search failed: " + e.getCause(), e.getCause());
+            cancel(chunks);
+        }
+        return out;
+    }
+
+    private static List<CallLogEntry> scan(List<CallLogEntry> entries, int from, int to, Matcher matcher) {
+        List<CallLogEntry> out = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            CallLogEntry entry = entries.get(i);
+            if (matcher.matches(entry)) {
+                out.add(entry);
+            }
+        }
+        return out;
+    }
+
+    private static void cancel(List<Future<List<CallLogEntry>>> chunks) {
+        for (Future<List<CallLogEntry>> chunk : chunks) {
+            chunk.cancel(true);
+        }
+    }
+}
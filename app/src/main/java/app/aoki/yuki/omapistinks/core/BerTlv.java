@@ -0,0 +1,303 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lazy BER-TLV decoder for select responses (FCI/FCP) and response data (EMV, GlobalPlatform)
+ *
+ * A node only records where its tag, length and value sit in the payload. Children of a
+ * constructed node are parsed the first time getChildren() is called, so expanding one
+ * template in the UI does not decode its siblings. Decoded top levels are kept in a small
+ * LRU keyed by payload content, since the same select response repeats throughout a capture.
+ */
+public final class BerTlv {
+
+    private static final int CACHE_SIZE = 256;
+    // Tags are kept in an int, so at most 4 tag bytes
+    private static final int MAX_TAG_BYTES = 4;
+
+    // Cached marker for payloads that are not TLV
+    private static final List<BerTlv> NOT_TLV = Collections.emptyList();
+
+    private static final Map<Key, List<BerTlv>> cache = new LinkedHashMap<Key, List<BerTlv>>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, List<BerTlv>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final Map<Integer, String> NAMES = new java.util.HashMap<>();
+    // Tags whose value is text
+    private static final java.util.Set<Integer> TEXT_TAGS = new java.util.HashSet<>(Arrays.asList(
+            0x50, 0x5F20, 0x5F2D, 0x9F12));
+
+    static {
+        // ISO 7816-4 file control information
+        NAMES.put(0x62, "FCP Template");
+        NAMES.put(0x64, "FMD Template");
+        NAMES.put(0x6F, "FCI Template");
+        NAMES.put(0x80, "File Size");
+        NAMES.put(0x81, "Total File Size");
+        NAMES.put(0x82, "File Descriptor");
+        NAMES.put(0x83, "File Identifier");
+        NAMES.put(0x84, "DF Name");
+        NAMES.put(0x85, "Proprietary Information");
+        NAMES.put(0x86, "Security Attributes");
+        NAMES.put(0x88, "Short File Identifier");
+        NAMES.put(0x8A, "Life Cycle Status");
+        NAMES.put(0xA5, "FCI Proprietary Template");
+        // EMV
+        NAMES.put(0x4F, "Application Identifier");
+        NAMES.put(0x50, "Application Label");
+        NAMES.put(0x57, "Track 2 Equivalent Data");
+        NAMES.put(0x5A, "Application PAN");
+        NAMES.put(0x61, "Application Template");
+        NAMES.put(0x70, "Record Template");
+        NAMES.put(0x73, "Directory Discretionary Template");
+        NAMES.put(0x77, "Response Message Template Format 2");
+        NAMES.put(0x87, "Application Priority Indicator");
+        NAMES.put(0x5F20, "Cardholder Name");
+        NAMES.put(0x5F24, "Application Expiration Date");
+        NAMES.put(0x5F2D, "Language Preference");
+        NAMES.put(0x9F12, "Application Preferred Name");
+        NAMES.put(0x9F38, "PDOL");
+        NAMES.put(0x9F4D, "Log Entry");
+        NAMES.put(0xBF0C, "FCI Issuer Discretionary Data");
+        // GlobalPlatform
+        NAMES.put(0x66, "Card Data");
+        NAMES.put(0x9F6E, "Application Production Life Cycle Data");
+        NAMES.put(0x9F65, "Maximum Length of Data Field");
+        NAMES.put(0x9F70, "Life Cycle State");
+        NAMES.put(0xC5, "Privileges");
+        NAMES.put(0xE3, "GP Registry Entry");
+    }
+
+    private final byte[] bytes;
+    private final int tag;
+    private final int offset;
+    private final int valueOffset;
+    private final int valueLength;
+    // Parsed on first getChildren(); racy initialisation yields equal results
+    private List<BerTlv> children;
+
+    private BerTlv(byte[] bytes, int tag, int offset, int valueOffset, int valueLength) {
+        this.bytes = bytes;
+        this.tag = tag;
+        this.offset = offset;
+        this.valueOffset = valueOffset;
+        this.valueLength = valueLength;
+    }
+
+    /**
+     * Top-level objects of a whole payload
+     * @return the objects, or null when the payload is empty or not exactly a sequence of TLVs
+     */
+    public static List<BerTlv> decode(byte[] payload) {
+        return payload != null ? decode(payload, 0, payload.length) : null;
+    }
+
+    /**
+     * Top-level objects of payload[offset, offset + length), served from the cache when the
+     * same bytes were decoded before
+     */
+    public static List<BerTlv> decode(byte[] payload, int offset, int length) {
+        if (payload == null || length <= 0) {
+            return null;
+        }
+        Key probe = new Key(payload, offset, length);
+        List<BerTlv> result;
+        synchronized (cache) {
+            result = cache.get(probe);
+        }
+        if (result == null) {
+            // Nodes must not pin the caller's array beyond the slice, and the key must own its bytes
+            byte[] copy = Arrays.copyOfRange(payload, offset, offset + length);
+            result = parseSequence(copy, 0, length);
+            if (result == null) {
+                result = NOT_TLV;
+            }
+            synchronized (cache) {
+                cache.put(new Key(copy, 0, length), result);
+            }
+        }
+        return result != NOT_TLV ? result : null;
+    }
+
+    /**
+     * Header-only scan of [start, end); values are not looked into
+     */
+    private static List<BerTlv> parseSequence(byte[] b, int start, int end) {
+        List<BerTlv> out = new ArrayList<>(4);
+        int pos = start;
+        while (pos < end) {
+            // 00 and FF may pad between objects (ISO 7816-4, EMV)
+            if (b[pos] == 0x00 || b[pos] == (byte) 0xFF) {
+                pos++;
+                continue;
+            }
+            int tlvStart = pos;
+            int tag = b[pos++] & 0xFF;
+            if ((tag & 0x1F) == 0x1F) {
+                int tagBytes = 1;
+                do {
+                    if (pos >= end || ++tagBytes > MAX_TAG_BYTES) {
+                        return null;
+                    }
+                    tag = (tag << 8) | (b[pos] & 0xFF);
+                } while ((b[pos++] & 0x80) != 0);
+            }
+            if (pos >= end) {
+                return null;
+            }
+            int length = b[pos++] & 0xFF;
+            if (length > 0x80) {
+                int lengthBytes = length & 0x7F;
+                // Up to 3 length bytes; 0x80 (indefinite) is not used by smart cards
+                if (lengthBytes > 3 || pos + lengthBytes > end) {
+                    return null;
+                }
+                length = 0;
+                for (int i = 0; i < lengthBytes; i++) {
+                    length = (length << 8) | (b[pos++] & 0xFF);
+                }
+            } else if (length == 0x80) {
+                return null;
+            }
+            if (length > end - pos) {
+                return null;
+            }
+            out.add(new BerTlv(b, tag, tlvStart, pos, length));
+            pos += length;
+        }
+        return out.isEmpty() ? null : Collections.unmodifiableList(out);
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    /**
+     * Tag as uppercase hex, e.g. "9F38"
+     */
+    public String getTagHex() {
+        return Integer.toHexString(tag).toUpperCase(java.util.Locale.US);
+    }
+
+    /**
+     * Known name of the tag, or null
+     */
+    public String getName() {
+        return NAMES.get(tag);
+    }
+
+    /**
+     * Bit 6 of the first tag byte
+     */
+    public boolean isConstructed() {
+        return (firstTagByte() & 0x20) != 0;
+    }
+
+    private int firstTagByte() {
+        return bytes[offset] & 0xFF;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    /**
+     * Value as uppercase hex
+     */
+    public String getValueHex() {
+        return Hex.encode(bytes, valueOffset, valueLength);
+    }
+
+    /**
+     * Whole TLV (tag, length and value) as uppercase hex
+     */
+    public String getEncodedHex() {
+        return Hex.encode(bytes, offset, valueOffset + valueLength - offset);
+    }
+
+    /**
+     * Value as text for tags defined as alphanumeric (labels, names, languages), else null
+     */
+    public String getText() {
+        if (!TEXT_TAGS.contains(tag)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(valueLength);
+        for (int i = valueOffset; i < valueOffset + valueLength; i++) {
+            int c = bytes[i] & 0xFF;
+            if (c < 0x20 || c > 0x7E) {
+                return null;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Nested objects of a constructed node, parsed on first call
+     * @return the children, or null for primitive nodes and values that are not valid TLV
+     */
+    public List<BerTlv> getChildren() {
+        if (!isConstructed() || valueLength == 0) {
+            return null;
+        }
+        List<BerTlv> c = children;
+        if (c == null) {
+            c = parseSequence(bytes, valueOffset, valueOffset + valueLength);
+            children = c != null ? c : NOT_TLV;
+        }
+        return c != NOT_TLV ? c : null;
+    }
+
+    /**
+     * Content-based cache key over a byte slice, hash computed once
+     */
+    private static final class Key {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+        private final int hash;
+
+        Key(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + bytes[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            if (k.hash != hash || k.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] != k.bytes[k.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compiled byte pattern matched against the raw APDU bytes of an entry
+ *
+ * Syntax: [scope:] [^] token... [$]
+ *   scope  apdu (default: command, response, AID or select response), cmd, rsp, aid,
+ *          hdr (CLA INS P1 P2), data (command data field), sw (last two response bytes)
+ *   token  HH exact byte, ?? any byte, H? / ?H nibble wildcard, HH/MM value under mask,
+ *          * any number of bytes
+ *   ^ / $  anchor to the start / end of the scoped bytes
+ * Whitespace between tokens is ignored, e.g. "00A4 04 00 ?? A000000003" or "hdr:^?? CA/FE".
+ *
+ * Each run of tokens between '*' gaps is a segment of value/mask pairs. Segments are
+ * located left to right, each scan keyed on its first fully specified byte.
+ */
+public final class BytePattern {
+
+    public enum Scope {
+        APDU, CMD, RSP, AID, HDR, DATA, SW
+    }
+
+    private static final int SIGNATURE_WORDS = 4;
+
+    private final String source;
+    private final Scope scope;
+    private final boolean scoped;
+    private final boolean anchorStart;
+    private final boolean anchorEnd;
+    private final byte[][] values;
+    private final byte[][] masks;
+    // Trigram bits every matching entry must have in its signature (see signature())
+    private final long[] requiredGrams;
+
+    private BytePattern(String source, Scope scope, boolean scoped, boolean anchorStart, boolean anchorEnd,
+                        List<byte[]> values, List<byte[]> masks) {
+        this.source = source;
+        this.scope = scope;
+        this.scoped = scoped;
+        this.anchorStart = anchorStart;
+        this.anchorEnd = anchorEnd;
+        this.values = values.toArray(new byte[0][]);
+        this.masks = masks.toArray(new byte[0][]);
+        this.requiredGrams = new long[SIGNATURE_WORDS];
+        for (int s = 0; s < this.values.length; s++) {
+            byte[] v = this.values[s];
+            byte[] m = this.masks[s];
+            for (int i = 0; i + 2 < v.length; i++) {
+                if (m[i] == (byte) 0xFF && m[i + 1] == (byte) 0xFF && m[i + 2] == (byte) 0xFF) {
+                    setGram(requiredGrams, v[i], v[i + 1], v[i + 2]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile a pattern
+     * @return the pattern, or null if the text is not pattern syntax (e.g. a plain word)
+     */
+    public static BytePattern parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        String s = text.trim();
+        Scope scope = Scope.APDU;
+        boolean scoped = false;
+        int colon = s.indexOf(':');
+        if (colon > 0) {
+            try {
+                scope = Scope.valueOf(s.substring(0, colon).trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            scoped = true;
+            s = s.substring(colon + 1).trim();
+        }
+
+        boolean anchorStart = s.startsWith("^");
+        if (anchorStart) {
+            s = s.substring(1);
+        }
+        boolean anchorEnd = s.endsWith("$");
+        if (anchorEnd) {
+            s = s.substring(0, s.length() - 1);
+        }
+
+        List<byte[]> values = new ArrayList<>();
+        List<byte[]> masks = new ArrayList<>();
+        ByteList value = new ByteList();
+        ByteList mask = new ByteList();
+        boolean trailingGap = false;
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (c == '*') {
+                // A gap next to an anchor releases it: "^*A0" == "A0", "A0*$" == "A0"
+                if (values.isEmpty() && value.size == 0) {
+                    anchorStart = false;
+                }
+                trailingGap = true;
+                if (value.size > 0) {
+                    values.add(value.toArray());
+                    masks.add(mask.toArray());
+                    value = new ByteList();
+                    mask = new ByteList();
+                }
+                i++;
+                continue;
+            }
+            trailingGap = false;
+            if (i + 1 >= s.length()) {
+                return null;
+            }
+            int hi = nibble(s.charAt(i));
+            int lo = nibble(s.charAt(i + 1));
+            if (hi == -2 || lo == -2) {
+                return null;
+            }
+            int v = (Math.max(hi, 0) << 4) | Math.max(lo, 0);
+            int m = (hi >= 0 ? 0xF0 : 0) | (lo >= 0 ? 0x0F : 0);
+            i += 2;
+            if (i < s.length() && s.charAt(i) == '/') {
+                // Explicit mask; only valid after a fully specified byte
+                if (i + 2 >= s.length() || m != 0xFF) {
+                    return null;
+                }
+                int mh = nibble(s.charAt(i + 1));
+                int ml = nibble(s.charAt(i + 2));
+                if (mh < 0 || ml < 0) {
+                    return null;
+                }
+                m = (mh << 4) | ml;
+                v &= m;
+                i += 3;
+            }
+            value.add(v);
+            mask.add(m);
+        }
+        if (value.size > 0) {
+            values.add(value.toArray());
+            masks.add(mask.toArray());
+        }
+        if (trailingGap) {
+            anchorEnd = false;
+        }
+        // Without a scope prefix, require at least one concrete byte so ordinary words
+        // ("select", "abc") stay text searches
+        if (values.isEmpty() || (!scoped && !hasConcreteByte(masks))) {
+            return null;
+        }
+        return new BytePattern(text.trim(), scope, scoped, anchorStart, anchorEnd, values, masks);
+    }
+
+    /**
+     * @return nibble value, -1 for '?', -2 for anything else
+     */
+    private static int nibble(char c) {
+        if (c == '?') {
+            return -1;
+        }
+        int v = Character.digit(c, 16);
+        return v >= 0 ? v : -2;
+    }
+
+    private static boolean hasConcreteByte(List<byte[]> masks) {
+        for (byte[] m : masks) {
+            for (byte b : m) {
+                if (b == (byte) 0xFF) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * True if the pattern named a scope explicitly; such patterns never match text
+     */
+    public boolean isScoped() {
+        return scoped;
+    }
+
+    /**
+     * Full check against the entry's bytes in the pattern's scope
+     */
+    public boolean matches(CallLogEntry entry) {
+        long[] signature = entry.getGramSignature();
+        if (signature != null && !containsAll(signature, requiredGrams)) {
+            return false;
+        }
+        byte[] command = entry.getApduCommandBytes();
+        byte[] response = entry.getApduResponseBytes();
+        switch (scope) {
+            case CMD:
+                return matchRange(command, 0, length(command));
+            case RSP:
+                return matchRange(response, 0, length(response))
+                        || matchRange(entry.getSelectResponseBytes(), 0, length(entry.getSelectResponseBytes()));
+            case AID:
+                return matchRange(entry.getAidBytes(), 0, length(entry.getAidBytes()));
+            case HDR:
+                return command != null && command.length >= 4 && matchRange(command, 0, 4);
+            case DATA: {
+                // Lc parsing is ApduInfo's; the parsed form is cached on the entry
+                ApduInfo apdu = entry.getApduInfo();
+                if (apdu == null || apdu.getDataLength() == 0) {
+                    return false;
+                }
+                int offset = apdu.getDataOffset();
+                return matchRange(command, offset, offset + apdu.getDataLength());
+            }
+            case SW:
+                return response != null && response.length >= 2 && matchRange(response, response.length - 2, response.length);
+            default:
+                return matchRange(command, 0, length(command))
+                        || matchRange(response, 0, length(response))
+                        || matchRange(entry.getAidBytes(), 0, length(entry.getAidBytes()))
+                        || matchRange(entry.getSelectResponseBytes(), 0, length(entry.getSelectResponseBytes()));
+        }
+    }
+
+    private static int length(byte[] b) {
+        return b != null ? b.length : 0;
+    }
+
+    private boolean matchRange(byte[] bytes, int start, int end) {
+        if (bytes == null) {
+            return false;
+        }
+        int pos = start;
+        int last = values.length - 1;
+        for (int s = 0; s <= last; s++) {
+            byte[] v = values[s];
+            byte[] m = masks[s];
+            if (s == last && anchorEnd) {
+                int at = end - v.length;
+                if (at < pos || (s == 0 && anchorStart && at != start)) {
+                    return false;
+                }
+                return segmentAt(bytes, at, v, m);
+            }
+            int at = (s == 0 && anchorStart)
+                    ? (segmentAt(bytes, start, v, m) && start + v.length <= end ? start : -1)
+                    : find(bytes, pos, end, v, m);
+            if (at < 0) {
+                return false;
+            }
+            pos = at + v.length;
+        }
+        return true;
+    }
+
+    /**
+     * First offset in [from, end) where the segment matches, or -1
+     */
+    private static int find(byte[] bytes, int from, int end, byte[] v, byte[] m) {
+        int limit = end - v.length;
+        int pivot = -1;
+        for (int i = 0; i < m.length; i++) {
+            if (m[i] == (byte) 0xFF) {
+                pivot = i;
+                break;
+            }
+        }
+        for (int at = from; at <= limit; at++) {
+            if (pivot >= 0) {
+                // Skip ahead to the next occurrence of the pivot byte
+                byte key = v[pivot];
+                int p = at + pivot;
+                int pEnd = limit + pivot;
+                while (p <= pEnd && bytes[p] != key) {
+                    p++;
+                }
+                if (p > pEnd) {
+                    return -1;
+                }
+                at = p - pivot;
+            }
+            if (segmentAt(bytes, at, v, m)) {
+                return at;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean segmentAt(byte[] bytes, int at, byte[] v, byte[] m) {
+        if (at < 0 || at + v.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < v.length; i++) {
+            if ((bytes[at + i] & m[i]) != v[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Trigram bitmap over all APDU bytes of an entry (command, response, AID, select response)
+     * A pattern can only match if every trigram it fully specifies is set here.
+     * @return the bitmap, or null if the entry carries no bytes
+     */
+    static long[] signature(CallLogEntry entry) {
+        byte[][] fields = {entry.getApduCommandBytes(), entry.getApduResponseBytes(),
+                entry.getAidBytes(), entry.getSelectResponseBytes()};
+        long[] bits = null;
+        for (byte[] b : fields) {
+            if (b == null) {
+                continue;
+            }
+            if (bits == null) {
+                bits = new long[SIGNATURE_WORDS];
+            }
+            for (int i = 0; i + 2 < b.length; i++) {
+                setGram(bits, b[i], b[i + 1], b[i + 2]);
+            }
+        }
+        return bits;
+    }
+
+    private static void setGram(long[] bits, byte a, byte b, byte c) {
+        int gram = ((a & 0xFF) << 16) | ((b & 0xFF) << 8) | (c & 0xFF);
+        int bit = (gram * 0x9E3779B1) >>> 24;
+        bits[bit >>> 6] |= 1L << (bit & 63);
+    }
+
+    private static boolean containsAll(long[] signature, long[] required) {
+        for (int i = 0; i < SIGNATURE_WORDS; i++) {
+            if ((signature[i] & required[i]) != required[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class ByteList {
+        byte[] data = new byte[16];
+        int size;
+
+        void add(int b) {
+            if (size == data.length) {
+                data = java.util.Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = (byte) b;
+        }
+
+        byte[] toArray() {
+            return java.util.Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -1,36 +1,44 @@
 package app.aoki.yuki.omapistinks.core;
 
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.Locale;
-// Log module
-import android.util.Log;
+import android.os.SystemClock;
 
 /**
  * Represents a single OMAPI call log entry with structured data
  */
 public class CallLogEntry {
-    private final String timestamp;
-    private final String shortTimestamp;
+    private final long timestampNanos;
+    private final long elapsedRealtimeNanos;
     private final String packageName;
     private final String functionName;
     private final String type;
-    private final String apduCommand;
-    private final String apduResponse;
-    private final String aid;
-    private final String selectResponse;
+    private final byte[] apduCommand;
+    private final byte[] apduResponse;
+    private final byte[] aid;
+    private final byte[] selectResponse;
     private final String details;
-    private final StackTraceElement[] stackTraceElements;
+    private final StackSnapshot stackSnapshot;
+    // Resolved from stackSnapshot on first use when not delivered pre-symbolized
+    private StackTraceElement[] stackTraceElements;
+    private final long callSiteId;
     private final long threadId;
     private final String threadName;
     private final int processId;
-    private final long executionTimeMs;
+    private final long executionTimeUs;
     private final String error;
+    // Assigned by CallLogger when the entry is stored; 0 until then
+    private long sequence;
+    // Per-process send sequence, assigned by LogBroadcaster when queued; 0 if none
+    private long sourceSequence;
+    // Random per-process token of the sender, paired with sourceSequence; 0 if none
+    private long sourceToken;
+    // Trigram bitmap of the APDU bytes for BytePattern prefiltering; set by CallLogger
+    private long[] gramSignature;
+    // Parsed on first use (CallLogger does it at ingest); ApduInfo is immutable apart from its memos
+    private ApduInfo apduInfo;
 
     private CallLogEntry(Builder builder) {
-        this.timestamp = builder.timestamp;
-        this.shortTimestamp = builder.shortTimestamp;
+        this.timestampNanos = builder.timestampNanos;
+        this.elapsedRealtimeNanos = builder.elapsedRealtimeNanos;
         this.packageName = builder.packageName;
         this.functionName = builder.functionName;
         this.type = builder.type;
@@ -42,61 +50,51 @@ public class CallLogEntry {
         this.threadId = builder.threadId;
         this.threadName = builder.threadName;
         this.processId = builder.processId;
-        this.executionTimeMs = builder.executionTimeMs;
+        this.executionTimeUs = builder.executionTimeUs;
         this.error = builder.error;
         this.stackTraceElements = builder.stackTraceElements;
+        this.stackSnapshot = builder.stackSnapshot;
+        this.callSiteId = builder.callSiteId;
+        this.sourceSequence = builder.sourceSequence;
+        this.sourceToken = builder.sourceToken;
     }
 
     /**
-     * Capture the current thread's stack trace elements, skipping internal frames
-     * (Thread.getStackTrace, Builder ctor, CallLogEntry) and limiting depth.
-     * Returns null if stack cannot be obtained or no relevant frames found.
+     * Take a stack snapshot if the process-wide StackCapturePolicy selects this call
      */
-    private static StackTraceElement[] captureStackTraceElements(Thread thread) {
-        StackTraceElement[] frames;
-        try {
-            frames = thread.getStackTrace();
-        } catch (Throwable ignored) {
+    private static StackSnapshot captureStack(long executionTimeUs, boolean failed) {
+        StackCapturePolicy policy = StackCapturePolicy.current();
+        if (!policy.shouldCapture(executionTimeUs, failed)) {
             return null;
         }
-        if (frames.length == 0) return null;
-
-        int start = 0;
-        for (int i = 0; i < frames.length; i++) {
-            String cls = frames[i].getClassName();
-            if (!cls.contains("XC_MethodHook")) {
-                continue;
-            }
-            start = i;
-            break;
-        }
-
-        int available = frames.length - start;
-
-        StackTraceElement[] out = new StackTraceElement[available];
-        System.arraycopy(frames, start, out, 0, available);
-
-        return out;
+        return StackSnapshot.capture(policy.getMaxDepth());
     }
 
-    private static StackTraceElement[] captureStackTraceElements() {
-        return captureStackTraceElements(Thread.currentThread());
+    /**
+     * A missing response or a status word other than success/warning counts as a failed call
+     */
+    static boolean isFailureStatus(byte[] response) {
+        if (response == null || response.length < 2) {
+            return true;
+        }
+        int sw1 = response[response.length - 2] & 0xFF;
+        return sw1 != 0x90 && sw1 != 0x91 && sw1 != 0x61 && sw1 != 0x62 && sw1 != 0x63;
     }
 
     /**
      * Create a log entry for Channel.transmit calls
      */
     public static CallLogEntry createTransmitEntry(String packageName, String functionName,
-                                                   String apduCommand, String apduResponse,
-                                                   long executionTimeMs) {
+                                                   byte[] apduCommand, byte[] apduResponse,
+                                                   long executionTimeUs) {
         return new Builder()
                 .packageName(packageName)
                 .functionName(functionName)
                 .type(Constants.TYPE_TRANSMIT)
                 .apduCommand(apduCommand)
                 .apduResponse(apduResponse)
-                .executionTimeMs(executionTimeMs)
-                .stackTraceElements(captureStackTraceElements())
+                .executionTimeUs(executionTimeUs)
+                .stackSnapshot(captureStack(executionTimeUs, isFailureStatus(apduResponse)))
                 .build();
     }
     
@@ -104,8 +102,18 @@ public class CallLogEntry {
      * Create a log entry for Channel.transmit calls with associated AID (if available)
      */
     public static CallLogEntry createTransmitEntry(String packageName, String functionName,
-                                                   String apduCommand, String apduResponse,
-                                                   String aid, long executionTimeMs) {
+                                                   byte[] apduCommand, byte[] apduResponse,
+                                                   byte[] aid, long executionTimeUs) {
+        return createTransmitEntry(packageName, functionName, apduCommand, apduResponse, aid, executionTimeUs, null);
+    }
+
+    /**
+     * Create a log entry for a transmit call that may have thrown
+     * @param thrown exception thrown by the call, or null; recorded as the entry's error
+     */
+    public static CallLogEntry createTransmitEntry(String packageName, String functionName,
+                                                   byte[] apduCommand, byte[] apduResponse,
+                                                   byte[] aid, long executionTimeUs, Throwable thrown) {
         return new Builder()
                 .packageName(packageName)
                 .functionName(functionName)
@@ -113,8 +121,9 @@ public class CallLogEntry {
                 .apduCommand(apduCommand)
                 .apduResponse(apduResponse)
                 .aid(aid)
-                .executionTimeMs(executionTimeMs)
-                .stackTraceElements(captureStackTraceElements())
+                .executionTimeUs(executionTimeUs)
+                .error(thrown != null ? thrown.toString() : null)
+                .stackSnapshot(captureStack(executionTimeUs, thrown != null || isFailureStatus(apduResponse)))
                 .build();
     }
 
@@ -122,16 +131,16 @@ public class CallLogEntry {
      * Create a log entry for Session.openChannel calls
      */
     public static CallLogEntry createOpenChannelEntry(String packageName, String functionName,
-                                                      String aid, String selectResponse,
-                                                      long executionTimeMs) {
+                                                      byte[] aid, byte[] selectResponse,
+                                                      long executionTimeUs) {
         return new Builder()
                 .packageName(packageName)
                 .functionName(functionName)
                 .type(Constants.TYPE_OPEN_CHANNEL)
                 .aid(aid)
                 .selectResponse(selectResponse)
-                .executionTimeMs(executionTimeMs)
-                .stackTraceElements(captureStackTraceElements())
+                .executionTimeUs(executionTimeUs)
+                .stackSnapshot(captureStack(executionTimeUs, selectResponse != null && isFailureStatus(selectResponse)))
                 .build();
     }
 
@@ -144,8 +153,8 @@ public class CallLogEntry {
                 .functionName(functionName)
                 .type(Constants.TYPE_OTHER)
                 .details(details)
-                .executionTimeMs(0)
-                .stackTraceElements(captureStackTraceElements())
+                .executionTimeUs(0)
+                .stackSnapshot(captureStack(0, false))
                 .build();
     }
 
@@ -159,8 +168,8 @@ public class CallLogEntry {
                 .functionName(functionName)
                 .type(type)
                 .error(error)
-                .executionTimeMs(0)
-                .stackTraceElements(captureStackTraceElements())
+                .executionTimeUs(0)
+                .stackSnapshot(captureStack(0, true))
                 .build();
     }
 
@@ -168,22 +177,26 @@ public class CallLogEntry {
      * Builder for CallLogEntry to simplify construction
      */
     public static class Builder {
-        private String timestamp;
-        private String shortTimestamp;
+        private long timestampNanos;
+        private long elapsedRealtimeNanos;
         private String packageName;
         private String functionName;
         private String type;
-        private String apduCommand;
-        private String apduResponse;
-        private String aid;
-        private String selectResponse;
+        private byte[] apduCommand;
+        private byte[] apduResponse;
+        private byte[] aid;
+        private byte[] selectResponse;
         private String details;
         private long threadId;
         private String threadName;
         private int processId;
-        private long executionTimeMs;
+        private long executionTimeUs;
         private String error;
         private StackTraceElement[] stackTraceElements;
+        private StackSnapshot stackSnapshot;
+        private long callSiteId;
+        private long sourceSequence;
+        private long sourceToken;
 
         public Builder() {
             // Automatically capture thread and process info
@@ -192,12 +205,9 @@ public class CallLogEntry {
             this.threadName = currentThread.getName();
             this.processId = android.os.Process.myPid();
             
-            // Automatically create timestamps
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
-            SimpleDateFormat shortFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.getDefault());
-            Date now = new Date();
-            this.timestamp = dateFormat.format(now);
-            this.shortTimestamp = shortFormat.format(now);
+            // Automatically capture timestamps (formatted only when displayed)
+            this.elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+            this.timestampNanos = Timestamps.epochNanos(elapsedRealtimeNanos);
         }
 
         public Builder packageName(String packageName) {
@@ -215,22 +225,22 @@ public class CallLogEntry {
             return this;
         }
 
-        public Builder apduCommand(String apduCommand) {
+        public Builder apduCommand(byte[] apduCommand) {
             this.apduCommand = apduCommand;
             return this;
         }
 
-        public Builder apduResponse(String apduResponse) {
+        public Builder apduResponse(byte[] apduResponse) {
             this.apduResponse = apduResponse;
             return this;
         }
 
-        public Builder aid(String aid) {
+        public Builder aid(byte[] aid) {
             this.aid = aid;
             return this;
         }
 
-        public Builder selectResponse(String selectResponse) {
+        public Builder selectResponse(byte[] selectResponse) {
             this.selectResponse = selectResponse;
             return this;
         }
@@ -240,8 +250,8 @@ public class CallLogEntry {
             return this;
         }
 
-        public Builder executionTimeMs(long executionTimeMs) {
-            this.executionTimeMs = executionTimeMs;
+        public Builder executionTimeUs(long executionTimeUs) {
+            this.executionTimeUs = executionTimeUs;
             return this;
         }
         
@@ -266,13 +276,13 @@ public class CallLogEntry {
             return this;
         }
 
-        public Builder timestamp(String timestamp) {
-            this.timestamp = timestamp;
+        public Builder timestampNanos(long timestampNanos) {
+            this.timestampNanos = timestampNanos;
             return this;
         }
 
-        public Builder shortTimestamp(String shortTimestamp) {
-            this.shortTimestamp = shortTimestamp;
+        public Builder elapsedRealtimeNanos(long elapsedRealtimeNanos) {
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
             return this;
         }
         
@@ -281,18 +291,110 @@ public class CallLogEntry {
             this.stackTraceElements = stackTraceElements;
             return this;
         }
+
+        // Deferred stack captured on the hooked thread; symbolized on first access
+        public Builder stackSnapshot(StackSnapshot stackSnapshot) {
+            this.stackSnapshot = stackSnapshot;
+            return this;
+        }
+
+        // Interned stack; frames are looked up in StackTable when first accessed
+        public Builder callSiteId(long callSiteId) {
+            this.callSiteId = callSiteId;
+            return this;
+        }
+        
+        public Builder sourceSequence(long sourceSequence) {
+            this.sourceSequence = sourceSequence;
+            return this;
+        }
+
+        public Builder sourceToken(long sourceToken) {
+            this.sourceToken = sourceToken;
+            return this;
+        }
         
         public CallLogEntry build() {
             return new CallLogEntry(this);
         }
     }
 
+    /**
+     * Position of this entry in CallLogger's store (monotonically increasing, starting at 1)
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    void assignSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Position in the sending process's delivery stream (starting at 1), or 0 if unknown;
+     * the receiver uses it per process ID to detect lost entries
+     */
+    public long getSourceSequence() {
+        return sourceSequence;
+    }
+
+    /**
+     * Token chosen at random by the sending process at startup, or 0 if unknown
+     * A PID reused by a new process comes with a new token.
+     */
+    public long getSourceToken() {
+        return sourceToken;
+    }
+
+    /**
+     * Called once by LogBroadcaster when the entry enters its send queue
+     */
+    public void assignSourceSequence(long sourceToken, long sourceSequence) {
+        this.sourceToken = sourceToken;
+        this.sourceSequence = sourceSequence;
+    }
+
+    /**
+     * Trigram bitmap built when the entry was stored, or null if unknown or no bytes
+     */
+    long[] getGramSignature() {
+        return gramSignature;
+    }
+
+    void setGramSignature(long[] gramSignature) {
+        this.gramSignature = gramSignature;
+    }
+
+    /**
+     * Wall-clock time in nanoseconds since the epoch
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public long getTimestampMillis() {
+        return timestampNanos / 1_000_000L;
+    }
+
+    /**
+     * Monotonic capture time on the originating device (SystemClock.elapsedRealtimeNanos)
+     */
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    /**
+     * Timestamp as "yyyy-MM-dd HH:mm:ss.SSS" (formatted on each call)
+     */
     public String getTimestamp() {
-        return timestamp;
+        return Timestamps.formatFull(timestampNanos);
     }
 
+    /**
+     * Timestamp as "HH:mm:ss.SSS" (formatted on each call)
+     */
     public String getShortTimestamp() {
-        return shortTimestamp;
+        return Timestamps.formatShort(timestampNanos);
     }
 
     public String getPackageName() {
@@ -315,21 +417,48 @@ public class CallLogEntry {
         return Constants.TYPE_TRANSMIT.equals(type);
     }
 
+    public byte[] getApduCommandBytes() {
+        return apduCommand;
+    }
+
+    public byte[] getApduResponseBytes() {
+        return apduResponse;
+    }
+
+    /**
+     * Parsed command/response, created once per entry; null when the entry has no APDU bytes
+     */
     public ApduInfo getApduInfo() {
-        if (apduCommand != null || apduResponse != null) {
-            return new ApduInfo(apduCommand, apduResponse);
+        ApduInfo info = apduInfo;
+        if (info == null && (apduCommand != null || apduResponse != null)) {
+            info = new ApduInfo(apduCommand, apduResponse);
+            apduInfo = info;
         }
-        return null;
+        return info;
     }
 
-    public String getAid() {
+    public byte[] getAidBytes() {
         return aid;
     }
 
-    public String getSelectResponse() {
+    /**
+     * AID as uppercase hex (encoded on each call)
+     */
+    public String getAid() {
+        return Hex.encode(aid);
+    }
+
+    public byte[] getSelectResponseBytes() {
         return selectResponse;
     }
 
+    /**
+     * Select response as uppercase hex (encoded on each call)
+     */
+    public String getSelectResponse() {
+        return Hex.encode(selectResponse);
+    }
+
     public long getThreadId() {
         return threadId;
     }
@@ -342,8 +471,15 @@ public class CallLogEntry {
         return processId;
     }
 
+    /**
+     * Time spent inside the hooked call, in microseconds
+     */
+    public long getExecutionTimeUs() {
+        return executionTimeUs;
+    }
+
     public long getExecutionTimeMs() {
-        return executionTimeMs;
+        return executionTimeUs / 1000;
     }
 
     public String getError() {
@@ -358,11 +494,27 @@ public class CallLogEntry {
      * Returns the captured call stack elements (may be null).
      */
     public StackTraceElement[] getStackTraceElements() {
+        if (stackTraceElements == null) {
+            if (stackSnapshot != null) {
+                stackTraceElements = stackSnapshot.resolve();
+            } else if (callSiteId != 0) {
+                // Not cached: the frames may still be in flight
+                return StackTable.getInstance().get(callSiteId);
+            }
+        }
         return stackTraceElements;
     }
 
+    /**
+     * ID of the interned call stack, or 0 if the stack is held inline (or absent)
+     */
+    public long getCallSiteId() {
+        return callSiteId;
+    }
+
     public boolean hasStackTrace() {
-        return stackTraceElements != null && stackTraceElements.length > 0;
+        StackTraceElement[] frames = getStackTraceElements();
+        return frames != null && frames.length > 0;
     }
 
     // Legacy compatibility - getMessage() is not used for structured entries
@@ -373,8 +525,8 @@ public class CallLogEntry {
     @Override
     public String toString() {
         if (hasError()) {
-            return timestamp + " [" + packageName + "] " + functionName + " ERROR: " + error;
+            return getTimestamp() + " [" + packageName + "] " + functionName + " ERROR: " + error;
         }
-        return timestamp + " [" + packageName + "] " + functionName + " (" + type + ")";
+        return getTimestamp() + " ["+ packageName + "] " + functionName + " (" + type + ")";
     }
 }
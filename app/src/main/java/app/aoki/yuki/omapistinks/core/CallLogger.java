@@ -1,25 +1,82 @@
 package app.aoki.yuki.omapistinks.core;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Singleton logger for storing OMAPI call log entries
+ *
+ * Entries live in a fixed-capacity circular buffer: appending is O(1) and overwrites the
+ * oldest entry once full. Every stored entry gets a monotonically increasing sequence
+ * number. Writers serialize on a private lock; readers never take it and instead copy
+ * the published range, skipping slots that were overwritten while they were reading.
+ *
+ * Observers are told when entries are appended or removed (clear, resize); they then
+ * pull only what changed with getLogsSince() and getOldestSequence().
+ *
+ * A LogIndex is maintained alongside the ring so filtered views (query) and value
+ * counts (getFacets) do not have to scan every retained entry.
  */
 public class CallLogger {
+
+    public static final String PREFS_NAME = "logger";
+    public static final String KEY_CAPACITY = "capacity";
+
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int MIN_CAPACITY = 100;
+    public static final int MAX_CAPACITY = 1_000_000;
+
     private static CallLogger instance;
-    private final List<CallLogEntry> logs;
-    private final SimpleDateFormat dateFormat;
-    private final SimpleDateFormat shortDateFormat;
-    private final int MAX_LOGS = 1000;
+
+    /**
+     * Notified on the ingesting thread after entries are appended or removed
+     * Implementations should only schedule work; the store may change again immediately.
+     */
+    public interface Listener {
+        void onLogsChanged();
+
+        /**
+         * The entries just stored, in sequence order, before they can be evicted
+         * Called under the store's write lock, so batches arrive in order; only hand them off.
+         */
+        default void onLogsAppended(List<CallLogEntry> entries) {
+        }
+    }
+
+    /**
+     * Slot array and its capacity, swapped as a unit when the capacity changes
+     */
+    private static final class Store {
+        final CallLogEntry[] slots;
+
+        Store(int capacity) {
+            slots = new CallLogEntry[capacity];
+        }
+
+        int capacity() {
+            return slots.length;
+        }
+
+        int index(long seq) {
+            return (int) (seq % slots.length);
+        }
+    }
+
+    private final Object writeLock = new Object();
+    private volatile Store store = new Store(DEFAULT_CAPACITY);
+    // Sequence of the next entry; entries [floorSeq, nextSeq) may still be present
+    private volatile long nextSeq = 1;
+    // Raised by clearLogs so earlier entries are hidden without touching the slots
+    private volatile long floorSeq = 1;
+
+    private final LogIndex index = new LogIndex();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
 
     private CallLogger() {
-        logs = new ArrayList<>();
-        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
-        shortDateFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.getDefault());
     }
 
     public static synchronized CallLogger getInstance() {
@@ -29,70 +86,194 @@ public class CallLogger {
         return instance;
     }
 
+    /**
+     * Per-entry work done on the ingesting thread so the UI thread never pays for it
+     */
+    private static void prepare(CallLogEntry entry) {
+        entry.setGramSignature(BytePattern.signature(entry));
+        entry.getApduInfo();
+    }
+
     /**
      * Add a log entry with structured data
      */
-    public synchronized void addLog(CallLogEntry entry) {
-        logs.add(entry);
-        
-        // Keep only the last MAX_LOGS entries
-        if (logs.size() > MAX_LOGS) {
-            logs.remove(0);
+    public void addLog(CallLogEntry entry) {
+        prepare(entry);
+        synchronized (writeLock) {
+            Store s = store;
+            long seq = nextSeq;
+            entry.assignSequence(seq);
+            s.slots[s.index(seq)] = entry;
+            // Volatile write publishes the slot to readers
+            nextSeq = seq + 1;
+            index.add(entry);
+            index.evictBefore(getOldestSequence(), size());
+            notifyAppended(Collections.singletonList(entry));
         }
+        notifyListeners();
     }
 
     /**
-     /**
-      * Create and add a structured log entry
-      */
-     public synchronized void addStructuredLog(String packageName, String function, String type,
-                                              String apduCommand, String apduResponse,
-                                              String aid, String selectResponse, String details,
-                                              long threadId, String threadName, int processId, long executionTimeMs,
-                                              String error, String timestamp, String shortTimestamp,
-                                              StackTraceElement[] stackTraceElements) {
-         // Use Builder to create entry with all fields
-         CallLogEntry.Builder builder = new CallLogEntry.Builder()
-             .packageName(packageName)
-             .functionName(function)
-             .type(type)
-             .apduCommand(apduCommand)
-             .apduResponse(apduResponse)
-             .aid(aid)
-             .selectResponse(selectResponse)
-             .details(details)
-             .executionTimeMs(executionTimeMs);
- 
-         // Override timestamps if provided from Xposed (remote process)
-         if (timestamp != null && !timestamp.isEmpty()) {
-             builder.timestamp(timestamp);
-         }
-         if (shortTimestamp != null && !shortTimestamp.isEmpty()) {
-             builder.shortTimestamp(shortTimestamp);
-         }
- 
-         // Preserve remote thread/process info
-         builder.threadId(threadId)
-                .threadName(threadName)
-                .processId(processId);
-         
-         if (error != null && !error.isEmpty()) {
-             builder.error(error);
-         }
- 
-         // Attach stack trace if available
-         if (stackTraceElements != null && stackTraceElements.length > 0) {
-             builder.stackTraceElements(stackTraceElements);
-         }
-         
-         CallLogEntry entry = builder.build();
-         addLog(entry);
-     }
-    public synchronized List<CallLogEntry> getLogs() {
-        return new ArrayList<>(logs);
-    }
-
-    public synchronized void clearLogs() {
-        logs.clear();
+     * Add several entries with a single notification
+     */
+    public void addLogs(List<CallLogEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        // Computed outside the lock; published together with the slot
+        for (CallLogEntry entry : entries) {
+            prepare(entry);
+        }
+        synchronized (writeLock) {
+            Store s = store;
+            long seq = nextSeq;
+            for (CallLogEntry entry : entries) {
+                entry.assignSequence(seq);
+                s.slots[s.index(seq)] = entry;
+                seq++;
+            }
+            nextSeq = seq;
+            for (CallLogEntry entry : entries) {
+                index.add(entry);
+            }
+            index.evictBefore(getOldestSequence(), size());
+            notifyAppended(entries);
+        }
+        notifyListeners();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyAppended(List<CallLogEntry> entries) {
+        for (Listener listener : listeners) {
+            listener.onLogsAppended(entries);
+        }
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : listeners) {
+            listener.onLogsChanged();
+        }
+    }
+
+    /**
+     * Snapshot of the stored entries, oldest first
+     * Does not block ingestion; entries evicted during the copy are left out.
+     */
+    public List<CallLogEntry> getLogs() {
+        return getLogsSince(0);
+    }
+
+    /**
+     * Snapshot of the retained entries whose sequence is greater than afterSequence
+     * Costs O(new entries), so observers can poll it after every change notification.
+     */
+    public List<CallLogEntry> getLogsSince(long afterSequence) {
+        Store s = store;
+        long end = nextSeq;
+        long start = Math.max(Math.max(floorSeq, end - s.capacity()), afterSequence + 1);
+        List<CallLogEntry> out = new ArrayList<>((int) Math.max(0, end - start));
+        for (long seq = start; seq < end; seq++) {
+            CallLogEntry entry = s.slots[s.index(seq)];
+            // A mismatch means the slot was reused (or resized away) after we read nextSeq
+            if (entry != null && entry.getSequence() == seq) {
+                out.add(entry);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Retained entries matching the query, oldest first
+     * Field criteria are answered by posting-list intersection; only the matches are read.
+     */
+    public List<CallLogEntry> query(LogIndex.Query query) {
+        long oldest = getOldestSequence();
+        long[] seqs = index.lookup(query, oldest);
+        if (seqs == null) {
+            return getLogs();
+        }
+        Store s = store;
+        List<CallLogEntry> out = new ArrayList<>(seqs.length);
+        for (long seq : seqs) {
+            CallLogEntry entry = s.slots[s.index(seq)];
+            if (entry != null && entry.getSequence() == seq && query.matchesTime(entry)) {
+                out.add(entry);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Distinct values of a field among retained entries with their counts, most frequent first
+     */
+    public Map<String, Integer> getFacets(LogIndex.Field field) {
+        return index.facets(field, getOldestSequence());
+    }
+
+    /**
+     * Number of entries currently retained
+     */
+    public int size() {
+        long end = nextSeq;
+        return (int) (end - Math.max(floorSeq, end - store.capacity()));
+    }
+
+    /**
+     * Sequence number of the oldest entry still retained; anything below it was evicted
+     */
+    public long getOldestSequence() {
+        long end = nextSeq;
+        return Math.max(floorSeq, end - store.capacity());
+    }
+
+    /**
+     * Sequence number of the most recently stored entry (0 if none yet)
+     */
+    public long getLatestSequence() {
+        return nextSeq - 1;
+    }
+
+    public int getCapacity() {
+        return store.capacity();
+    }
+
+    /**
+     * Change how many entries are retained; the newest entries are kept when shrinking
+     */
+    public void setCapacity(int capacity) {
+        int clamped = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, capacity));
+        synchronized (writeLock) {
+            Store old = store;
+            if (old.capacity() == clamped) {
+                return;
+            }
+            Store resized = new Store(clamped);
+            long end = nextSeq;
+            long start = Math.max(floorSeq, end - Math.min(old.capacity(), clamped));
+            for (long seq = start; seq < end; seq++) {
+                resized.slots[resized.index(seq)] = old.slots[old.index(seq)];
+            }
+            store = resized;
+            index.evictBefore(getOldestSequence(), size());
+        }
+        notifyListeners();
+    }
+
+    public void clearLogs() {
+        synchronized (writeLock) {
+            Store s = store;
+            floorSeq = nextSeq;
+            // Drop references so cleared entries can be collected
+            java.util.Arrays.fill(s.slots, null);
+            index.clear();
+        }
+        notifyListeners();
     }
 }
@@ -0,0 +1,412 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent append-only copy of everything stored in CallLogger
+ *
+ * Entries are written to memory-mapped segment files under the app's no-backup directory,
+ * so a record survives the process being killed as soon as it is copied into the mapping.
+ * CallLogger hands every stored batch to the journal (onLogsAppended), so nothing depends
+ * on how long the ring retains entries. Appends are group-committed: batches are queued,
+ * everything queued since the last commit goes into EntryCodec records, and the mapping
+ * is forced to storage at most once per FORCE_INTERVAL_MS.
+ *
+ * Segment: header (16 bytes: magic, version, reserved), then records
+ *   [length (4)][crc32 (4)][EntryCodec payload]; a zero length marks the end.
+ * The length is written last, so a torn append reads as the end of the segment.
+ *
+ * On startup the segments are scanned once and their entries restored into CallLogger;
+ * ingestion waits for that (awaitRecovery) so restored entries keep their original order.
+ * The journal listens from the start, so entries stored while recovery is still running
+ * (after the wait timed out) are journaled too, after the restored ones.
+ */
+public final class CaptureJournal implements CallLogger.Listener {
+
+    private static final String TAG = "OmapiStinks.Journal";
+
+    private static final int MAGIC = 0x4F4D4A4C; // "OMJL"
+    private static final int VERSION = 1;
+
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_ENTRIES_PER_RECORD = 512;
+
+    // Delay before a commit so a burst of ingestion lands in one record
+    private static final long GROUP_COMMIT_DELAY_MS = 50;
+    private static final long FORCE_INTERVAL_MS = 1000;
+    // Upper bound on how long ingestion waits for recovery at startup
+    private static final long RECOVERY_WAIT_MS = 10_000;
+
+    private static volatile CaptureJournal instance;
+
+    private final File dir;
+    private final CallLogger logger = CallLogger.getInstance();
+    private final ScheduledExecutorService executor;
+    private final CountDownLatch recovered = new CountDownLatch(1);
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+    private final CRC32 crc = new CRC32();
+    // Stored entries not yet written, in sequence order
+    private final ConcurrentLinkedQueue<CallLogEntry> pending = new ConcurrentLinkedQueue<>();
+    // Batch of restored entries being stored by recover(); already in the journal
+    private volatile List<CallLogEntry> restoring;
+
+    // Writer state; journal thread only
+    private long segmentIndex;
+    private MappedByteBuffer segment;
+    private final Set<Long> segmentCallSites = new HashSet<>();
+    private boolean dirty;
+    private boolean forceScheduled;
+    private long lastForceMs;
+
+    private CaptureJournal(File dir) {
+        this.dir = dir;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "OmapiStinks-journal");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Open the journal and start recovering it in the background (once per process)
+     */
+    public static synchronized void start(Context context) {
+        if (instance != null) {
+            return;
+        }
+        CaptureJournal journal = new CaptureJournal(new File(context.getNoBackupFilesDir(), "journal"));
+        instance = journal;
+        CallLogger.getInstance().addListener(journal);
+        journal.executor.execute(journal::recover);
+    }
+
+    /**
+     * Block until startup recovery has restored the journal into CallLogger
+     */
+    public static void awaitRecovery() {
+        CaptureJournal journal = instance;
+        if (journal == null) {
+            return;
+        }
+        try {
+            if (!journal.recovered.await(RECOVERY_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Recovery still running; ingesting without waiting");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delete every segment and start a fresh one (used when the user clears the logs)
+     */
+    public static void clear() {
+        CaptureJournal journal = instance;
+        if (journal != null) {
+            // Entries stored before this point were cleared with the logs
+            long floor = journal.logger.getLatestSequence() + 1;
+            journal.executor.execute(() -> journal.reset(floor));
+        }
+    }
+
+    @Override
+    public void onLogsChanged() {
+        // Appends arrive through onLogsAppended; clears and resizes do not change the journal
+    }
+
+    @Override
+    public void onLogsAppended(List<CallLogEntry> entries) {
+        if (entries == restoring) {
+            return;
+        }
+        pending.addAll(entries);
+        if (commitScheduled.compareAndSet(false, true)) {
+            executor.schedule(() -> {
+                commitScheduled.set(false);
+                commit();
+            }, GROUP_COMMIT_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // ---- Journal thread ----
+
+    private void recover() {
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            File[] files = listSegments();
+            ArrayDeque<CallLogEntry> restored = new ArrayDeque<>();
+            int capacity = logger.getCapacity();
+            int writePosition = -1;
+
+            for (int i = 0; i < files.length; i++) {
+                int end = scanSegment(files[i], restored, capacity);
+                if (i == files.length - 1) {
+                    writePosition = end;
+                }
+            }
+
+            if (files.length > 0 && writePosition >= SEGMENT_HEADER_SIZE) {
+                segmentIndex = parseIndex(files[files.length - 1]);
+                openSegment(segmentIndex, writePosition);
+            } else {
+                openSegment(files.length > 0 ? parseIndex(files[files.length - 1]) + 1 : 1, -1);
+            }
+
+            List<CallLogEntry> batch = new ArrayList<>(restored);
+            restoring = batch;
+            try {
+                logger.addLogs(batch);
+            } finally {
+                restoring = null;
+            }
+            Log.i(TAG, "Recovered " + restored.size() + " entries from " + files.length + " segments in "
+                    + (SystemClock.elapsedRealtime() - startMs) + " ms");
+        } catch (Throwable t) {
+            Log.e(TAG, "Journal recovery failed: " + t.getMessage(), t);
+        } finally {
+            recovered.countDown();
+            // Anything stored while recovery ran is waiting in pending
+            onLogsAppended(Collections.emptyList());
+        }
+    }
+
+    /**
+     * Decode every intact record of a segment, keeping at most `limit` newest entries
+     * @return offset just past the last intact record, or -1 if the segment is unusable
+     */
+    private int scanSegment(File file, ArrayDeque<CallLogEntry> out, int limit) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = Math.min(channel.size(), SEGMENT_SIZE);
+            if (size < SEGMENT_HEADER_SIZE) {
+                return -1;
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                Log.w(TAG, "Skipping foreign segment " + file.getName());
+                return -1;
+            }
+
+            int pos = SEGMENT_HEADER_SIZE;
+            while (pos + RECORD_HEADER_SIZE <= size) {
+                int length = buf.getInt(pos);
+                if (length <= 0 || pos + RECORD_HEADER_SIZE + (long) length > size) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buf.position(pos + RECORD_HEADER_SIZE);
+                buf.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != buf.getInt(pos + 4)) {
+                    // Torn or corrupt record: nothing after it is trustworthy
+                    Log.w(TAG, "CRC mismatch in " + file.getName() + " at " + pos);
+                    break;
+                }
+                try {
+                    for (CallLogEntry entry : EntryCodec.decode(payload, StackTable.getInstance())) {
+                        out.addLast(entry);
+                        if (out.size() > limit) {
+                            out.removeFirst();
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Undecodable record in " + file.getName() + ": " + e.getMessage());
+                }
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            return pos;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + file.getName() + ": " + e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    private void commit() {
+        try {
+            if (segment == null) {
+                return;
+            }
+            List<CallLogEntry> fresh = new ArrayList<>();
+            CallLogEntry entry;
+            while ((entry = pending.poll()) != null) {
+                fresh.add(entry);
+            }
+            if (!fresh.isEmpty()) {
+                for (int from = 0; from < fresh.size(); from += MAX_ENTRIES_PER_RECORD) {
+                    List<CallLogEntry> group = fresh.subList(from, Math.min(fresh.size(), from + MAX_ENTRIES_PER_RECORD));
+                    byte[] payload = encode(group);
+                    if (segment.remaining() < RECORD_HEADER_SIZE + payload.length) {
+                        segment.force();
+                        openSegment(segmentIndex + 1, -1);
+                        // Frames were chosen for the old segment; encode again for the new one
+                        payload = encode(group);
+                    }
+                    appendRecord(payload);
+                }
+                dirty = true;
+            }
+            forceIfDue();
+        } catch (Throwable t) {
+            Log.e(TAG, "Journal commit failed: " + t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Flush the mapping to storage at most once per FORCE_INTERVAL_MS
+     */
+    private void forceIfDue() {
+        if (!dirty || segment == null) {
+            return;
+        }
+        long wait = lastForceMs + FORCE_INTERVAL_MS - SystemClock.elapsedRealtime();
+        if (wait <= 0) {
+            segment.force();
+            dirty = false;
+            lastForceMs = SystemClock.elapsedRealtime();
+        } else if (!forceScheduled) {
+            // Make sure the last group reaches storage even if nothing else arrives
+            forceScheduled = true;
+            executor.schedule(() -> {
+                forceScheduled = false;
+                forceIfDue();
+            }, wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private byte[] encode(List<CallLogEntry> entries) {
+        EntryCodec.Encoder encoder = new EntryCodec.Encoder();
+        for (CallLogEntry entry : entries) {
+            long callSiteId = entry.getCallSiteId();
+            StackTraceElement[] frames = null;
+            if (callSiteId == 0) {
+                frames = entry.getStackTraceElements();
+            } else if (!segmentCallSites.contains(callSiteId)) {
+                // Each segment carries the frames it references so it can be recovered alone
+                frames = StackTable.getInstance().get(callSiteId);
+                if (frames != null) {
+                    segmentCallSites.add(callSiteId);
+                }
+            }
+            encoder.add(entry, callSiteId, frames);
+        }
+        return encoder.toByteArray();
+    }
+
+    private void appendRecord(byte[] payload) {
+        if (segment.remaining() < RECORD_HEADER_SIZE + payload.length) {
+            Log.w(TAG, "Dropping oversized journal record (" + payload.length + " bytes)");
+            return;
+        }
+
+        int pos = segment.position();
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        segment.putInt(pos + 4, (int) crc.getValue());
+        segment.position(pos + RECORD_HEADER_SIZE);
+        segment.put(payload);
+        // Commit marker: a record only exists once its length is written
+        segment.putInt(pos, payload.length);
+    }
+
+    /**
+     * Map a segment for writing
+     * @param position offset to continue at, or -1 to create the segment from scratch
+     */
+    private void openSegment(long index, int position) throws IOException {
+        File file = segmentFile(index);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+        segmentIndex = index;
+        segmentCallSites.clear();
+        if (position < 0) {
+            segment.putInt(0, MAGIC);
+            segment.putInt(4, VERSION);
+            segment.position(SEGMENT_HEADER_SIZE);
+        } else {
+            segment.position(position);
+        }
+        pruneSegments();
+    }
+
+    private void pruneSegments() {
+        File[] files = listSegments();
+        for (int i = 0; i < files.length - MAX_SEGMENTS; i++) {
+            if (!files[i].delete()) {
+                Log.w(TAG, "Could not delete " + files[i].getName());
+            }
+        }
+    }
+
+    private void reset(long floor) {
+        try {
+            // Drop queued entries that were cleared; later ones stay queued
+            CallLogEntry head;
+            while ((head = pending.peek()) != null && head.getSequence() < floor) {
+                pending.poll();
+            }
+            for (File file : listSegments()) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not delete " + file.getName());
+                }
+            }
+            openSegment(segmentIndex + 1, -1);
+            commit();
+        } catch (Throwable t) {
+            Log.e(TAG, "Journal reset failed: " + t.getMessage(), t);
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(parseIndex(a), parseIndex(b)));
+        return files;
+    }
+
+    private File segmentFile(long index) {
+        return new File(dir, String.format(java.util.Locale.ROOT, "%010d.seg", index));
+    }
+
+    private static long parseIndex(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - ".seg".length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
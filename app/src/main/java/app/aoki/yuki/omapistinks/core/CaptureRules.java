@@ -0,0 +1,303 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Decides in the hooked process which OMAPI calls are logged at all
+ *
+ * The logger app persists the rules in its preferences and serves them through
+ * CaptureRulesProvider; hooked processes fetch them once, keep them in current() and
+ * refetch when the provider signals a change. The hooks evaluate them before copying any
+ * argument, so a call that is filtered out costs a few field reads and nothing is queued
+ * or sent. Until the rules arrive everything is captured.
+ *
+ * Package lists match exactly, or by prefix when the entry ends with '*'. An empty allow
+ * list, AID prefix list or INS set means "any". Calls whose AID is unknown (the SE service
+ * hook, channels opened before the module loaded) only pass when no AID prefix is set.
+ */
+public final class CaptureRules {
+
+    public static final String PREFS_NAME = "capture_rules";
+
+    private static final String KEY_ALLOW_PACKAGES = "allowPackages";
+    private static final String KEY_DENY_PACKAGES = "denyPackages";
+    private static final String KEY_AID_PREFIXES = "aidPrefixes";
+    private static final String KEY_INS = "ins";
+    private static final String KEY_HEADERS_ONLY = "headersOnly";
+    private static final String KEY_ERRORS_ONLY = "errorsOnly";
+
+    // CLA INS P1 P2
+    private static final int HEADER_BYTES = 4;
+    // SW1 SW2
+    private static final int STATUS_BYTES = 2;
+
+    public static final CaptureRules DEFAULT = new CaptureRules(
+            new String[0], new String[0], new byte[0][], null, false, false);
+
+    private static volatile CaptureRules current = DEFAULT;
+
+    private final String[] allowPackages;
+    private final String[] denyPackages;
+    private final byte[][] aidPrefixes;
+    // Indexed by INS; null when every INS is captured
+    private final boolean[] ins;
+    private final boolean headersOnly;
+    private final boolean errorsOnly;
+
+    public CaptureRules(String[] allowPackages, String[] denyPackages, byte[][] aidPrefixes,
+                        boolean[] ins, boolean headersOnly, boolean errorsOnly) {
+        this.allowPackages = allowPackages != null ? allowPackages : new String[0];
+        this.denyPackages = denyPackages != null ? denyPackages : new String[0];
+        this.aidPrefixes = aidPrefixes != null ? aidPrefixes : new byte[0][];
+        this.ins = ins != null && ins.length == 256 ? ins : null;
+        this.headersOnly = headersOnly;
+        this.errorsOnly = errorsOnly;
+    }
+
+    /**
+     * Rules in effect for this process
+     */
+    public static CaptureRules current() {
+        return current;
+    }
+
+    public static void setCurrent(CaptureRules rules) {
+        current = rules != null ? rules : DEFAULT;
+    }
+
+    public boolean isHeadersOnly() {
+        return headersOnly;
+    }
+
+    public boolean isErrorsOnly() {
+        return errorsOnly;
+    }
+
+    /**
+     * Whether calls made by this package are logged
+     */
+    public boolean capturesPackage(String packageName) {
+        if (packageName == null) {
+            return allowPackages.length == 0;
+        }
+        if (matchesAny(denyPackages, packageName)) {
+            return false;
+        }
+        return allowPackages.length == 0 || matchesAny(allowPackages, packageName);
+    }
+
+    private static boolean matchesAny(String[] patterns, String packageName) {
+        for (String pattern : patterns) {
+            if (pattern.endsWith("*")
+                    ? packageName.regionMatches(0, pattern, 0, pattern.length() - 1)
+                    : packageName.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether calls on a channel to this AID are logged; null is an unknown AID
+     */
+    public boolean capturesAid(byte[] aid) {
+        if (aidPrefixes.length == 0) {
+            return true;
+        }
+        if (aid == null) {
+            return false;
+        }
+        for (byte[] prefix : aidPrefixes) {
+            if (prefix.length <= aid.length && regionEquals(aid, prefix, prefix.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a command with this INS is logged
+     */
+    public boolean capturesCommand(byte[] command) {
+        if (ins == null) {
+            return true;
+        }
+        return command != null && command.length >= 2 && ins[command[1] & 0xFF];
+    }
+
+    /**
+     * Errors-only filter, applied once the call has returned
+     * @param response response APDU or select response, may be null
+     * @param failed whether the call threw or produced no result
+     */
+    public boolean capturesResult(byte[] response, boolean failed) {
+        return !errorsOnly || failed || (response != null && CallLogEntry.isFailureStatus(response));
+    }
+
+    /**
+     * Copy of a command for logging: the header only when headersOnly is set
+     */
+    public byte[] copyCommand(byte[] command) {
+        if (command == null) {
+            return null;
+        }
+        return headersOnly && command.length > HEADER_BYTES
+                ? Arrays.copyOf(command, HEADER_BYTES) : command.clone();
+    }
+
+    /**
+     * Copy of a response for logging: SW1 SW2 only when headersOnly is set
+     */
+    public byte[] copyResponse(byte[] response) {
+        if (response == null) {
+            return null;
+        }
+        return headersOnly && response.length > STATUS_BYTES
+                ? Arrays.copyOfRange(response, response.length - STATUS_BYTES, response.length)
+                : response.clone();
+    }
+
+    /**
+     * Rules from the text fields of the settings dialog
+     * @param ins INS values as hex bytes, separated by commas or spaces
+     * @throws IllegalArgumentException if an AID prefix or INS is not hex
+     */
+    public static CaptureRules parse(String allowPackages, String denyPackages, String aidPrefixes,
+                                     String ins, boolean headersOnly, boolean errorsOnly) {
+        List<String> aidTexts = split(aidPrefixes);
+        byte[][] aids = new byte[aidTexts.size()][];
+        for (int i = 0; i < aids.length; i++) {
+            aids[i] = Hex.decode(aidTexts.get(i));
+            if (aids[i] == null || aids[i].length == 0) {
+                throw new IllegalArgumentException("AID prefix '" + aidTexts.get(i) + "' is not hex");
+            }
+        }
+        boolean[] insSet = null;
+        for (String value : split(ins)) {
+            byte[] b = Hex.decode(value);
+            if (b == null || b.length != 1) {
+                throw new IllegalArgumentException("INS '" + value + "' is not a hex byte");
+            }
+            if (insSet == null) {
+                insSet = new boolean[256];
+            }
+            insSet[b[0] & 0xFF] = true;
+        }
+        return new CaptureRules(toArray(split(allowPackages)), toArray(split(denyPackages)),
+                aids, insSet, headersOnly, errorsOnly);
+    }
+
+    private static List<String> split(String text) {
+        List<String> out = new ArrayList<>();
+        if (text != null) {
+            for (String part : text.split("[,\\s]+")) {
+                if (!part.isEmpty()) {
+                    out.add(part);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static String[] toArray(List<String> list) {
+        // Duplicates only cost time in the hook
+        return new LinkedHashSet<>(list).toArray(new String[0]);
+    }
+
+    public String getAllowPackagesText() {
+        return String.join(", ", allowPackages);
+    }
+
+    public String getDenyPackagesText() {
+        return String.join(", ", denyPackages);
+    }
+
+    public String getAidPrefixesText() {
+        StringBuilder sb = new StringBuilder();
+        for (byte[] prefix : aidPrefixes) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            Hex.append(sb, prefix, 0, prefix.length);
+        }
+        return sb.toString();
+    }
+
+    public String getInsText() {
+        StringBuilder sb = new StringBuilder();
+        if (ins != null) {
+            for (int i = 0; i < ins.length; i++) {
+                if (ins[i]) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    Hex.append(sb, i);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    public Bundle toBundle() {
+        Bundle b = new Bundle();
+        b.putString(KEY_ALLOW_PACKAGES, getAllowPackagesText());
+        b.putString(KEY_DENY_PACKAGES, getDenyPackagesText());
+        b.putString(KEY_AID_PREFIXES, getAidPrefixesText());
+        b.putString(KEY_INS, getInsText());
+        b.putBoolean(KEY_HEADERS_ONLY, headersOnly);
+        b.putBoolean(KEY_ERRORS_ONLY, errorsOnly);
+        return b;
+    }
+
+    /**
+     * @return rules read from the Bundle, or null if it carries none or they do not parse
+     */
+    public static CaptureRules fromBundle(Bundle b) {
+        if (b == null || b.getString(KEY_ALLOW_PACKAGES) == null) {
+            return null;
+        }
+        try {
+            return parse(b.getString(KEY_ALLOW_PACKAGES), b.getString(KEY_DENY_PACKAGES),
+                    b.getString(KEY_AID_PREFIXES), b.getString(KEY_INS),
+                    b.getBoolean(KEY_HEADERS_ONLY, false), b.getBoolean(KEY_ERRORS_ONLY, false));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static CaptureRules load(SharedPreferences prefs) {
+        try {
+            return parse(prefs.getString(KEY_ALLOW_PACKAGES, ""), prefs.getString(KEY_DENY_PACKAGES, ""),
+                    prefs.getString(KEY_AID_PREFIXES, ""), prefs.getString(KEY_INS, ""),
+                    prefs.getBoolean(KEY_HEADERS_ONLY, false), prefs.getBoolean(KEY_ERRORS_ONLY, false));
+        } catch (IllegalArgumentException e) {
+            return DEFAULT;
+        }
+    }
+
+    public void save(SharedPreferences prefs) {
+        prefs.edit()
+                .putString(KEY_ALLOW_PACKAGES, getAllowPackagesText())
+                .putString(KEY_DENY_PACKAGES, getDenyPackagesText())
+                .putString(KEY_AID_PREFIXES, getAidPrefixesText())
+                .putString(KEY_INS, getInsText())
+                .putBoolean(KEY_HEADERS_ONLY, headersOnly)
+                .putBoolean(KEY_ERRORS_ONLY, errorsOnly)
+                .apply();
+    }
+}
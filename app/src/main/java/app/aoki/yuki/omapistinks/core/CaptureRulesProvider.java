@@ -0,0 +1,79 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Serves the capture configuration (CaptureRules, StackCapturePolicy, FlightRecorderPolicy and
+ * DeliveryPolicy) to hooked processes
+ *
+ * Read-only: the only entry point is call(METHOD_GET_CONFIG). Hooked processes observe URI
+ * and refetch when the logger app saves new settings (notifyChanged). Exported without a
+ * permission because hooked apps cannot be granted one; the settings it reveals are not
+ * sensitive.
+ */
+public class CaptureRulesProvider extends ContentProvider {
+
+    public static final String AUTHORITY = Constants.PACKAGE_NAME + ".rules";
+    public static final Uri URI = Uri.parse("content://" + AUTHORITY);
+    public static final String METHOD_GET_CONFIG = "getConfig";
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_GET_CONFIG.equals(method)) {
+            return null;
+        }
+        Context ctx = getContext();
+        Bundle result = new Bundle();
+        result.putBundle(Constants.EXTRA_CAPTURE_RULES,
+                CaptureRules.load(ctx.getSharedPreferences(CaptureRules.PREFS_NAME, Context.MODE_PRIVATE)).toBundle());
+        result.putBundle(Constants.EXTRA_STACK_POLICY,
+                StackCapturePolicy.load(ctx.getSharedPreferences(StackCapturePolicy.PREFS_NAME, Context.MODE_PRIVATE)).toBundle());
+        result.putBundle(Constants.EXTRA_RECORDER_POLICY,
+                FlightRecorderPolicy.load(ctx.getSharedPreferences(FlightRecorderPolicy.PREFS_NAME, Context.MODE_PRIVATE)).toBundle());
+        result.putBundle(Constants.EXTRA_DELIVERY_POLICY,
+                DeliveryPolicy.load(ctx.getSharedPreferences(DeliveryPolicy.PREFS_NAME, Context.MODE_PRIVATE)).toBundle());
+        return result;
+    }
+
+    /**
+     * Tell hooked processes to refetch; call after saving any of the settings
+     */
+    public static void notifyChanged(Context context) {
+        context.getContentResolver().notifyChange(URI, null);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
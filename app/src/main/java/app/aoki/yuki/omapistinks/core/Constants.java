@@ -10,8 +10,8 @@ public class Constants {
     
     // Intent extras for structured log data
     public static final String EXTRA_MESSAGE = "message"; // Legacy
-    public static final String EXTRA_TIMESTAMP = "timestamp";
-    public static final String EXTRA_SHORT_TIMESTAMP = "shortTimestamp";
+    public static final String EXTRA_TIMESTAMP_NANOS = "timestampNanos"; // long, epoch nanoseconds
+    public static final String EXTRA_ELAPSED_NANOS = "elapsedRealtimeNanos"; // long, monotonic
     public static final String EXTRA_PACKAGE = "packageName";
     public static final String EXTRA_FUNCTION = "functionName";
     public static final String EXTRA_TYPE = "type"; // "transmit", "open", "close", "other"
@@ -23,9 +23,32 @@ public class Constants {
     public static final String EXTRA_THREAD_ID = "threadId";
     public static final String EXTRA_THREAD_NAME = "threadName";
     public static final String EXTRA_PROCESS_ID = "processId";
-    public static final String EXTRA_EXECUTION_TIME_MS = "executionTimeMs";
+    public static final String EXTRA_EXECUTION_TIME_US = "executionTimeUs";
     public static final String EXTRA_ERROR = "error";
-    public static final String EXTRA_STACKTRACE = "stackTrace";
+    public static final String EXTRA_STACKTRACE = "stackTrace"; // StackTraceElement[], in-app intents only
+    // Stack frames across processes: parallel arrays instead of a serialized StackTraceElement[]
+    public static final String EXTRA_STACK_CLASSES = "stackClasses";
+    public static final String EXTRA_STACK_METHODS = "stackMethods";
+    public static final String EXTRA_STACK_FILES = "stackFiles";
+    public static final String EXTRA_STACK_LINES = "stackLines";
+    // long; frames above are only sent the first time a process reports a call site
+    public static final String EXTRA_CALL_SITE_ID = "callSiteId";
+    
+    // Batched delivery: ArrayList<Bundle>, each Bundle keyed with the extras above
+    public static final String EXTRA_BATCH = "batch";
+    // Batched delivery: byte[] produced by EntryCodec
+    public static final String EXTRA_ENCODED = "encoded";
+    
+    // Key of the SharedMemory in the Bundle returned by ILogIngestService.openRing
+    public static final String EXTRA_RING = "ring";
+    // StackCapturePolicy Bundle returned alongside the ring
+    public static final String EXTRA_STACK_POLICY = "stackPolicy";
+    // CaptureRules Bundle, returned with the ring and by CaptureRulesProvider
+    public static final String EXTRA_CAPTURE_RULES = "captureRules";
+    // FlightRecorderPolicy Bundle, returned by CaptureRulesProvider only
+    public static final String EXTRA_RECORDER_POLICY = "recorderPolicy";
+    // DeliveryPolicy Bundle, returned with the ring and by CaptureRulesProvider
+    public static final String EXTRA_DELIVERY_POLICY = "deliveryPolicy";
     
     // Package name for intent targeting
     public static final String PACKAGE_NAME = "app.aoki.yuki.omapistinks";
@@ -0,0 +1,117 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+/**
+ * Send queue settings of the hooked processes: capacity and what happens when it is full
+ *
+ * Delivered with the other capture settings (CaptureRulesProvider, LogIngestService.openRing).
+ * Whatever the policy drops is counted by LogBroadcaster and shows up in the app as a gap
+ * in the sending process's sequence numbers.
+ */
+public final class DeliveryPolicy {
+
+    public static final String PREFS_NAME = "delivery";
+
+    public enum Overflow {
+        /** Discard the oldest queued entry to make room */
+        DROP_OLDEST,
+        /** Discard the entry being queued */
+        DROP_NEWEST,
+        /** Hold the hooked thread until there is room or the timeout passes, then drop it */
+        BLOCK
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 50;
+
+    private static final String KEY_QUEUE_CAPACITY = "queueCapacity";
+    private static final String KEY_OVERFLOW = "overflow";
+    private static final String KEY_BLOCK_TIMEOUT_MS = "blockTimeoutMs";
+
+    public static final DeliveryPolicy DEFAULT = new DeliveryPolicy(
+            DEFAULT_QUEUE_CAPACITY, Overflow.DROP_NEWEST, DEFAULT_BLOCK_TIMEOUT_MS);
+
+    private static volatile DeliveryPolicy current = DEFAULT;
+
+    private final int queueCapacity;
+    private final Overflow overflow;
+    private final long blockTimeoutMs;
+
+    public DeliveryPolicy(int queueCapacity, Overflow overflow, long blockTimeoutMs) {
+        this.queueCapacity = queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+        this.overflow = overflow != null ? overflow : Overflow.DROP_NEWEST;
+        this.blockTimeoutMs = blockTimeoutMs >= 0 ? blockTimeoutMs : DEFAULT_BLOCK_TIMEOUT_MS;
+    }
+
+    /**
+     * Policy in effect for this process
+     */
+    public static DeliveryPolicy current() {
+        return current;
+    }
+
+    public static void setCurrent(DeliveryPolicy policy) {
+        current = policy != null ? policy : DEFAULT;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * How long BLOCK holds the hooked thread at most
+     */
+    public long getBlockTimeoutMs() {
+        return blockTimeoutMs;
+    }
+
+    private static Overflow parseOverflow(String name) {
+        try {
+            return name != null ? Overflow.valueOf(name) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public Bundle toBundle() {
+        Bundle b = new Bundle();
+        b.putInt(KEY_QUEUE_CAPACITY, queueCapacity);
+        b.putString(KEY_OVERFLOW, overflow.name());
+        b.putLong(KEY_BLOCK_TIMEOUT_MS, blockTimeoutMs);
+        return b;
+    }
+
+    /**
+     * @return policy read from the Bundle, or null if it carries none
+     */
+    public static DeliveryPolicy fromBundle(Bundle b) {
+        if (b == null || !b.containsKey(KEY_QUEUE_CAPACITY)) {
+            return null;
+        }
+        return new DeliveryPolicy(
+                b.getInt(KEY_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+                parseOverflow(b.getString(KEY_OVERFLOW)),
+                b.getLong(KEY_BLOCK_TIMEOUT_MS, DEFAULT_BLOCK_TIMEOUT_MS));
+    }
+
+    public static DeliveryPolicy load(SharedPreferences prefs) {
+        return new DeliveryPolicy(
+                prefs.getInt(KEY_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+                parseOverflow(prefs.getString(KEY_OVERFLOW, null)),
+                prefs.getLong(KEY_BLOCK_TIMEOUT_MS, DEFAULT_BLOCK_TIMEOUT_MS));
+    }
+
+    public void save(SharedPreferences prefs) {
+        prefs.edit()
+                .putInt(KEY_QUEUE_CAPACITY, queueCapacity)
+                .putString(KEY_OVERFLOW, overflow.name())
+                .putLong(KEY_BLOCK_TIMEOUT_MS, blockTimeoutMs)
+                .apply();
+    }
+}
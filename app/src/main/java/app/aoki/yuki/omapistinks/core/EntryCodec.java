@@ -0,0 +1,390 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of CallLogEntry batches used between hooked processes and the app
+ *
+ * Payload (version 1):
+ *   magic (2) "OE", version (1), entry count (varint), entries...
+ *
+ * Entry:
+ *   flags (varint): HAS_APDU, HAS_CALL_SITE, HAS_FRAMES, HAS_SOURCE_SEQUENCE, HAS_SOURCE_TOKEN
+ *   timestampNanos, elapsedRealtimeNanos: zigzag varint delta from the previous entry
+ *   packageName, functionName, type, threadName, details, error: string refs
+ *   threadId, processId, executionTimeUs: zigzag varints
+ *   aid, selectResponse: byte fields
+ *   [HAS_APDU] apduCommand, apduResponse: byte fields
+ *   [HAS_CALL_SITE] callSiteId: 8 bytes little-endian
+ *   [HAS_FRAMES] frame count (varint), then per frame: class, method, file (string refs), line (zigzag)
+ *   [HAS_SOURCE_SEQUENCE] sourceSequence: zigzag varint delta from the previous entry's
+ *   [HAS_SOURCE_TOKEN] sourceToken: 8 bytes little-endian; only when it differs from the
+ *     previous sequenced entry's, later sequenced entries of the payload inherit it
+ *
+ * String ref (varint): 0 = null, 1 = new literal (byte length + UTF-8, appended to the
+ * payload's dictionary), n >= 2 = dictionary[n - 2]. Byte field: varint length + 1 (0 = null),
+ * then the raw bytes.
+ */
+public final class EntryCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC_0 = 'O';
+    private static final int MAGIC_1 = 'E';
+
+    private static final int HAS_APDU = 1;
+    private static final int HAS_CALL_SITE = 1 << 1;
+    private static final int HAS_FRAMES = 1 << 2;
+    private static final int HAS_SOURCE_SEQUENCE = 1 << 3;
+    private static final int HAS_SOURCE_TOKEN = 1 << 4;
+
+    private static final int REF_NULL = 0;
+    private static final int REF_LITERAL = 1;
+    private static final int REF_BASE = 2;
+
+    private EntryCodec() {
+    }
+
+    /**
+     * Accumulates entries into one payload; strings are shared across all entries added
+     */
+    public static final class Encoder {
+        private byte[] buf = new byte[1024];
+        private int pos;
+        private int count;
+        private long lastTimestamp;
+        private long lastElapsed;
+        private long lastSourceSequence;
+        private long lastSourceToken;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        /**
+         * Append an entry
+         * @param callSiteId interned stack ID, or 0 for none
+         * @param frames frames to include, or null to send only the ID
+         */
+        public Encoder add(CallLogEntry entry, long callSiteId, StackTraceElement[] frames) {
+            ApduInfo apdu = entry.getApduInfo();
+            int flags = 0;
+            if (apdu != null) {
+                flags |= HAS_APDU;
+            }
+            if (callSiteId != 0) {
+                flags |= HAS_CALL_SITE;
+            }
+            if (frames != null && frames.length > 0) {
+                flags |= HAS_FRAMES;
+            }
+            long sourceSequence = entry.getSourceSequence();
+            long sourceToken = entry.getSourceToken();
+            if (sourceSequence != 0) {
+                flags |= HAS_SOURCE_SEQUENCE;
+                if (sourceToken != lastSourceToken) {
+                    flags |= HAS_SOURCE_TOKEN;
+                }
+            }
+
+            writeVarint(flags);
+            writeSigned(entry.getTimestampNanos() - lastTimestamp);
+            writeSigned(entry.getElapsedRealtimeNanos() - lastElapsed);
+            lastTimestamp = entry.getTimestampNanos();
+            lastElapsed = entry.getElapsedRealtimeNanos();
+
+            writeString(entry.getPackageName());
+            writeString(entry.getFunctionName());
+            writeString(entry.getType());
+            writeString(entry.getThreadName());
+            writeString(entry.getDetails());
+            writeString(entry.getError());
+            writeSigned(entry.getThreadId());
+            writeSigned(entry.getProcessId());
+            writeSigned(entry.getExecutionTimeUs());
+            writeBytes(entry.getAidBytes());
+            writeBytes(entry.getSelectResponseBytes());
+
+            if (apdu != null) {
+                writeBytes(apdu.getCommandBytes());
+                writeBytes(apdu.getResponseBytes());
+            }
+            if (callSiteId != 0) {
+                writeFixed64(callSiteId);
+            }
+            if ((flags & HAS_FRAMES) != 0) {
+                writeVarint(frames.length);
+                for (StackTraceElement frame : frames) {
+                    writeString(frame.getClassName());
+                    writeString(frame.getMethodName());
+                    writeString(frame.getFileName());
+                    writeSigned(frame.getLineNumber());
+                }
+            }
+            if (sourceSequence != 0) {
+                writeSigned(sourceSequence - lastSourceSequence);
+                lastSourceSequence = sourceSequence;
+            }
+            if ((flags & HAS_SOURCE_TOKEN) != 0) {
+                writeFixed64(sourceToken);
+                lastSourceToken = sourceToken;
+            }
+            count++;
+            return this;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the complete payload, header included
+         */
+        public byte[] toByteArray() {
+            byte[] header = new byte[3 + 5];
+            header[0] = (byte) MAGIC_0;
+            header[1] = (byte) MAGIC_1;
+            header[2] = (byte) VERSION;
+            int headerLength = 3;
+            int n = count;
+            while ((n & ~0x7F) != 0) {
+                header[headerLength++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            header[headerLength++] = (byte) n;
+
+            byte[] out = new byte[headerLength + pos];
+            System.arraycopy(header, 0, out, 0, headerLength);
+            System.arraycopy(buf, 0, out, headerLength, pos);
+            return out;
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+
+        private void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        private void writeSigned(long v) {
+            writeVarint((v << 1) ^ (v >> 63));
+        }
+
+        private void writeFixed64(long v) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buf[pos++] = (byte) (v >>> (8 * i));
+            }
+        }
+
+        private void writeBytes(byte[] b) {
+            if (b == null) {
+                writeVarint(0);
+                return;
+            }
+            writeVarint(b.length + 1L);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void writeString(String s) {
+            if (s == null) {
+                writeVarint(REF_NULL);
+                return;
+            }
+            Integer index = dictionary.get(s);
+            if (index != null) {
+                writeVarint(REF_BASE + index);
+                return;
+            }
+            dictionary.put(s, dictionary.size());
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(REF_LITERAL);
+            writeVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, buf, pos, utf8.length);
+            pos += utf8.length;
+        }
+    }
+
+    /**
+     * @return true if the payload starts with this codec's magic
+     */
+    public static boolean isEncoded(byte[] payload) {
+        return payload != null && payload.length >= 3
+                && payload[0] == MAGIC_0 && payload[1] == MAGIC_1;
+    }
+
+    /**
+     * Decode every entry of a payload
+     * Interned frames are stored in the given table and entries keep only the call-site ID.
+     * @throws IllegalArgumentException if the payload is malformed or of an unknown version
+     */
+    public static List<CallLogEntry> decode(byte[] payload, StackTable stacks) {
+        if (!isEncoded(payload)) {
+            throw new IllegalArgumentException("Not an encoded entry payload");
+        }
+        if ((payload[2] & 0xFF) != VERSION) {
+            throw new IllegalArgumentException("Unsupported payload version " + (payload[2] & 0xFF));
+        }
+        Reader in = new Reader(payload, 3);
+        int count = in.readLength();
+        List<CallLogEntry> out = new ArrayList<>(Math.min(count, 1024));
+        long timestamp = 0;
+        long elapsed = 0;
+        long sourceSequence = 0;
+        long sourceToken = 0;
+        for (int i = 0; i < count; i++) {
+            int flags = (int) in.readVarint();
+            timestamp += in.readSigned();
+            elapsed += in.readSigned();
+
+            CallLogEntry.Builder builder = new CallLogEntry.Builder()
+                    .timestampNanos(timestamp)
+                    .elapsedRealtimeNanos(elapsed)
+                    .packageName(in.readString())
+                    .functionName(in.readString())
+                    .type(in.readString())
+                    .threadName(in.readString())
+                    .details(in.readString())
+                    .error(in.readString())
+                    .threadId(in.readSigned())
+                    .processId((int) in.readSigned())
+                    .executionTimeUs(in.readSigned())
+                    .aid(in.readBytes())
+                    .selectResponse(in.readBytes());
+
+            if ((flags & HAS_APDU) != 0) {
+                builder.apduCommand(in.readBytes())
+                       .apduResponse(in.readBytes());
+            }
+            long callSiteId = (flags & HAS_CALL_SITE) != 0 ? in.readFixed64() : 0;
+            StackTraceElement[] frames = null;
+            if ((flags & HAS_FRAMES) != 0) {
+                frames = new StackTraceElement[in.readLength()];
+                for (int f = 0; f < frames.length; f++) {
+                    String cls = in.readString();
+                    String method = in.readString();
+                    String file = in.readString();
+                    int line = (int) in.readSigned();
+                    frames[f] = new StackTraceElement(cls != null ? cls : "?", method != null ? method : "?", file, line);
+                }
+            }
+
+            if ((flags & HAS_SOURCE_SEQUENCE) != 0) {
+                sourceSequence += in.readSigned();
+                builder.sourceSequence(sourceSequence);
+            }
+            if ((flags & HAS_SOURCE_TOKEN) != 0) {
+                sourceToken = in.readFixed64();
+            }
+            if ((flags & HAS_SOURCE_SEQUENCE) != 0) {
+                builder.sourceToken(sourceToken);
+            }
+
+            if (callSiteId != 0) {
+                stacks.put(callSiteId, frames);
+                builder.callSiteId(callSiteId);
+            } else if (frames != null) {
+                builder.stackTraceElements(frames);
+            }
+            out.add(builder.build());
+        }
+        return out;
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final List<String> dictionary = new ArrayList<>();
+
+        Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private void require(int n) {
+            if (n < 0 || pos + n > buf.length) {
+                throw new IllegalArgumentException("Truncated payload at offset " + pos);
+            }
+        }
+
+        long readVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at offset " + pos);
+        }
+
+        long readSigned() {
+            long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        int readLength() {
+            long v = readVarint();
+            // A 10-byte varint can set the sign bit
+            if (v < 0 || v > buf.length) {
+                throw new IllegalArgumentException("Length " + v + " exceeds payload");
+            }
+            return (int) v;
+        }
+
+        long readFixed64() {
+            require(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v |= (long) (buf[pos++] & 0xFF) << (8 * i);
+            }
+            return v;
+        }
+
+        byte[] readBytes() {
+            int n = readLength();
+            if (n == 0) {
+                return null;
+            }
+            require(n - 1);
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + n - 1);
+            pos += n - 1;
+            return b;
+        }
+
+        String readString() {
+            int ref = readLength();
+            if (ref == REF_NULL) {
+                return null;
+            }
+            if (ref == REF_LITERAL) {
+                int n = readLength();
+                require(n);
+                String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+                pos += n;
+                dictionary.add(s);
+                return s;
+            }
+            int index = ref - REF_BASE;
+            if (index >= dictionary.size()) {
+                throw new IllegalArgumentException("Unknown string ref " + ref);
+            }
+            return dictionary.get(index);
+        }
+    }
+}
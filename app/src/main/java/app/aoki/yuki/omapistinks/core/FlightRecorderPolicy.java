@@ -0,0 +1,159 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+/**
+ * Flight-recorder mode: hooked processes keep recent entries in memory and only send them
+ * when a trigger fires
+ *
+ * Triggers are a transmit whose status word is not 9000 or 61xx (or that threw), a call
+ * slower than the latency threshold, an entry carrying an error, and a manual request from
+ * the app. The manual request is a counter: the app increments it and notifies
+ * CaptureRulesProvider, and each hooked process dumps when it sees a new value.
+ */
+public final class FlightRecorderPolicy {
+
+    public static final String PREFS_NAME = "flight_recorder";
+
+    public static final int DEFAULT_MAX_ENTRIES = 2000;
+    // Upper bound on the ring, which every hooked process allocates up front
+    public static final int MAX_ENTRIES = 20_000;
+    public static final long DEFAULT_WINDOW_MS = 60_000;
+    public static final long DEFAULT_LATENCY_THRESHOLD_US = 500_000;
+
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_MAX_ENTRIES = "maxEntries";
+    private static final String KEY_WINDOW_MS = "windowMs";
+    private static final String KEY_LATENCY_THRESHOLD_US = "latencyThresholdUs";
+    private static final String KEY_DUMP_REQUEST = "dumpRequest";
+
+    public static final FlightRecorderPolicy DEFAULT = new FlightRecorderPolicy(
+            false, DEFAULT_MAX_ENTRIES, DEFAULT_WINDOW_MS, DEFAULT_LATENCY_THRESHOLD_US, 0);
+
+    private static volatile FlightRecorderPolicy current = DEFAULT;
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long windowMs;
+    private final long latencyThresholdUs;
+    private final long dumpRequest;
+
+    public FlightRecorderPolicy(boolean enabled, int maxEntries, long windowMs,
+                                long latencyThresholdUs, long dumpRequest) {
+        this.enabled = enabled;
+        this.maxEntries = maxEntries > 0 ? Math.min(maxEntries, MAX_ENTRIES) : DEFAULT_MAX_ENTRIES;
+        this.windowMs = windowMs > 0 ? windowMs : DEFAULT_WINDOW_MS;
+        this.latencyThresholdUs = latencyThresholdUs > 0 ? latencyThresholdUs : DEFAULT_LATENCY_THRESHOLD_US;
+        this.dumpRequest = dumpRequest;
+    }
+
+    /**
+     * Policy in effect for this process
+     */
+    public static FlightRecorderPolicy current() {
+        return current;
+    }
+
+    public static void setCurrent(FlightRecorderPolicy policy) {
+        current = policy != null ? policy : DEFAULT;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Entries older than this are not included in a dump
+     */
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public long getLatencyThresholdUs() {
+        return latencyThresholdUs;
+    }
+
+    public long getDumpRequest() {
+        return dumpRequest;
+    }
+
+    /**
+     * @return a short reason if this entry should dump the recorder, else null
+     */
+    public String triggerReason(CallLogEntry entry) {
+        if (entry.hasError()) {
+            return "error";
+        }
+        if (entry.isTransmit()) {
+            byte[] response = entry.getApduResponseBytes();
+            if (response == null || response.length < 2) {
+                return "transmit failed";
+            }
+            int sw1 = response[response.length - 2] & 0xFF;
+            int sw2 = response[response.length - 1] & 0xFF;
+            if (!(sw1 == 0x90 && sw2 == 0x00) && sw1 != 0x61) {
+                return "SW " + Hex.encode(response, response.length - 2, 2);
+            }
+        }
+        if (entry.getExecutionTimeUs() >= latencyThresholdUs) {
+            return "latency " + Timestamps.formatDuration(entry.getExecutionTimeUs());
+        }
+        return null;
+    }
+
+    /**
+     * Copy with a new manual dump request
+     */
+    public FlightRecorderPolicy withDumpRequest(long request) {
+        return new FlightRecorderPolicy(enabled, maxEntries, windowMs, latencyThresholdUs, request);
+    }
+
+    public Bundle toBundle() {
+        Bundle b = new Bundle();
+        b.putBoolean(KEY_ENABLED, enabled);
+        b.putInt(KEY_MAX_ENTRIES, maxEntries);
+        b.putLong(KEY_WINDOW_MS, windowMs);
+        b.putLong(KEY_LATENCY_THRESHOLD_US, latencyThresholdUs);
+        b.putLong(KEY_DUMP_REQUEST, dumpRequest);
+        return b;
+    }
+
+    /**
+     * @return policy read from the Bundle, or null if it carries none
+     */
+    public static FlightRecorderPolicy fromBundle(Bundle b) {
+        if (b == null || !b.containsKey(KEY_ENABLED)) {
+            return null;
+        }
+        return new FlightRecorderPolicy(
+                b.getBoolean(KEY_ENABLED, false),
+                b.getInt(KEY_MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+                b.getLong(KEY_WINDOW_MS, DEFAULT_WINDOW_MS),
+                b.getLong(KEY_LATENCY_THRESHOLD_US, DEFAULT_LATENCY_THRESHOLD_US),
+                b.getLong(KEY_DUMP_REQUEST, 0));
+    }
+
+    public static FlightRecorderPolicy load(SharedPreferences prefs) {
+        return new FlightRecorderPolicy(
+                prefs.getBoolean(KEY_ENABLED, false),
+                prefs.getInt(KEY_MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+                prefs.getLong(KEY_WINDOW_MS, DEFAULT_WINDOW_MS),
+                prefs.getLong(KEY_LATENCY_THRESHOLD_US, DEFAULT_LATENCY_THRESHOLD_US),
+                prefs.getLong(KEY_DUMP_REQUEST, 0));
+    }
+
+    public void save(SharedPreferences prefs) {
+        prefs.edit()
+                .putBoolean(KEY_ENABLED, enabled)
+                .putInt(KEY_MAX_ENTRIES, maxEntries)
+                .putLong(KEY_WINDOW_MS, windowMs)
+                .putLong(KEY_LATENCY_THRESHOLD_US, latencyThresholdUs)
+                .putLong(KEY_DUMP_REQUEST, dumpRequest)
+                .apply();
+    }
+}
@@ -0,0 +1,204 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects entries lost on the way from a hooked process from gaps in its source sequence
+ *
+ * Each hooked process numbers the entries it queues (LogBroadcaster). Deliveries of one
+ * process can overtake each other (ring records are drained on their own thread, overflow
+ * goes through submitEncoded), so a hole is only reported once it has stayed open for
+ * SETTLE_MS; entries arriving late shrink it, sequence 1 included. The report is a marker
+ * entry ("N entries lost") stored like any other entry. A process is tracked from the
+ * first entry the app sees and keyed by PID and source token; a reused PID comes with a
+ * new token, so it starts a new stream instead of being mistaken for a late sequence 1.
+ */
+final class GapDetector {
+
+    private static final String MARKER_FUNCTION = "Delivery gap";
+
+    private static final long SETTLE_MS = 2000;
+    // Processes tracked at once; the least recently heard from is forgotten
+    private static final int MAX_SOURCES = 256;
+    // Open gaps per process; beyond this the oldest is reported without waiting
+    private static final int MAX_OPEN_GAPS = 64;
+
+    private static final GapDetector INSTANCE = new GapDetector();
+
+    private final Map<SourceKey, Source> sources = new LinkedHashMap<SourceKey, Source>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SourceKey, Source> eldest) {
+            return size() > MAX_SOURCES;
+        }
+    };
+
+    /**
+     * Identity of one hooked process: its PID and the token it picked at startup
+     */
+    private static final class SourceKey {
+        final int pid;
+        final long token;
+
+        SourceKey(int pid, long token) {
+            this.pid = pid;
+            this.token = token;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SourceKey)) {
+                return false;
+            }
+            SourceKey other = (SourceKey) o;
+            return pid == other.pid && token == other.token;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pid + Long.hashCode(token);
+        }
+    }
+
+    /**
+     * Sequence state of one hooked process
+     */
+    private static final class Source {
+        long highest;
+        final List<Gap> open = new ArrayList<>();
+    }
+
+    /**
+     * Missing range [first, last] and the entry that revealed it
+     */
+    private static final class Gap {
+        final long first;
+        final long last;
+        final CallLogEntry next;
+        final long detectedNanos;
+        long missing;
+
+        Gap(long first, long last, CallLogEntry next, long detectedNanos) {
+            this.first = first;
+            this.last = last;
+            this.next = next;
+            this.detectedNanos = detectedNanos;
+            this.missing = last - first + 1;
+        }
+    }
+
+    // Package-private so tests can use a fresh instance
+    GapDetector() {
+    }
+
+    static GapDetector getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Track a delivered batch
+     * @return the entries followed by markers for gaps that are now settled
+     */
+    List<CallLogEntry> process(List<CallLogEntry> entries) {
+        return process(entries, SystemClock.elapsedRealtimeNanos());
+    }
+
+    synchronized List<CallLogEntry> process(List<CallLogEntry> entries, long now) {
+        List<CallLogEntry> markers = new ArrayList<>();
+        for (CallLogEntry entry : entries) {
+            long seq = entry.getSourceSequence();
+            if (seq <= 0) {
+                continue;
+            }
+            SourceKey key = new SourceKey(entry.getProcessId(), entry.getSourceToken());
+            Source source = sources.get(key);
+            if (source == null) {
+                source = new Source();
+                source.highest = seq;
+                sources.put(key, source);
+            } else if (seq > source.highest) {
+                if (seq > source.highest + 1) {
+                    source.open.add(new Gap(source.highest + 1, seq - 1, entry, now));
+                    if (source.open.size() > MAX_OPEN_GAPS) {
+                        markers.add(marker(source.open.remove(0)));
+                    }
+                }
+                source.highest = seq;
+            } else {
+                fill(source, seq);
+            }
+        }
+        collectSettled(now, markers);
+        if (markers.isEmpty()) {
+            return entries;
+        }
+        List<CallLogEntry> out = new ArrayList<>(entries.size() + markers.size());
+        out.addAll(entries);
+        out.addAll(markers);
+        return out;
+    }
+
+    /**
+     * Markers for gaps that settled without new deliveries; called periodically
+     */
+    List<CallLogEntry> settle() {
+        return settle(SystemClock.elapsedRealtimeNanos());
+    }
+
+    synchronized List<CallLogEntry> settle(long now) {
+        List<CallLogEntry> markers = new ArrayList<>();
+        collectSettled(now, markers);
+        return markers;
+    }
+
+    private static void fill(Source source, long seq) {
+        for (Iterator<Gap> it = source.open.iterator(); it.hasNext(); ) {
+            Gap gap = it.next();
+            if (seq >= gap.first && seq <= gap.last) {
+                if (--gap.missing == 0) {
+                    it.remove();
+                }
+                return;
+            }
+        }
+        // Duplicate, or later than a gap that was already reported
+    }
+
+    private void collectSettled(long now, List<CallLogEntry> markers) {
+        long settleNanos = TimeUnit.MILLISECONDS.toNanos(SETTLE_MS);
+        for (Source source : sources.values()) {
+            for (Iterator<Gap> it = source.open.iterator(); it.hasNext(); ) {
+                Gap gap = it.next();
+                if (now - gap.detectedNanos >= settleNanos) {
+                    markers.add(marker(gap));
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static CallLogEntry marker(Gap gap) {
+        CallLogEntry next = gap.next;
+        String lost = gap.missing + (gap.missing == 1 ? " entry lost" : " entries lost");
+        String range = gap.first == gap.last ? String.valueOf(gap.first) : gap.first + "-" + gap.last;
+        return new CallLogEntry.Builder()
+                .timestampNanos(next.getTimestampNanos())
+                .elapsedRealtimeNanos(next.getElapsedRealtimeNanos())
+                .packageName(next.getPackageName())
+                .functionName(MARKER_FUNCTION)
+                .type(Constants.TYPE_OTHER)
+                .details(lost + " (PID " + next.getProcessId()
+                        + ", sequence " + range + ")")
+                .error(lost)
+                .threadId(0)
+                .threadName(null)
+                .processId(next.getProcessId())
+                .build();
+    }
+}
@@ -0,0 +1,108 @@
+package app.aoki.yuki.omapistinks.core;
+
+/**
+ * Table-driven hex encoding for APDU payloads
+ * Entries carry raw bytes; text is only produced here when a view or exporter needs it
+ */
+public final class Hex {
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // Nibble value per ASCII char, -1 for non-hex
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private Hex() {
+    }
+
+    /**
+     * Encode bytes as uppercase hex, or null for null input
+     */
+    public static String encode(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encode a slice of bytes as uppercase hex
+     */
+    public static String encode(byte[] bytes, int offset, int length) {
+        char[] out = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int v = bytes[offset + i] & 0xFF;
+            out[i * 2] = DIGITS[v >>> 4];
+            out[i * 2 + 1] = DIGITS[v & 0x0F];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Append a slice of bytes as uppercase hex without an intermediate String
+     */
+    public static StringBuilder append(StringBuilder sb, byte[] bytes, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            int v = bytes[offset + i] & 0xFF;
+            sb.append(DIGITS[v >>> 4]).append(DIGITS[v & 0x0F]);
+        }
+        return sb;
+    }
+
+    /**
+     * Append a single byte as two uppercase hex digits
+     */
+    public static StringBuilder append(StringBuilder sb, int b) {
+        return sb.append(DIGITS[(b >>> 4) & 0x0F]).append(DIGITS[b & 0x0F]);
+    }
+
+    /**
+     * Decode a hex string, ignoring whitespace
+     * @return decoded bytes, or null if the input is null or not valid hex
+     */
+    public static byte[] decode(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        int digits = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            if (c >= 128 || VALUES[c] < 0) {
+                return null;
+            }
+            digits++;
+        }
+        if ((digits & 1) != 0) {
+            return null;
+        }
+        byte[] out = new byte[digits / 2];
+        int n = 0;
+        int hi = -1;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            if (hi < 0) {
+                hi = VALUES[c];
+            } else {
+                out[n++] = (byte) ((hi << 4) | VALUES[c]);
+                hi = -1;
+            }
+        }
+        return out;
+    }
+}
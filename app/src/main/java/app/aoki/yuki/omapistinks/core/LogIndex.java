@@ -0,0 +1,428 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Secondary indexes over CallLogger's sequence numbers
+ *
+ * Every field value keeps a posting list of the sequences carrying it; since sequences
+ * only grow, each list is sorted by construction and appending is O(1). A separate
+ * time index keeps (timestamp, sequence) pairs sorted by timestamp for range lookups.
+ * Entries from one process arrive in order and are appended at the tail; entries from
+ * several processes interleave, so an older timestamp goes to a side run instead, which
+ * is sorted and merged in once (O(n + k log k)) when a time range is next looked up.
+ *
+ * Eviction is lazy: lookups ignore sequences below the oldest retained one, and evicted
+ * sequences are compacted away once they outnumber the live ones. All methods are called
+ * under the index monitor; CallLogger updates it while holding its write lock.
+ */
+public final class LogIndex {
+
+    public enum Field {
+        PACKAGE, FUNCTION, TYPE, AID
+    }
+
+    /**
+     * Conjunction of exact-match field values and an inclusive timestamp range
+     * Unset criteria match everything.
+     */
+    public static final class Query {
+        private final EnumMap<Field, String> values = new EnumMap<>(Field.class);
+        private long fromMillis = 0;
+        private long toMillis = Long.MAX_VALUE;
+
+        public Query where(Field field, String value) {
+            if (value != null && !value.isEmpty()) {
+                values.put(field, value);
+            } else {
+                values.remove(field);
+            }
+            return this;
+        }
+
+        public Query timeRange(long fromMillis, long toMillis) {
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            return this;
+        }
+
+        /**
+         * Intersect the time range with [fromMillis, toMillis]
+         */
+        public Query within(long fromMillis, long toMillis) {
+            this.fromMillis = Math.max(this.fromMillis, fromMillis);
+            this.toMillis = Math.min(this.toMillis, toMillis);
+            return this;
+        }
+
+        boolean has(Field field) {
+            return values.containsKey(field);
+        }
+
+        boolean hasTimeRange() {
+            return fromMillis > 0 || toMillis < Long.MAX_VALUE;
+        }
+
+        /**
+         * Time check applied to resolved entries; posting-list plans do not look at timestamps
+         */
+        boolean matchesTime(CallLogEntry entry) {
+            long millis = entry.getTimestampMillis();
+            return millis >= fromMillis && millis <= toMillis;
+        }
+    }
+
+    /**
+     * Ascending sequences carrying one field value
+     */
+    private static final class Postings {
+        long[] seqs = new long[8];
+        int size;
+
+        void add(long seq) {
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+            }
+            seqs[size++] = seq;
+        }
+
+        /**
+         * Index of the first sequence >= seq, searching from position from
+         */
+        int lowerBound(long seq, int from) {
+            int lo = from;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seqs[mid] < seq) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        int count(long oldest) {
+            return size - lowerBound(oldest, 0);
+        }
+
+        void trim(long oldest) {
+            int head = lowerBound(oldest, 0);
+            System.arraycopy(seqs, head, seqs, 0, size - head);
+            size -= head;
+            if (seqs.length > 64 && size < seqs.length / 4) {
+                seqs = Arrays.copyOf(seqs, seqs.length / 2);
+            }
+        }
+    }
+
+    private final EnumMap<Field, Map<String, Postings>> postings = new EnumMap<>(Field.class);
+
+    // Time index: parallel arrays sorted by timestamp
+    private long[] times = new long[1024];
+    private long[] timeSeqs = new long[1024];
+    private int timeSize;
+    // Out-of-order inserts not yet merged into the time index, unsorted
+    private long[] lateTimes = new long[64];
+    private long[] lateSeqs = new long[64];
+    private int lateSize;
+
+    LogIndex() {
+        for (Field field : Field.values()) {
+            postings.put(field, new HashMap<>());
+        }
+    }
+
+    synchronized void add(CallLogEntry entry) {
+        long seq = entry.getSequence();
+        post(Field.PACKAGE, entry.getPackageName(), seq);
+        post(Field.FUNCTION, entry.getFunctionName(), seq);
+        post(Field.TYPE, entry.getType(), seq);
+        if (entry.getAidBytes() != null) {
+            post(Field.AID, entry.getAid(), seq);
+        }
+        insertTime(entry.getTimestampMillis(), seq);
+    }
+
+    private void post(Field field, String value, long seq) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        Map<String, Postings> map = postings.get(field);
+        Postings list = map.get(value);
+        if (list == null) {
+            list = new Postings();
+            map.put(value, list);
+        }
+        list.add(seq);
+    }
+
+    private void insertTime(long millis, long seq) {
+        if (timeSize > 0 && times[timeSize - 1] > millis) {
+            if (lateSize == lateTimes.length) {
+                lateTimes = Arrays.copyOf(lateTimes, lateSize * 2);
+                lateSeqs = Arrays.copyOf(lateSeqs, lateSize * 2);
+            }
+            lateTimes[lateSize] = millis;
+            lateSeqs[lateSize] = seq;
+            lateSize++;
+            return;
+        }
+        if (timeSize == times.length) {
+            times = Arrays.copyOf(times, timeSize * 2);
+            timeSeqs = Arrays.copyOf(timeSeqs, timeSize * 2);
+        }
+        times[timeSize] = millis;
+        timeSeqs[timeSize] = seq;
+        timeSize++;
+    }
+
+    /**
+     * Sort the side run and merge it into the time index, from the back so nothing moves twice
+     */
+    private void mergeLate() {
+        if (lateSize == 0) {
+            return;
+        }
+        sortByTime(lateTimes, lateSeqs, lateSize);
+        int total = timeSize + lateSize;
+        if (total > times.length) {
+            int capacity = Integer.highestOneBit(total) * 2;
+            times = Arrays.copyOf(times, capacity);
+            timeSeqs = Arrays.copyOf(timeSeqs, capacity);
+        }
+        int i = timeSize - 1;
+        int j = lateSize - 1;
+        for (int out = total - 1; j >= 0; out--) {
+            // On equal timestamps the late pair goes after the indexed one
+            if (i >= 0 && times[i] > lateTimes[j]) {
+                times[out] = times[i];
+                timeSeqs[out] = timeSeqs[i];
+                i--;
+            } else {
+                times[out] = lateTimes[j];
+                timeSeqs[out] = lateSeqs[j];
+                j--;
+            }
+        }
+        timeSize = total;
+        lateSize = 0;
+        if (lateTimes.length > 1024) {
+            lateTimes = new long[64];
+            lateSeqs = new long[64];
+        }
+    }
+
+    /**
+     * Stable bottom-up merge sort of (time, seq) pairs by time
+     */
+    private static void sortByTime(long[] keys, long[] values, int n) {
+        long[] keyBuf = new long[n];
+        long[] valueBuf = new long[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(n, lo + 2 * width);
+                if (keys[mid - 1] <= keys[mid]) {
+                    continue;
+                }
+                System.arraycopy(keys, lo, keyBuf, lo, hi - lo);
+                System.arraycopy(values, lo, valueBuf, lo, hi - lo);
+                int a = lo;
+                int b = mid;
+                for (int out = lo; out < hi; out++) {
+                    if (b >= hi || (a < mid && keyBuf[a] <= keyBuf[b])) {
+                        keys[out] = keyBuf[a];
+                        values[out] = valueBuf[a++];
+                    } else {
+                        keys[out] = keyBuf[b];
+                        values[out] = valueBuf[b++];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop evicted sequences once they make up more than half of the index
+     * @param oldest oldest sequence still retained by the store
+     * @param live number of entries the store retains
+     */
+    synchronized void evictBefore(long oldest, int live) {
+        if (timeSize + lateSize <= 2L * live + 1024) {
+            return;
+        }
+        mergeLate();
+        int out = 0;
+        for (int i = 0; i < timeSize; i++) {
+            if (timeSeqs[i] >= oldest) {
+                times[out] = times[i];
+                timeSeqs[out] = timeSeqs[i];
+                out++;
+            }
+        }
+        timeSize = out;
+        int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, out)) * 2);
+        if (capacity < times.length) {
+            times = Arrays.copyOf(times, capacity);
+            timeSeqs = Arrays.copyOf(timeSeqs, capacity);
+        }
+        for (Map<String, Postings> map : postings.values()) {
+            map.values().removeIf(list -> {
+                list.trim(oldest);
+                return list.size == 0;
+            });
+        }
+    }
+
+    synchronized void clear() {
+        for (Map<String, Postings> map : postings.values()) {
+            map.clear();
+        }
+        times = new long[1024];
+        timeSeqs = new long[1024];
+        timeSize = 0;
+        lateTimes = new long[64];
+        lateSeqs = new long[64];
+        lateSize = 0;
+    }
+
+    /**
+     * Live values of a field with their entry counts, most frequent first
+     */
+    synchronized Map<String, Integer> facets(Field field, long oldest) {
+        List<Map.Entry<String, Integer>> counts = new ArrayList<>();
+        for (Map.Entry<String, Postings> e : postings.get(field).entrySet()) {
+            int count = e.getValue().count(oldest);
+            if (count > 0) {
+                counts.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), count));
+            }
+        }
+        Collections.sort(counts, (a, b) -> {
+            int byCount = Integer.compare(b.getValue(), a.getValue());
+            return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+        });
+        Map<String, Integer> out = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> e : counts) {
+            out.put(e.getKey(), e.getValue());
+        }
+        return out;
+    }
+
+    /**
+     * Sequences matching every field criterion of the query, ascending
+     * The time range drives the lookup only when it is the most selective criterion, so
+     * callers must still apply Query.matchesTime to the resolved entries.
+     * @return matching sequences, or null if the query has no criteria (everything matches)
+     */
+    synchronized long[] lookup(Query query, long oldest) {
+        List<Postings> lists = new ArrayList<>(query.values.size());
+        for (Map.Entry<Field, String> e : query.values.entrySet()) {
+            Postings list = postings.get(e.getKey()).get(e.getValue());
+            if (list == null) {
+                return new long[0];
+            }
+            lists.add(list);
+        }
+        int[] counts = new int[lists.size()];
+        int smallest = -1;
+        for (int i = 0; i < lists.size(); i++) {
+            counts[i] = lists.get(i).count(oldest);
+            if (smallest < 0 || counts[i] < counts[smallest]) {
+                smallest = i;
+            }
+        }
+
+        long[] candidates;
+        if (query.hasTimeRange()) {
+            mergeLate();
+            int lo = lowerBoundTime(query.fromMillis);
+            int hi = query.toMillis == Long.MAX_VALUE ? timeSize : upperBoundTime(query.toMillis);
+            if (smallest < 0 || hi - lo < counts[smallest]) {
+                candidates = timeRange(lo, hi, oldest);
+                return intersect(candidates, lists);
+            }
+        } else if (smallest < 0) {
+            return null;
+        }
+
+        Postings driver = lists.remove(smallest);
+        int start = driver.lowerBound(oldest, 0);
+        candidates = Arrays.copyOfRange(driver.seqs, start, driver.size);
+        return intersect(candidates, lists);
+    }
+
+    private long[] timeRange(int lo, int hi, long oldest) {
+        long[] seqs = new long[Math.max(0, hi - lo)];
+        int n = 0;
+        for (int i = lo; i < hi; i++) {
+            if (timeSeqs[i] >= oldest) {
+                seqs[n++] = timeSeqs[i];
+            }
+        }
+        seqs = Arrays.copyOf(seqs, n);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+
+    /**
+     * Keep the (ascending) candidates present in every list; cursors only move forward
+     */
+    private static long[] intersect(long[] candidates, List<Postings> lists) {
+        if (lists.isEmpty()) {
+            return candidates;
+        }
+        int[] cursors = new int[lists.size()];
+        int n = 0;
+        outer:
+        for (long seq : candidates) {
+            for (int i = 0; i < cursors.length; i++) {
+                Postings list = lists.get(i);
+                int pos = list.lowerBound(seq, cursors[i]);
+                cursors[i] = pos;
+                if (pos == list.size || list.seqs[pos] != seq) {
+                    continue outer;
+                }
+            }
+            candidates[n++] = seq;
+        }
+        return Arrays.copyOf(candidates, n);
+    }
+
+    private int lowerBoundTime(long millis) {
+        int lo = 0;
+        int hi = timeSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < millis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int upperBoundTime(long millis) {
+        int lo = 0;
+        int hi = timeSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= millis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,274 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exported bound service that hooked processes bind to for log delivery
+ * submitBatch is oneway, so entries arrive on binder threads without
+ * ActivityManager broadcast queueing or main-thread dispatch; they are handed to
+ * LogIngestor's background thread and the binder thread returns at once
+ *
+ * Each hooked process can also ask for a SharedMemory ring (openRing); EntryCodec records written
+ * there are drained on a single background thread when the producer rings the doorbell,
+ * with a slow periodic poll as a safety net for missed doorbells. The same poll reports
+ * delivery gaps that settled while no entries arrived.
+ *
+ * Trust model: the callers are processes of arbitrary apps (and system_server) that the
+ * module hooks, none of them signed with this app's key, so the service cannot be guarded
+ * by a signature permission and any installed app can bind it. What it accepts is
+ * therefore treated as untrusted diagnostics: payloads are bounds-checked by EntryCodec,
+ * calls from this app's own UID (which never hooks itself) and from isolated processes
+ * (which cannot use OMAPI) are rejected, and each UID holds at most MAX_RINGS_PER_UID
+ * shared memory rings. Entries can still be forged by a hostile app; the log is a
+ * debugging aid, not evidence.
+ */
+public class LogIngestService extends Service {
+
+    private static final String TAG = "OmapiStinks.IngestService";
+
+    private static final long POLL_INTERVAL_MS = 500;
+
+    // Rings one UID may hold at once; a shared UID (system) runs several hooked processes
+    private static final int MAX_RINGS_PER_UID = 16;
+
+    // android.os.UserHandle.PER_USER_RANGE and the isolated app ID range (hidden API)
+    private static final int PER_USER_RANGE = 100000;
+    private static final int FIRST_ISOLATED_APP_ID = 90000;
+    private static final int LAST_ISOLATED_APP_ID = 99999;
+
+    private final Map<Integer, RingSession> rings = new ConcurrentHashMap<>();
+    private ScheduledExecutorService drainer;
+    // UIDs already logged as rejected, so a misbehaving caller does not flood logcat
+    private final Set<Integer> rejectedUids = ConcurrentHashMap.newKeySet();
+
+    private final ILogIngestService.Stub binder = new ILogIngestService.Stub() {
+        @Override
+        public void submitBatch(List<Bundle> entries) {
+            if (entries == null || isRejected("submitBatch")) {
+                return;
+            }
+            LogIngestor.enqueue(null, entries, null);
+        }
+
+        @Override
+        public Bundle openRing(IBinder token) {
+            if (isRejected("openRing")) {
+                return null;
+            }
+            return createRing(Binder.getCallingPid(), Binder.getCallingUid(), token);
+        }
+
+        @Override
+        public void ringDoorbell() {
+            scheduleDrain(Binder.getCallingPid(), Binder.getCallingUid());
+        }
+
+        @Override
+        public void submitEncoded(byte[] payload) {
+            if (payload == null || isRejected("submitEncoded")) {
+                return;
+            }
+            LogIngestor.enqueue(payload, null, null);
+        }
+    };
+
+    /**
+     * Shared memory region and consumer state for one hooked process
+     */
+    private final class RingSession implements IBinder.DeathRecipient {
+        final int pid;
+        final int uid;
+        final SharedMemory memory;
+        final ByteBuffer mapping;
+        final SharedRing ring;
+        final IBinder token;
+
+        RingSession(int pid, int uid, SharedMemory memory, ByteBuffer mapping, SharedRing ring, IBinder token) {
+            this.pid = pid;
+            this.uid = uid;
+            this.memory = memory;
+            this.mapping = mapping;
+            this.ring = ring;
+            this.token = token;
+        }
+
+        @Override
+        public void binderDied() {
+            // Drain what the process managed to write, then release the region
+            ScheduledExecutorService executor = drainer;
+            if (executor != null && !executor.isShutdown()) {
+                executor.execute(() -> {
+                    drain(this);
+                    if (rings.remove(pid, this)) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        void close() {
+            try {
+                token.unlinkToDeath(this, 0);
+            } catch (Throwable ignored) {
+                // Already dead
+            }
+            SharedMemory.unmap(mapping);
+            memory.close();
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "OmapiStinks-ring-drainer");
+            t.setDaemon(true);
+            return t;
+        });
+        drainer.scheduleWithFixedDelay(this::drainAll, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onDestroy() {
+        // Unmap on the drainer thread so no drain can touch a released region
+        drainer.execute(() -> {
+            for (RingSession session : rings.values()) {
+                drain(session);
+                session.close();
+            }
+            rings.clear();
+        });
+        drainer.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Whether the calling UID may deliver entries; see the trust model above
+     */
+    private boolean isRejected(String call) {
+        int uid = Binder.getCallingUid();
+        int appId = uid % PER_USER_RANGE;
+        if (uid != Process.myUid() && (appId < FIRST_ISOLATED_APP_ID || appId > LAST_ISOLATED_APP_ID)) {
+            return false;
+        }
+        if (rejectedUids.add(uid)) {
+            Log.w(TAG, "Rejected " + call + " from UID " + uid + " (PID " + Binder.getCallingPid() + ")");
+        }
+        return true;
+    }
+
+    private Bundle createRing(int pid, int uid, IBinder token) {
+        if (token == null) {
+            return null;
+        }
+        int held = 0;
+        for (RingSession session : rings.values()) {
+            if (session.uid == uid && session.pid != pid) {
+                held++;
+            }
+        }
+        if (held >= MAX_RINGS_PER_UID) {
+            // The caller falls back to submitEncoded
+            Log.w(TAG, "UID " + uid + " already holds " + held + " rings; refused PID " + pid);
+            return null;
+        }
+        try {
+            int size = SharedRing.regionSize(SharedRing.DEFAULT_SLOT_COUNT, SharedRing.DEFAULT_SLOT_SIZE);
+            SharedMemory memory = SharedMemory.create("omapistinks-ring-" + pid, size);
+            ByteBuffer mapping = memory.mapReadWrite();
+            SharedRing ring = SharedRing.format(mapping, SharedRing.DEFAULT_SLOT_COUNT, SharedRing.DEFAULT_SLOT_SIZE);
+
+            RingSession session = new RingSession(pid, uid, memory, mapping, ring, token);
+            try {
+                token.linkToDeath(session, 0);
+            } catch (RemoteException e) {
+                // Caller already died
+                session.close();
+                return null;
+            }
+
+            RingSession previous = rings.put(pid, session);
+            if (previous != null) {
+                drainer.execute(() -> {
+                    drain(previous);
+                    previous.close();
+                });
+            }
+
+            Bundle result = new Bundle();
+            result.putParcelable(Constants.EXTRA_RING, memory);
+            result.putBundle(Constants.EXTRA_STACK_POLICY,
+                    StackCapturePolicy.load(getSharedPreferences(StackCapturePolicy.PREFS_NAME, MODE_PRIVATE)).toBundle());
+            result.putBundle(Constants.EXTRA_CAPTURE_RULES,
+                    CaptureRules.load(getSharedPreferences(CaptureRules.PREFS_NAME, MODE_PRIVATE)).toBundle());
+            result.putBundle(Constants.EXTRA_DELIVERY_POLICY,
+                    DeliveryPolicy.load(getSharedPreferences(DeliveryPolicy.PREFS_NAME, MODE_PRIVATE)).toBundle());
+            Log.d(TAG, "Opened ring for PID " + pid + " (" + size + " bytes)");
+            return result;
+        } catch (Throwable t) {
+            Log.e(TAG, "Error creating ring for PID " + pid + ": " + t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private void scheduleDrain(int pid, int uid) {
+        RingSession session = rings.get(pid);
+        if (session != null && session.uid == uid) {
+            drainer.execute(() -> drain(session));
+        }
+    }
+
+    private void drainAll() {
+        for (RingSession session : rings.values()) {
+            drain(session);
+        }
+        try {
+            LogIngestor.reportSettledGaps();
+        } catch (Exception e) {
+            Log.e(TAG, "Error reporting delivery gaps: " + e.getMessage(), e);
+        }
+    }
+
+    // Runs on the drainer thread only
+    private void drain(RingSession session) {
+        try {
+            if (!session.ring.hasPending()) {
+                return;
+            }
+            long corrupt = session.ring.drain(payload -> {
+                try {
+                    LogIngestor.ingestEncoded(payload);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error ingesting ring record: " + e.getMessage(), e);
+                }
+            });
+            if (corrupt > 0) {
+                Log.w(TAG, "Skipped " + corrupt + " corrupt ring records from PID " + session.pid);
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "Error draining ring for PID " + session.pid + ": " + t.getMessage(), t);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import app.aoki.yuki.omapistinks.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Converts delivered entries (EntryCodec payloads or Bundles) into CallLogger entries
+ * Shared by the Binder service and the broadcast fallback
+ *
+ * Broadcasts and binder submissions are handed to a single background thread (enqueue), so
+ * neither the receiver nor a binder thread waits for journal recovery; whatever has queued
+ * up by the time it runs is decoded together and committed with one CallLogger.addLogs call.
+ * Ring records are already read on the service's drainer thread and are stored directly.
+ * Every path passes its entries through GapDetector, which appends "entries lost" markers.
+ */
+final class LogIngestor {
+
+    private static final String TAG = "OmapiStinks.Ingest";
+
+    // Upper bound on entries committed per micro-batch
+    private static final int MAX_MICRO_BATCH = 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "OmapiStinks-ingest");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ConcurrentLinkedQueue<Delivery> PENDING = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean DRAIN_SCHEDULED = new AtomicBoolean();
+
+    /**
+     * One broadcast or binder submission: an EntryCodec payload or Bundles, plus its completion callback
+     */
+    private static final class Delivery {
+        final byte[] encoded;
+        final List<Bundle> bundles;
+        final Runnable onDone;
+
+        Delivery(byte[] encoded, List<Bundle> bundles, Runnable onDone) {
+            this.encoded = encoded;
+            this.bundles = bundles;
+            this.onDone = onDone;
+        }
+    }
+
+    private LogIngestor() {
+    }
+
+    /**
+     * Ingest on the background thread; onDone runs once the entries are stored
+     * @param encoded EntryCodec payload, or null
+     * @param bundles per-entry Bundles, used when encoded is null
+     * @param onDone completion callback, or null
+     */
+    static void enqueue(byte[] encoded, List<Bundle> bundles, Runnable onDone) {
+        PENDING.offer(new Delivery(encoded, bundles, onDone));
+        if (DRAIN_SCHEDULED.compareAndSet(false, true)) {
+            EXECUTOR.execute(LogIngestor::drainPending);
+        }
+    }
+
+    private static void drainPending() {
+        DRAIN_SCHEDULED.set(false);
+        CaptureJournal.awaitRecovery();
+
+        List<CallLogEntry> entries = new ArrayList<>();
+        List<Runnable> done = new ArrayList<>();
+        int deliveries = 0;
+        Delivery delivery;
+        while (entries.size() < MAX_MICRO_BATCH && (delivery = PENDING.poll()) != null) {
+            deliveries++;
+            try {
+                if (delivery.encoded != null) {
+                    entries.addAll(EntryCodec.decode(delivery.encoded, StackTable.getInstance()));
+                } else if (delivery.bundles != null) {
+                    collect(delivery.bundles, entries);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error decoding delivery: " + e.getMessage(), e);
+            }
+            if (delivery.onDone != null) {
+                done.add(delivery.onDone);
+            }
+        }
+
+        CallLogger.getInstance().addLogs(GapDetector.getInstance().process(entries));
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Micro-batch of " + entries.size() + " logs from " + deliveries + " deliveries stored");
+        }
+        for (Runnable r : done) {
+            r.run();
+        }
+
+        if (!PENDING.isEmpty() && DRAIN_SCHEDULED.compareAndSet(false, true)) {
+            EXECUTOR.execute(LogIngestor::drainPending);
+        }
+    }
+
+    /**
+     * Store every entry of an EntryCodec ring record on the calling thread
+     */
+    static void ingestEncoded(byte[] payload) {
+        CaptureJournal.awaitRecovery();
+        List<CallLogEntry> entries = EntryCodec.decode(payload, StackTable.getInstance());
+        CallLogger.getInstance().addLogs(GapDetector.getInstance().process(entries));
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Encoded batch of " + entries.size() + " logs (" + payload.length + " bytes) stored");
+        }
+    }
+
+    /**
+     * Store markers for gaps that settled while nothing was delivered
+     */
+    static void reportSettledGaps() {
+        List<CallLogEntry> markers = GapDetector.getInstance().settle();
+        if (!markers.isEmpty()) {
+            CallLogger.getInstance().addLogs(markers);
+        }
+    }
+
+    private static void collect(List<Bundle> bundles, List<CallLogEntry> out) {
+        for (Bundle extras : bundles) {
+            CallLogEntry entry = extras != null ? toEntry(extras) : null;
+            if (entry != null) {
+                out.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Build an entry from Bundle extras
+     * @return entry, or null if the extras are not a structured log
+     */
+    private static CallLogEntry toEntry(Bundle extras) {
+        String type = extras.getString(Constants.EXTRA_TYPE);
+        if (type == null) {
+            Log.w(TAG, "Received log without type - ignoring");
+            return null;
+        }
+
+        long threadId = extras.getLong(Constants.EXTRA_THREAD_ID, 0);
+        int processId = extras.getInt(Constants.EXTRA_PROCESS_ID, 0);
+        long executionTimeUs = extras.getLong(Constants.EXTRA_EXECUTION_TIME_US, 0);
+        String error = extras.getString(Constants.EXTRA_ERROR);
+        long timestampNanos = extras.getLong(Constants.EXTRA_TIMESTAMP_NANOS, 0);
+
+        CallLogEntry.Builder builder = new CallLogEntry.Builder()
+                .packageName(extras.getString(Constants.EXTRA_PACKAGE))
+                .functionName(extras.getString(Constants.EXTRA_FUNCTION))
+                .type(type)
+                .apduCommand(getBytes(extras, Constants.EXTRA_APDU_COMMAND))
+                .apduResponse(getBytes(extras, Constants.EXTRA_APDU_RESPONSE))
+                .aid(getBytes(extras, Constants.EXTRA_AID))
+                .selectResponse(getBytes(extras, Constants.EXTRA_SELECT_RESPONSE))
+                .details(extras.getString(Constants.EXTRA_DETAILS))
+                .executionTimeUs(executionTimeUs)
+                // Preserve remote thread/process info
+                .threadId(threadId)
+                .threadName(extras.getString(Constants.EXTRA_THREAD_NAME))
+                .processId(processId);
+
+        // Override timestamps if provided from Xposed (remote process)
+        if (timestampNanos > 0) {
+            builder.timestampNanos(timestampNanos)
+                   .elapsedRealtimeNanos(extras.getLong(Constants.EXTRA_ELAPSED_NANOS, 0));
+        }
+        if (error != null && !error.isEmpty()) {
+            builder.error(error);
+        }
+
+        // Interned stacks are stored once in StackTable; entries keep only the ID
+        StackTraceElement[] stackTraceElements = getStackTrace(extras);
+        long callSiteId = extras.getLong(Constants.EXTRA_CALL_SITE_ID, 0);
+        if (callSiteId != 0) {
+            StackTable.getInstance().put(callSiteId, stackTraceElements);
+            builder.callSiteId(callSiteId);
+        } else if (stackTraceElements != null && stackTraceElements.length > 0) {
+            builder.stackTraceElements(stackTraceElements);
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Received structured log from " + extras.getString(Constants.EXTRA_PACKAGE) + ": "
+                    + extras.getString(Constants.EXTRA_FUNCTION) + " [TID:" + threadId + ", PID:" + processId + ", "
+                    + Timestamps.formatDuration(executionTimeUs) + "]");
+            if (error != null && !error.isEmpty()) {
+                Log.d(TAG, "Log contains error: " + error);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Payloads travel as raw bytes; hex strings are still accepted for manual `am broadcast --es`
+     */
+    private static byte[] getBytes(Bundle extras, String key) {
+        Object value = extras.get(key);
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        if (value instanceof String) {
+            return Hex.decode((String) value);
+        }
+        return null;
+    }
+
+    private static StackTraceElement[] getStackTrace(Bundle extras) {
+        String[] classes = extras.getStringArray(Constants.EXTRA_STACK_CLASSES);
+        if (classes != null) {
+            String[] methods = extras.getStringArray(Constants.EXTRA_STACK_METHODS);
+            String[] files = extras.getStringArray(Constants.EXTRA_STACK_FILES);
+            int[] lines = extras.getIntArray(Constants.EXTRA_STACK_LINES);
+            StackTraceElement[] frames = new StackTraceElement[classes.length];
+            for (int i = 0; i < classes.length; i++) {
+                frames[i] = new StackTraceElement(classes[i],
+                        methods != null && i < methods.length ? methods[i] : "?",
+                        files != null && i < files.length ? files[i] : null,
+                        lines != null && i < lines.length ? lines[i] : -1);
+            }
+            return frames;
+        }
+        // Older module builds still send a serialized array
+        if (Build.VERSION.SDK_INT >= 33) {
+            return extras.getSerializable(Constants.EXTRA_STACKTRACE, StackTraceElement[].class);
+        }
+        java.io.Serializable ser = extras.getSerializable(Constants.EXTRA_STACKTRACE);
+        return ser instanceof StackTraceElement[] ? (StackTraceElement[]) ser : null;
+    }
+}
@@ -0,0 +1,607 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Filter expression parsed once and compiled into a predicate tree over entry fields
+ *
+ * Terms are separated by whitespace and AND-ed; "OR" between two terms makes them
+ * alternatives, and a leading '-' negates a term. Values may be double-quoted.
+ *
+ *   pkg, fn, type        exact (':' or '='), trailing '*' for a prefix, '!=' to exclude
+ *   thread, error, details   ':' contains (case-insensitive), '=' exact, '!='
+ *   aid                  hex bytes; '?' / '*' wildcards fall back to a byte pattern
+ *   cla, ins, p1, p2     command header byte as hex ('?' nibbles allowed), or compared with < > <= >=
+ *   sw                   status word as 4 hex digits, e.g. sw!=9000, sw:6A??
+ *   latency              execution time, e.g. latency>20ms (us, ms, s; ms if no unit)
+ *   age                  time since capture, e.g. age<5m (ms, s, m, h)
+ *   pid, tid             process / thread ID
+ *   has                  error, apdu, stack, aid
+ *   cmd, rsp, hdr, data, apdu   BytePattern in that scope, e.g. cmd:"00A4 04 00"
+ *   bare word            byte pattern or text contained in package, function or details
+ *
+ * Numeric fields read the raw bytes and numbers of the entry; no strings are built while
+ * matching. Entries that lack the field (no APDU for ins/sw) never match a term on it,
+ * whatever the operator; negate the term to select them.
+ *
+ * Exact pkg/fn/type/aid terms and age bounds that are AND-ed at the top level are also
+ * handed to the store's index (narrow) to pick candidates; every term is still checked
+ * by matches, so narrowing is purely an optimization.
+ *
+ * Age terms are relative to the time of each run (or matches call), not to parsing, so a
+ * compiled age<5m keeps sliding as the query is reused. That time is passed down the tree
+ * rather than stored, so one query can be used from several threads at once.
+ */
+public final class LogQuery implements ApduSearch.Matcher {
+
+    /**
+     * Compiled term; now is the reference time of age terms, fixed per run or matches call
+     */
+    private interface Node {
+        boolean test(CallLogEntry entry, long now);
+    }
+
+    private final String source;
+    private final Node root;
+    private final EnumMap<LogIndex.Field, String> indexValues;
+    // Age bounds in ms before now; 0 / Long.MAX_VALUE when unbounded
+    private final long minAgeMs;
+    private final long maxAgeMs;
+
+    private LogQuery(String source, Node root, EnumMap<LogIndex.Field, String> indexValues,
+                     long minAgeMs, long maxAgeMs) {
+        this.source = source;
+        this.root = root;
+        this.indexValues = indexValues;
+        this.minAgeMs = minAgeMs;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Parse and compile a filter expression
+     * @throws IllegalArgumentException with a user-readable message if the text is invalid
+     */
+    public static LogQuery parse(String text) {
+        return new Parser(text).parse();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean matches(CallLogEntry entry) {
+        return root.test(entry, System.currentTimeMillis());
+    }
+
+    /**
+     * Add this query's indexable criteria to an index query
+     * Fields the index query already constrains are left alone; matches still checks them.
+     */
+    public LogIndex.Query narrow(LogIndex.Query query) {
+        return narrow(query, System.currentTimeMillis());
+    }
+
+    private LogIndex.Query narrow(LogIndex.Query query, long now) {
+        for (Map.Entry<LogIndex.Field, String> e : indexValues.entrySet()) {
+            if (!query.has(e.getKey())) {
+                query.where(e.getKey(), e.getValue());
+            }
+        }
+        long fromMillis = maxAgeMs == Long.MAX_VALUE ? 0 : now - maxAgeMs;
+        long toMillis = minAgeMs == 0 ? Long.MAX_VALUE : now - minAgeMs;
+        return query.within(fromMillis, toMillis);
+    }
+
+    /**
+     * Candidates from the index, then the full predicate (in parallel for large inputs)
+     */
+    public List<CallLogEntry> run(CallLogger logger, LogIndex.Query base) {
+        long now = System.currentTimeMillis();
+        return ApduSearch.filter(logger.query(narrow(base, now)), entry -> root.test(entry, now));
+    }
+
+    private static final class Parser {
+        private final String text;
+        private final EnumMap<LogIndex.Field, String> indexValues = new EnumMap<>(LogIndex.Field.class);
+        private long minAgeMs = 0;
+        private long maxAgeMs = Long.MAX_VALUE;
+
+        Parser(String text) {
+            this.text = text != null ? text.trim() : "";
+        }
+
+        LogQuery parse() {
+            List<String> tokens = tokenize(text);
+            List<Node> clauses = new ArrayList<>();
+            List<Node> alternatives = new ArrayList<>();
+            List<String> alternativeTokens = new ArrayList<>();
+            for (int i = 0; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                if (token.equals("OR")) {
+                    if (alternatives.isEmpty() || i + 1 >= tokens.size() || tokens.get(i + 1).equals("OR")) {
+                        throw new IllegalArgumentException("OR needs a term on both sides");
+                    }
+                    continue;
+                }
+                boolean continuesGroup = i > 0 && tokens.get(i - 1).equals("OR");
+                if (!continuesGroup && !alternatives.isEmpty()) {
+                    clauses.add(group(alternatives, alternativeTokens));
+                    alternatives = new ArrayList<>();
+                    alternativeTokens = new ArrayList<>();
+                }
+                alternatives.add(term(token));
+                alternativeTokens.add(token);
+            }
+            if (!alternatives.isEmpty()) {
+                clauses.add(group(alternatives, alternativeTokens));
+            }
+            if (clauses.isEmpty()) {
+                throw new IllegalArgumentException("Empty filter");
+            }
+            Node[] all = clauses.toArray(new Node[0]);
+            Node root = all.length == 1 ? all[0] : (entry, now) -> {
+                for (Node node : all) {
+                    if (!node.test(entry, now)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+            return new LogQuery(text, root, indexValues, minAgeMs, maxAgeMs);
+        }
+
+        /**
+         * OR of the given terms; a lone term may also contribute to the index query
+         */
+        private Node group(List<Node> alternatives, List<String> tokens) {
+            if (alternatives.size() == 1) {
+                collectIndexable(tokens.get(0));
+                return alternatives.get(0);
+            }
+            Node[] any = alternatives.toArray(new Node[0]);
+            return (entry, now) -> {
+                for (Node node : any) {
+                    if (node.test(entry, now)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        private void collectIndexable(String token) {
+            Term t = Term.split(token);
+            if (t == null || t.negated) {
+                return;
+            }
+            boolean equality = t.op.equals(":") || t.op.equals("=");
+            switch (t.key) {
+                case "pkg":
+                case "package":
+                    if (equality && !t.value.endsWith("*")) {
+                        putIndex(LogIndex.Field.PACKAGE, t.value);
+                    }
+                    break;
+                case "fn":
+                case "function":
+                    if (equality && !t.value.endsWith("*")) {
+                        putIndex(LogIndex.Field.FUNCTION, t.value);
+                    }
+                    break;
+                case "type":
+                    if (equality && !t.value.endsWith("*")) {
+                        putIndex(LogIndex.Field.TYPE, t.value);
+                    }
+                    break;
+                case "aid":
+                    byte[] aid = equality ? Hex.decode(t.value) : null;
+                    if (aid != null) {
+                        putIndex(LogIndex.Field.AID, Hex.encode(aid));
+                    }
+                    break;
+                case "age":
+                    long ageMs = parseDuration(t.value, 1_000L) / 1_000L;
+                    if (t.op.startsWith("<")) {
+                        maxAgeMs = Math.min(maxAgeMs, ageMs);
+                    } else if (t.op.startsWith(">")) {
+                        minAgeMs = Math.max(minAgeMs, ageMs);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void putIndex(LogIndex.Field field, String value) {
+            if (!indexValues.containsKey(field)) {
+                indexValues.put(field, value);
+            }
+        }
+
+        private Node term(String token) {
+            Term t = Term.split(token);
+            if (t == null) {
+                boolean negated = token.length() > 1 && token.startsWith("-");
+                Node bare = bareWord(negated ? token.substring(1) : token);
+                return negated ? (entry, now) -> !bare.test(entry, now) : bare;
+            }
+            Node node = fieldTerm(t);
+            return t.negated ? (entry, now) -> !node.test(entry, now) : node;
+        }
+
+        private Node bareWord(String word) {
+            String needle = word.toLowerCase(Locale.ROOT);
+            Node text = (entry, now) -> containsIgnoreCase(entry.getPackageName(), needle)
+                    || containsIgnoreCase(entry.getFunctionName(), needle)
+                    || containsIgnoreCase(entry.getDetails(), needle);
+            BytePattern pattern = BytePattern.parse(word);
+            if (pattern == null) {
+                return text;
+            }
+            return (entry, now) -> pattern.matches(entry) || text.test(entry, now);
+        }
+
+        private Node fieldTerm(Term t) {
+            switch (t.key) {
+                case "pkg":
+                case "package":
+                    return exactString(t, CallLogEntry::getPackageName);
+                case "fn":
+                case "function":
+                    return exactString(t, CallLogEntry::getFunctionName);
+                case "type":
+                    return exactString(t, CallLogEntry::getType);
+                case "thread":
+                    return containsString(t, CallLogEntry::getThreadName);
+                case "error":
+                    return containsString(t, CallLogEntry::getError);
+                case "details":
+                    return containsString(t, CallLogEntry::getDetails);
+                case "aid":
+                    return aidTerm(t);
+                case "cla":
+                    return headerByte(t, 0);
+                case "ins":
+                    return headerByte(t, 1);
+                case "p1":
+                    return headerByte(t, 2);
+                case "p2":
+                    return headerByte(t, 3);
+                case "sw":
+                    return statusWord(t);
+                case "latency": {
+                    long us = parseDuration(t.value, 1_000L);
+                    return (entry, now) -> compare(entry.getExecutionTimeUs(), t.op, us);
+                }
+                case "age": {
+                    long ms = parseDuration(t.value, 1_000L) / 1_000L;
+                    return (entry, now) -> compare(now - entry.getTimestampMillis(), t.op, ms);
+                }
+                case "pid": {
+                    long pid = parseNumber(t);
+                    return (entry, now) -> compare(entry.getProcessId(), t.op, pid);
+                }
+                case "tid": {
+                    long tid = parseNumber(t);
+                    return (entry, now) -> compare(entry.getThreadId(), t.op, tid);
+                }
+                case "has":
+                    return hasTerm(t);
+                case "cmd":
+                case "rsp":
+                case "hdr":
+                case "data":
+                case "apdu":
+                    return patternTerm(t, t.key);
+                default:
+                    throw new IllegalArgumentException("Unknown field '" + t.key + "'");
+            }
+        }
+
+        private interface StringField {
+            String get(CallLogEntry entry);
+        }
+
+        private static Node exactString(Term t, StringField field) {
+            requireEquality(t);
+            boolean prefix = t.value.endsWith("*");
+            String value = prefix ? t.value.substring(0, t.value.length() - 1) : t.value;
+            Node node = prefix
+                    ? (entry, now) -> field.get(entry) != null && field.get(entry).startsWith(value)
+                    : (entry, now) -> value.equals(field.get(entry));
+            return t.op.equals("!=") ? (entry, now) -> field.get(entry) != null && !node.test(entry, now) : node;
+        }
+
+        private static Node containsString(Term t, StringField field) {
+            requireEquality(t);
+            if (t.op.equals(":")) {
+                String needle = t.value.toLowerCase(Locale.ROOT);
+                return (entry, now) -> containsIgnoreCase(field.get(entry), needle);
+            }
+            Node node = (entry, now) -> t.value.equals(field.get(entry));
+            return t.op.equals("!=") ? (entry, now) -> field.get(entry) != null && !node.test(entry, now) : node;
+        }
+
+        private static Node aidTerm(Term t) {
+            requireEquality(t);
+            byte[] aid = Hex.decode(t.value);
+            Node node;
+            if (aid != null) {
+                node = (entry, now) -> java.util.Arrays.equals(aid, entry.getAidBytes());
+            } else {
+                node = patternTerm(new Term(false, "aid", ":", "^" + t.value + "$"), "aid");
+            }
+            return t.op.equals("!=") ? (entry, now) -> entry.getAidBytes() != null && !node.test(entry, now) : node;
+        }
+
+        private static Node headerByte(Term t, int offset) {
+            int[] masked = parseMaskedHex(t, 2);
+            return (entry, now) -> {
+                byte[] command = entry.getApduCommandBytes();
+                if (command == null || command.length <= offset) {
+                    return false;
+                }
+                return compareMasked(command[offset] & 0xFF, t.op, masked);
+            };
+        }
+
+        private static Node statusWord(Term t) {
+            int[] masked = parseMaskedHex(t, 4);
+            return (entry, now) -> {
+                byte[] response = entry.getApduResponseBytes();
+                if (response == null) {
+                    response = entry.getSelectResponseBytes();
+                }
+                if (response == null || response.length < 2) {
+                    return false;
+                }
+                int sw = ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+                return compareMasked(sw, t.op, masked);
+            };
+        }
+
+        private static Node hasTerm(Term t) {
+            requireEquality(t);
+            Node node;
+            switch (t.value.toLowerCase(Locale.ROOT)) {
+                case "error":
+                    node = (entry, now) -> entry.hasError();
+                    break;
+                case "apdu":
+                    node = (entry, now) -> entry.getApduCommandBytes() != null || entry.getApduResponseBytes() != null;
+                    break;
+                case "stack":
+                    node = (entry, now) -> entry.getCallSiteId() != 0 || entry.hasStackTrace();
+                    break;
+                case "aid":
+                    node = (entry, now) -> entry.getAidBytes() != null;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown has: value '" + t.value + "'");
+            }
+            return t.op.equals("!=") ? (entry, now) -> !node.test(entry, now) : node;
+        }
+
+        private static Node patternTerm(Term t, String scope) {
+            requireEquality(t);
+            BytePattern pattern = BytePattern.parse(scope + ":" + t.value);
+            if (pattern == null) {
+                throw new IllegalArgumentException("Invalid byte pattern '" + t.value + "'");
+            }
+            return t.op.equals("!=") ? (entry, now) -> !pattern.matches(entry) : (entry, now) -> pattern.matches(entry);
+        }
+
+        private static void requireEquality(Term t) {
+            if (!t.op.equals(":") && !t.op.equals("=") && !t.op.equals("!=")) {
+                throw new IllegalArgumentException("'" + t.key + "' does not support " + t.op);
+            }
+        }
+
+        /**
+         * @return {value, mask}, where mask is -1 for a fully specified value
+         */
+        private static int[] parseMaskedHex(Term t, int digits) {
+            String v = t.value;
+            if (v.length() != digits) {
+                throw new IllegalArgumentException("'" + t.key + "' needs " + digits + " hex digits");
+            }
+            int value = 0;
+            int mask = 0;
+            for (int i = 0; i < digits; i++) {
+                char c = v.charAt(i);
+                value <<= 4;
+                mask <<= 4;
+                if (c == '?') {
+                    continue;
+                }
+                int d = Character.digit(c, 16);
+                if (d < 0) {
+                    throw new IllegalArgumentException("Invalid hex '" + v + "' for " + t.key);
+                }
+                value |= d;
+                mask |= 0xF;
+            }
+            boolean full = mask == (1 << (4 * digits)) - 1;
+            if (!full && !t.op.equals(":") && !t.op.equals("=") && !t.op.equals("!=")) {
+                throw new IllegalArgumentException("Wildcards cannot be used with " + t.op);
+            }
+            return new int[]{value, full ? -1 : mask};
+        }
+
+        private static boolean compareMasked(int actual, String op, int[] masked) {
+            if (masked[1] == -1) {
+                return compare(actual, op, masked[0]);
+            }
+            boolean equal = (actual & masked[1]) == masked[0];
+            return op.equals("!=") != equal;
+        }
+
+        private static long parseNumber(Term t) {
+            try {
+                return Long.parseLong(t.value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("'" + t.key + "' needs a number");
+            }
+        }
+
+        /**
+         * Parse "20ms", "1.5s", "5m" into microseconds
+         * @param defaultUnitUs microseconds per unit when no suffix is given
+         */
+        private static long parseDuration(String value, long defaultUnitUs) {
+            String v = value.toLowerCase(Locale.ROOT);
+            int end = v.length();
+            while (end > 0 && Character.isLetter(v.charAt(end - 1))) {
+                end--;
+            }
+            String unit = v.substring(end);
+            long unitUs;
+            switch (unit) {
+                case "":
+                    unitUs = defaultUnitUs;
+                    break;
+                case "us":
+                    unitUs = 1L;
+                    break;
+                case "ms":
+                    unitUs = 1_000L;
+                    break;
+                case "s":
+                    unitUs = 1_000_000L;
+                    break;
+                case "m":
+                case "min":
+                    unitUs = 60_000_000L;
+                    break;
+                case "h":
+                    unitUs = 3_600_000_000L;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown time unit '" + unit + "'");
+            }
+            try {
+                return (long) (Double.parseDouble(v.substring(0, end)) * unitUs);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid duration '" + value + "'");
+            }
+        }
+    }
+
+    private static boolean compare(long actual, String op, long expected) {
+        switch (op) {
+            case ":":
+            case "=":
+                return actual == expected;
+            case "!=":
+                return actual != expected;
+            case ">":
+                return actual > expected;
+            case ">=":
+                return actual >= expected;
+            case "<":
+                return actual < expected;
+            case "<=":
+                return actual <= expected;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Case-insensitive substring check without allocating; needle must be lowercase
+     */
+    private static boolean containsIgnoreCase(String haystack, String needle) {
+        if (haystack == null) {
+            return false;
+        }
+        int max = haystack.length() - needle.length();
+        for (int i = 0; i <= max; i++) {
+            if (haystack.regionMatches(true, i, needle, 0, needle.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Split on whitespace; double quotes group characters (and are removed)
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                any = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (any) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                    any = false;
+                }
+            } else {
+                current.append(c);
+                any = true;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unclosed quote");
+        }
+        if (any) {
+            tokens.add(current.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * key op value, e.g. "-sw!=9000" -> negated, "sw", "!=", "9000"
+     */
+    private static final class Term {
+        private static final String[] OPERATORS = {"!=", ">=", "<=", ":", "=", ">", "<"};
+
+        final boolean negated;
+        final String key;
+        final String op;
+        final String value;
+
+        Term(boolean negated, String key, String op, String value) {
+            this.negated = negated;
+            this.key = key;
+            this.op = op;
+            this.value = value;
+        }
+
+        /**
+         * @return the parsed term, or null if the token is a bare word
+         */
+        static Term split(String token) {
+            boolean negated = token.length() > 1 && token.charAt(0) == '-';
+            int start = negated ? 1 : 0;
+            int i = start;
+            while (i < token.length() && Character.isLetterOrDigit(token.charAt(i))) {
+                i++;
+            }
+            if (i == start || i == token.length() || !Character.isLetter(token.charAt(start))) {
+                return null;
+            }
+            for (String op : OPERATORS) {
+                if (token.startsWith(op, i)) {
+                    String value = token.substring(i + op.length());
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException("Missing value after " + token);
+                    }
+                    return new Term(negated, token.substring(start, i).toLowerCase(Locale.ROOT), op, value);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -3,63 +3,56 @@ package app.aoki.yuki.omapistinks.core;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
-import java.util.Arrays;
+import app.aoki.yuki.omapistinks.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Persistent BroadcastReceiver registered in AndroidManifest
- * Captures all OMAPI logs even when the app is not running
+ * Fallback transport used when a hooked process cannot bind LogIngestService
  */
 public class LogReceiver extends BroadcastReceiver {
-    
+
     private static final String TAG = "OmapiStinks.LogReceiver";
-    
+
     @Override
     public void onReceive(Context context, Intent intent) {
         try {
-            Log.d(TAG, "onReceive called with action: " + intent.getAction());
-            
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "onReceive called with action: " + intent.getAction());
+            }
+
             if (Constants.BROADCAST_ACTION.equals(intent.getAction())) {
-                String packageName = intent.getStringExtra(Constants.EXTRA_PACKAGE);
-                String function = intent.getStringExtra(Constants.EXTRA_FUNCTION);
-                String type = intent.getStringExtra(Constants.EXTRA_TYPE);
-                
-                // Check if this is structured data
-                // All logs should now be structured
-                if (type != null) {
-                    String apduCommand = intent.getStringExtra(Constants.EXTRA_APDU_COMMAND);
-                    String apduResponse = intent.getStringExtra(Constants.EXTRA_APDU_RESPONSE);
-                    String aid = intent.getStringExtra(Constants.EXTRA_AID);
-                    String selectResponse = intent.getStringExtra(Constants.EXTRA_SELECT_RESPONSE);
-                    String details = intent.getStringExtra(Constants.EXTRA_DETAILS);
-                    long threadId = intent.getLongExtra(Constants.EXTRA_THREAD_ID, 0);
-                    String threadName = intent.getStringExtra(Constants.EXTRA_THREAD_NAME);
-                    int processId = intent.getIntExtra(Constants.EXTRA_PROCESS_ID, 0);
-                    long executionTimeMs = intent.getLongExtra(Constants.EXTRA_EXECUTION_TIME_MS, 0);
-                    String error = intent.getStringExtra(Constants.EXTRA_ERROR);
-                    String timestamp = intent.getStringExtra(Constants.EXTRA_TIMESTAMP);
-                    String shortTimestamp = intent.getStringExtra(Constants.EXTRA_SHORT_TIMESTAMP);
-                    StackTraceElement[] stackTraceElements = intent.getSerializableExtra(Constants.EXTRA_STACKTRACE, StackTraceElement[].class);
-                    Log.d(TAG, "stackTraceElements: " + Arrays.toString(stackTraceElements));
-                    
-                    Log.d(TAG, "Received structured log from " + packageName + ": " + function + " [TID:" + threadId + ", PID:" + processId + ", " + executionTimeMs + "ms]");
-                    if (error != null && !error.isEmpty()) {
-                        Log.e(TAG, "Log contains error: " + error);
+                byte[] encoded = intent.getByteArrayExtra(Constants.EXTRA_ENCODED);
+                List<Bundle> bundles = null;
+                if (encoded == null) {
+                    bundles = getBatch(intent);
+                    if (bundles == null && intent.getExtras() != null) {
+                        // Single entry (e.g. manual `am broadcast`)
+                        bundles = Collections.singletonList(intent.getExtras());
                     }
-                    
-                    CallLogger.getInstance().addStructuredLog(packageName, function, type,
-                                                             apduCommand, apduResponse,
-                                                             aid, selectResponse, details,
-                                                             threadId, threadName, processId, executionTimeMs, error,
-                                                             timestamp, shortTimestamp, stackTraceElements);
-                    Log.d(TAG, "Structured log stored. Total logs: " + CallLogger.getInstance().getLogs().size());
-                } else {
-                    Log.w(TAG, "Received log without type - ignoring");
+                }
+                if (encoded != null || bundles != null) {
+                    // Decode and store off the main thread; keep the receiver alive until then
+                    PendingResult result = goAsync();
+                    LogIngestor.enqueue(encoded, bundles, result::finish);
                 }
             }
         } catch (Exception e) {
             Log.e(TAG, "Error in onReceive: " + e.getMessage(), e);
         }
     }
+
+    private static ArrayList<Bundle> getBatch(Intent intent) {
+        if (Build.VERSION.SDK_INT >= 33) {
+            return intent.getParcelableArrayListExtra(Constants.EXTRA_BATCH, Bundle.class);
+        }
+        return intent.getParcelableArrayListExtra(Constants.EXTRA_BATCH);
+    }
 }
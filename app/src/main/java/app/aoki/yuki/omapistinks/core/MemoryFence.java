@@ -0,0 +1,82 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for data shared with another process through SharedMemory
+ *
+ * Plain ByteBuffer accesses carry no ordering, and Java volatiles only order accesses to
+ * Java fields, so SharedRing publishes its indices between explicit fences. They come from
+ * sun.misc.Unsafe (loadFence/storeFence/fullFence, present on every supported Android
+ * release). If that is unavailable a volatile read/write pair stands in; records torn by the
+ * missing ordering are then still caught by the ring's CRC.
+ */
+final class MemoryFence {
+
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+    private static final MethodHandle FULL_FENCE;
+
+    private static volatile int fallback;
+
+    static {
+        MethodHandle load = null;
+        MethodHandle store = null;
+        MethodHandle full = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            load = lookup.unreflect(unsafeClass.getMethod("loadFence")).bindTo(unsafe);
+            store = lookup.unreflect(unsafeClass.getMethod("storeFence")).bindTo(unsafe);
+            full = lookup.unreflect(unsafeClass.getMethod("fullFence")).bindTo(unsafe);
+        } catch (Throwable t) {
+            load = null;
+            store = null;
+            full = null;
+        }
+        LOAD_FENCE = load;
+        STORE_FENCE = store;
+        FULL_FENCE = full;
+    }
+
+    private MemoryFence() {
+    }
+
+    /**
+     * Loads before the fence complete before loads and stores after it (acquire)
+     */
+    static void load() {
+        invoke(LOAD_FENCE);
+    }
+
+    /**
+     * Stores before the fence become visible before stores after it
+     */
+    static void store() {
+        invoke(STORE_FENCE);
+    }
+
+    /**
+     * Orders all loads and stores before the fence with all after it
+     */
+    static void full() {
+        invoke(FULL_FENCE);
+    }
+
+    private static void invoke(MethodHandle fence) {
+        if (fence != null) {
+            try {
+                fence.invokeExact();
+                return;
+            } catch (Throwable ignored) {
+                // Fall through to the volatile pair
+            }
+        }
+        fallback = fallback + 1;
+    }
+}
@@ -0,0 +1,20 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.app.Application;
+import android.content.SharedPreferences;
+
+/**
+ * Application entry point; applies persisted logger settings and starts journal recovery
+ * before any component runs
+ */
+public class OmapiStinksApp extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        SharedPreferences prefs = getSharedPreferences(CallLogger.PREFS_NAME, MODE_PRIVATE);
+        CallLogger.getInstance().setCapacity(prefs.getInt(CallLogger.KEY_CAPACITY, CallLogger.DEFAULT_CAPACITY));
+        // Restore the previous capture in the background; ingestion waits for it
+        CaptureJournal.start(this);
+    }
+}
@@ -0,0 +1,252 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Single-producer ring buffer of fixed-size slots laid out in a shared memory region
+ *
+ * Layout:
+ *   header (64 bytes): magic, version, slotCount, slotSize, writeSeq, readSeq
+ *   slots: [seq (8)][length (4)][crc32 (4)][payload (slotSize - 16)]
+ *
+ * The hooked process is the only writer of writeSeq and slot contents; the logger app
+ * is the only writer of readSeq. Every slot carries the sequence number it was written
+ * with, so the reader can tell a published record from a stale one, and a CRC against
+ * a producer that corrupts its slots. Indices are published between MemoryFence calls so
+ * the other process never sees an index before the bytes it covers. A full ring refuses
+ * writes rather than overwriting unread records.
+ */
+public final class SharedRing {
+
+    public static final int DEFAULT_SLOT_COUNT = 512;
+    public static final int DEFAULT_SLOT_SIZE = 4096;
+
+    private static final int MAGIC = 0x4F4D5242; // "OMRB"
+    // 2: records are EntryCodec payloads (1 held marshalled Bundles)
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_SLOT_COUNT = 8;
+    private static final int OFF_SLOT_SIZE = 12;
+    private static final int OFF_WRITE_SEQ = 16;
+    private static final int OFF_READ_SEQ = 24;
+
+    private static final int SLOT_HEADER_SIZE = 16;
+    private static final int SLOT_OFF_SEQ = 0;
+    private static final int SLOT_OFF_LENGTH = 8;
+    private static final int SLOT_OFF_CRC = 12;
+
+    // Marks a slot the producer is currently rewriting
+    private static final long SEQ_WRITING = -1L;
+
+    /**
+     * Receives each record drained from the ring
+     */
+    public interface RecordHandler {
+        void onRecord(byte[] payload);
+    }
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer view;
+    private final int slotCount;
+    private final int slotSize;
+    private final CRC32 crc = new CRC32();
+
+    // Producer: next sequence to write. Consumer: next sequence to read.
+    private long cursor;
+
+    private SharedRing(ByteBuffer buffer, int slotCount, int slotSize, long cursor) {
+        this.buffer = buffer;
+        this.view = buffer.duplicate();
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Size in bytes of a region holding the given number of slots
+     */
+    public static int regionSize(int slotCount, int slotSize) {
+        return HEADER_SIZE + slotCount * slotSize;
+    }
+
+    /**
+     * Initialize a freshly created region and return its consumer side
+     */
+    public static SharedRing format(ByteBuffer buffer, int slotCount, int slotSize) {
+        if (buffer.capacity() < regionSize(slotCount, slotSize) || slotSize <= SLOT_HEADER_SIZE) {
+            throw new IllegalArgumentException("Region too small for ring");
+        }
+        buffer.putInt(OFF_MAGIC, MAGIC);
+        buffer.putInt(OFF_VERSION, VERSION);
+        buffer.putInt(OFF_SLOT_COUNT, slotCount);
+        buffer.putInt(OFF_SLOT_SIZE, slotSize);
+        buffer.putLong(OFF_WRITE_SEQ, 0);
+        buffer.putLong(OFF_READ_SEQ, 0);
+        for (int i = 0; i < slotCount; i++) {
+            buffer.putLong(slotOffset(i, slotSize) + SLOT_OFF_SEQ, SEQ_WRITING);
+        }
+        return new SharedRing(buffer, slotCount, slotSize, 0);
+    }
+
+    /**
+     * Attach to a region formatted by the logger app and return its producer side
+     * @return ring, or null if the region is not a compatible ring
+     */
+    public static SharedRing attach(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(OFF_MAGIC) != MAGIC
+                || buffer.getInt(OFF_VERSION) != VERSION) {
+            return null;
+        }
+        int slotCount = buffer.getInt(OFF_SLOT_COUNT);
+        int slotSize = buffer.getInt(OFF_SLOT_SIZE);
+        if (slotCount <= 0 || slotSize <= SLOT_HEADER_SIZE
+                || buffer.capacity() < regionSize(slotCount, slotSize)) {
+            return null;
+        }
+        return new SharedRing(buffer, slotCount, slotSize, buffer.getLong(OFF_WRITE_SEQ));
+    }
+
+    private static int slotOffset(int index, int slotSize) {
+        return HEADER_SIZE + index * slotSize;
+    }
+
+    private int slotFor(long seq) {
+        return slotOffset((int) (seq % slotCount), slotSize);
+    }
+
+    /**
+     * Largest payload that fits into a single slot
+     */
+    public int maxPayload() {
+        return slotSize - SLOT_HEADER_SIZE;
+    }
+
+    // ---- Producer side ----
+
+    /**
+     * Sequence the next write will use; pass it to needsDoorbell after writing
+     */
+    public long writePosition() {
+        return cursor;
+    }
+
+    /**
+     * Decide after writing whether the reader has to be woken
+     * The reader publishes its position and then re-reads the write index, and this
+     * publishes the write index and then reads the reader's position, each with a full
+     * fence in between; so either the reader sees the new records on its own or this
+     * returns true.
+     * @param since writePosition() before the records were written
+     * @return true if the reader had consumed everything before them and may be idle
+     */
+    public boolean needsDoorbell(long since) {
+        if (cursor == since) {
+            return false;
+        }
+        MemoryFence.full();
+        return buffer.getLong(OFF_READ_SEQ) >= since;
+    }
+
+    /**
+     * Append one record
+     * @return false if the payload does not fit a slot or the ring is full; the caller
+     *         should deliver that record another way
+     */
+    public boolean write(byte[] payload) {
+        if (payload.length > maxPayload()) {
+            return false;
+        }
+        long seq = cursor;
+        long readSeq = buffer.getLong(OFF_READ_SEQ);
+        // The reader is done with every slot below readSeq before we reuse one
+        MemoryFence.load();
+        if (seq - readSeq >= slotCount) {
+            return false;
+        }
+        int off = slotFor(seq);
+
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+
+        buffer.putLong(off + SLOT_OFF_SEQ, SEQ_WRITING);
+        MemoryFence.store();
+        buffer.putInt(off + SLOT_OFF_LENGTH, payload.length);
+        buffer.putInt(off + SLOT_OFF_CRC, (int) crc.getValue());
+        view.position(off + SLOT_HEADER_SIZE);
+        view.put(payload, 0, payload.length);
+        // Publish: slot contents, then the slot sequence, then the ring's write cursor
+        MemoryFence.store();
+        buffer.putLong(off + SLOT_OFF_SEQ, seq);
+        MemoryFence.store();
+        cursor = seq + 1;
+        buffer.putLong(OFF_WRITE_SEQ, cursor);
+        return true;
+    }
+
+    // ---- Consumer side ----
+
+    /**
+     * @return true if records are waiting to be drained
+     */
+    public boolean hasPending() {
+        return buffer.getLong(OFF_WRITE_SEQ) > cursor;
+    }
+
+    /**
+     * Hand every published record to the handler and publish the new read position
+     * The producer never overwrites unread slots (write() refuses when full), so records
+     * cannot be lost here; a record whose length or CRC is wrong can only come from a
+     * misbehaving producer and is skipped.
+     * @return number of corrupt records skipped
+     */
+    public long drain(RecordHandler handler) {
+        long corrupt = 0;
+        while (true) {
+            long writeSeq = buffer.getLong(OFF_WRITE_SEQ);
+            MemoryFence.load();
+            long start = cursor;
+            while (cursor < writeSeq) {
+                int off = slotFor(cursor);
+                long slotSeq = buffer.getLong(off + SLOT_OFF_SEQ);
+                MemoryFence.load();
+                if (slotSeq != cursor) {
+                    // Published out of order by the producer; retry on the next doorbell or poll
+                    break;
+                }
+
+                int length = buffer.getInt(off + SLOT_OFF_LENGTH);
+                int expectedCrc = buffer.getInt(off + SLOT_OFF_CRC);
+                if (length < 0 || length > maxPayload()) {
+                    corrupt++;
+                    cursor++;
+                    continue;
+                }
+                byte[] payload = new byte[length];
+                view.position(off + SLOT_HEADER_SIZE);
+                view.get(payload, 0, length);
+                cursor++;
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    corrupt++;
+                    continue;
+                }
+                handler.onRecord(payload);
+            }
+            if (cursor == start) {
+                return corrupt;
+            }
+            // Slots are copied before the producer may reuse them; then look for records
+            // written meanwhile, which the producer may not have rung the doorbell for
+            MemoryFence.full();
+            buffer.putLong(OFF_READ_SEQ, cursor);
+            MemoryFence.full();
+        }
+    }
+}
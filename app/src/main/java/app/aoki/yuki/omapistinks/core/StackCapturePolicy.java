@@ -0,0 +1,155 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which hooked calls get a stack snapshot, and how deep it is kept
+ *
+ * The logger app persists the policy in its preferences and hands it to each hooked
+ * process when the process opens its ring (see LogIngestService.openRing); until then
+ * the hooked process uses the defaults.
+ */
+public final class StackCapturePolicy {
+
+    public enum Mode {
+        ALWAYS,
+        EVERY_NTH,
+        SLOW_OR_FAILED,
+        NEVER
+    }
+
+    public static final String PREFS_NAME = "stack_capture";
+
+    public static final int DEFAULT_MAX_DEPTH = 32;
+    public static final int DEFAULT_SAMPLE_INTERVAL = 10;
+    public static final long DEFAULT_SLOW_THRESHOLD_US = 50_000;
+
+    private static final String KEY_MODE = "mode";
+    private static final String KEY_MAX_DEPTH = "maxDepth";
+    private static final String KEY_SAMPLE_INTERVAL = "sampleInterval";
+    private static final String KEY_SLOW_THRESHOLD_US = "slowThresholdUs";
+
+    public static final StackCapturePolicy DEFAULT = new StackCapturePolicy(
+            Mode.ALWAYS, DEFAULT_MAX_DEPTH, DEFAULT_SAMPLE_INTERVAL, DEFAULT_SLOW_THRESHOLD_US);
+
+    private static volatile StackCapturePolicy current = DEFAULT;
+    private static final AtomicLong calls = new AtomicLong();
+
+    private final Mode mode;
+    private final int maxDepth;
+    private final int sampleInterval;
+    private final long slowThresholdUs;
+
+    public StackCapturePolicy(Mode mode, int maxDepth, int sampleInterval, long slowThresholdUs) {
+        this.mode = mode != null ? mode : Mode.ALWAYS;
+        this.maxDepth = maxDepth > 0 ? maxDepth : DEFAULT_MAX_DEPTH;
+        this.sampleInterval = sampleInterval > 0 ? sampleInterval : DEFAULT_SAMPLE_INTERVAL;
+        this.slowThresholdUs = slowThresholdUs >= 0 ? slowThresholdUs : DEFAULT_SLOW_THRESHOLD_US;
+    }
+
+    /**
+     * Policy in effect for this process
+     */
+    public static StackCapturePolicy current() {
+        return current;
+    }
+
+    public static void setCurrent(StackCapturePolicy policy) {
+        current = policy != null ? policy : DEFAULT;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public long getSlowThresholdUs() {
+        return slowThresholdUs;
+    }
+
+    /**
+     * @param executionTimeUs duration of the hooked call
+     * @param failed whether the call threw or returned an error status
+     * @return true if this call should carry a stack snapshot
+     */
+    public boolean shouldCapture(long executionTimeUs, boolean failed) {
+        switch (mode) {
+            case ALWAYS:
+                return true;
+            case EVERY_NTH:
+                return calls.getAndIncrement() % sampleInterval == 0;
+            case SLOW_OR_FAILED:
+                return failed || executionTimeUs >= slowThresholdUs;
+            default:
+                return false;
+        }
+    }
+
+    public Bundle toBundle() {
+        Bundle b = new Bundle();
+        b.putString(KEY_MODE, mode.name());
+        b.putInt(KEY_MAX_DEPTH, maxDepth);
+        b.putInt(KEY_SAMPLE_INTERVAL, sampleInterval);
+        b.putLong(KEY_SLOW_THRESHOLD_US, slowThresholdUs);
+        return b;
+    }
+
+    /**
+     * @return policy read from the Bundle, or null if it carries none
+     */
+    public static StackCapturePolicy fromBundle(Bundle b) {
+        if (b == null || b.getString(KEY_MODE) == null) {
+            return null;
+        }
+        return new StackCapturePolicy(
+                parseMode(b.getString(KEY_MODE)),
+                b.getInt(KEY_MAX_DEPTH, DEFAULT_MAX_DEPTH),
+                b.getInt(KEY_SAMPLE_INTERVAL, DEFAULT_SAMPLE_INTERVAL),
+                b.getLong(KEY_SLOW_THRESHOLD_US, DEFAULT_SLOW_THRESHOLD_US));
+    }
+
+    public static StackCapturePolicy load(SharedPreferences prefs) {
+        return new StackCapturePolicy(
+                parseMode(prefs.getString(KEY_MODE, null)),
+                prefs.getInt(KEY_MAX_DEPTH, DEFAULT_MAX_DEPTH),
+                prefs.getInt(KEY_SAMPLE_INTERVAL, DEFAULT_SAMPLE_INTERVAL),
+                prefs.getLong(KEY_SLOW_THRESHOLD_US, DEFAULT_SLOW_THRESHOLD_US));
+    }
+
+    public void save(SharedPreferences prefs) {
+        prefs.edit()
+                .putString(KEY_MODE, mode.name())
+                .putInt(KEY_MAX_DEPTH, maxDepth)
+                .putInt(KEY_SAMPLE_INTERVAL, sampleInterval)
+                .putLong(KEY_SLOW_THRESHOLD_US, slowThresholdUs)
+                .apply();
+    }
+
+    /**
+     * Copy of this policy with a different mode
+     */
+    public StackCapturePolicy withMode(Mode newMode) {
+        return new StackCapturePolicy(newMode, maxDepth, sampleInterval, slowThresholdUs);
+    }
+
+    private static Mode parseMode(String name) {
+        if (name != null) {
+            try {
+                return Mode.valueOf(name);
+            } catch (IllegalArgumentException ignored) {
+                // Unknown mode from a newer version
+            }
+        }
+        return DEFAULT.mode;
+    }
+}
@@ -0,0 +1,56 @@
+package app.aoki.yuki.omapistinks.core;
+
+/**
+ * Unsymbolized call stack captured on the hooked thread
+ *
+ * Constructing a Throwable only records the raw frames (method + dex pc) on ART;
+ * StackTraceElement objects are built when resolve() runs, which happens on the
+ * flusher thread instead of inside the hooked call.
+ */
+public final class StackSnapshot {
+
+    private final Throwable trace;
+    private final int maxDepth;
+
+    private StackSnapshot(Throwable trace, int maxDepth) {
+        this.trace = trace;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Record the current thread's stack
+     * @param maxDepth maximum number of frames kept once resolved
+     */
+    public static StackSnapshot capture(int maxDepth) {
+        return new StackSnapshot(new Throwable(), maxDepth);
+    }
+
+    /**
+     * Symbolize the snapshot, skipping internal frames above the Xposed hook dispatcher
+     * @return frames, or null if none could be obtained
+     */
+    public StackTraceElement[] resolve() {
+        StackTraceElement[] frames;
+        try {
+            frames = trace.getStackTrace();
+        } catch (Throwable ignored) {
+            return null;
+        }
+        if (frames == null || frames.length == 0) {
+            return null;
+        }
+
+        int start = 0;
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i].getClassName().contains("XC_MethodHook")) {
+                start = i;
+                break;
+            }
+        }
+
+        int available = Math.min(frames.length - start, maxDepth);
+        StackTraceElement[] out = new StackTraceElement[available];
+        System.arraycopy(frames, start, out, 0, available);
+        return out;
+    }
+}
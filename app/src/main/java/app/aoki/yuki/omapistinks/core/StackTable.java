@@ -0,0 +1,75 @@
+package app.aoki.yuki.omapistinks.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned call stacks keyed by call-site ID
+ *
+ * A hooked process sends the frames of a call site only the first time it reports it;
+ * later entries carry just the ID and resolve their frames here. Frames travel inside
+ * EntryCodec payloads, and entries may arrive before the one carrying the frames (a ring
+ * record overtaken by a submitEncoded payload, or the other way round), so lookups happen
+ * lazily when the stack is displayed rather than at ingest time.
+ */
+public final class StackTable {
+
+    private static final StackTable INSTANCE = new StackTable();
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Long, StackTraceElement[]> stacks = new ConcurrentHashMap<>();
+
+    private StackTable() {
+    }
+
+    public static StackTable getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Stable 64-bit ID of a stack (FNV-1a over class, method, file and line of every frame)
+     * @return non-zero ID; 0 is reserved for "no call site"
+     */
+    public static long callSiteId(StackTraceElement[] frames) {
+        long h = FNV_OFFSET;
+        for (StackTraceElement frame : frames) {
+            h = mix(h, frame.getClassName());
+            h = mix(h, frame.getMethodName());
+            h = mix(h, frame.getFileName());
+            h = (h ^ frame.getLineNumber()) * FNV_PRIME;
+        }
+        return h != 0 ? h : 1;
+    }
+
+    private static long mix(long h, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Field separator so ("ab", "c") and ("a", "bc") differ
+        return (h ^ 0xFFFF) * FNV_PRIME;
+    }
+
+    /**
+     * Remember the frames of a call site; the first copy wins
+     */
+    public void put(long callSiteId, StackTraceElement[] frames) {
+        if (callSiteId != 0 && frames != null && frames.length > 0) {
+            stacks.putIfAbsent(callSiteId, frames);
+        }
+    }
+
+    /**
+     * @return frames of the call site, or null if they have not been received
+     */
+    public StackTraceElement[] get(long callSiteId) {
+        return callSiteId != 0 ? stacks.get(callSiteId) : null;
+    }
+
+    public int size() {
+        return stacks.size();
+    }
+}
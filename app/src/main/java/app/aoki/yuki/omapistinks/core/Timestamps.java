@@ -0,0 +1,99 @@
+package app.aoki.yuki.omapistinks.core;
+
+import android.os.SystemClock;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Epoch-nanosecond timestamps and their display formatting
+ *
+ * Entries store a monotonic elapsedRealtimeNanos plus a wall-clock epoch in nanoseconds
+ * derived from it through a per-process anchor, so capturing a timestamp never formats
+ * anything. Text is produced only at display/export time with shared, immutable
+ * (thread-safe) formatters. The default locale and time zone are checked on every call
+ * and the formatters rebuilt when either changed, so a time zone or language change
+ * applies without restarting the app.
+ */
+public final class Timestamps {
+
+    // Wall clock and monotonic clock sampled together once per process
+    private static final long ANCHOR_EPOCH_NANOS = System.currentTimeMillis() * 1_000_000L;
+    private static final long ANCHOR_ELAPSED_NANOS = SystemClock.elapsedRealtimeNanos();
+
+    private static volatile Formats formats;
+
+    /**
+     * Formatters for one locale and time zone
+     */
+    private static final class Formats {
+        final Locale locale;
+        final ZoneId zone;
+        final DateTimeFormatter full;
+        final DateTimeFormatter time;
+
+        Formats(Locale locale, ZoneId zone) {
+            this.locale = locale;
+            this.zone = zone;
+            this.full = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS", locale).withZone(zone);
+            this.time = DateTimeFormatter.ofPattern("HH:mm:ss.SSS", locale).withZone(zone);
+        }
+    }
+
+    private Timestamps() {
+    }
+
+    private static Formats formats() {
+        Locale locale = Locale.getDefault();
+        ZoneId zone = ZoneId.systemDefault();
+        Formats f = formats;
+        if (f == null || !f.locale.equals(locale) || !f.zone.equals(zone)) {
+            f = new Formats(locale, zone);
+            formats = f;
+        }
+        return f;
+    }
+
+    /**
+     * Wall-clock epoch nanoseconds corresponding to an elapsedRealtimeNanos reading
+     */
+    public static long epochNanos(long elapsedRealtimeNanos) {
+        return ANCHOR_EPOCH_NANOS + (elapsedRealtimeNanos - ANCHOR_ELAPSED_NANOS);
+    }
+
+    /**
+     * Format as "yyyy-MM-dd HH:mm:ss.SSS" in the default time zone
+     */
+    public static String formatFull(long epochNanos) {
+        return formats().full.format(toInstant(epochNanos));
+    }
+
+    /**
+     * Format as "HH:mm:ss.SSS" in the default time zone
+     */
+    public static String formatShort(long epochNanos) {
+        return formats().time.format(toInstant(epochNanos));
+    }
+
+    /**
+     * Format a duration given in microseconds, e.g. "850 µs" or "12.345 ms"
+     */
+    public static String formatDuration(long micros) {
+        if (micros < 1000) {
+            return micros + " µs";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(micros / 1000).append('.');
+        long frac = micros % 1000;
+        if (frac < 100) sb.append('0');
+        if (frac < 10) sb.append('0');
+        return sb.append(frac).append(" ms").toString();
+    }
+
+    private static Instant toInstant(long epochNanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L),
+                Math.floorMod(epochNanos, 1_000_000_000L));
+    }
+}
@@ -1,41 +1,55 @@
 package app.aoki.yuki.omapistinks.ui;
 
-import app.aoki.yuki.omapistinks.core.ApduInfo;
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
-import app.aoki.yuki.omapistinks.core.Constants;
+import app.aoki.yuki.omapistinks.core.Hex;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
  * Handles CSV export functionality for CallLogEntry data
- * Provides proper CSV formatting with escaping and comprehensive field coverage
+ * Rows are streamed to the output one at a time, so memory use does not depend on the
+ * number of entries
  */
-public class CsvExporter {
-    
+public class CsvExporter implements ExportTask.EntryWriter {
+
+    public static final String MIME_TYPE = "text/csv";
+    public static final String EXTENSION = ".csv";
+
+    // Entries between progress reports
+    private static final int PROGRESS_STEP = 256;
+
     /**
-     * Exports a list of CallLogEntry objects to CSV format
-     * 
-     * @param entries List of log entries to export
-     * @return CSV formatted string with header and data rows
+     * Streams a list of CallLogEntry objects as CSV (header first, one row per entry)
+     * Stops early, leaving a partial file, when the progress callback reports cancellation.
      */
-    public static String exportToCsv(List<CallLogEntry> entries) {
-        if (entries == null || entries.isEmpty()) {
-            return "";
-        }
-        
-        StringBuilder csvBuilder = new StringBuilder();
-        
+    @Override
+    public void write(List<CallLogEntry> entries, OutputStream out, ExportTask.Progress progress) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        StringBuilder row = new StringBuilder(256);
+
         // CSV Header
-        appendCsvHeader(csvBuilder);
-        
+        appendCsvHeader(row);
+        writer.append(row);
+
         // CSV Data rows
-        for (CallLogEntry entry : entries) {
-            appendCsvRow(csvBuilder, entry);
+        for (int i = 0; i < entries.size(); i++) {
+            row.setLength(0);
+            appendCsvRow(row, entries.get(i));
+            writer.append(row);
+            if ((i + 1) % PROGRESS_STEP == 0 && !progress.update(i + 1)) {
+                writer.flush();
+                return;
+            }
         }
-        
-        return csvBuilder.toString();
+        writer.flush();
+        progress.update(entries.size());
     }
-    
+
     /**
      * Appends CSV header row with all column names
      */
@@ -47,7 +61,7 @@ public class CsvExporter {
                .append("Thread ID,")
                .append("Thread Name,")
                .append("Process ID,")
-               .append("Execution Time (ms),")
+               .append("Execution Time (us),")
                .append("APDU Command,")
                .append("APDU Response,")
                .append("AID,")
@@ -55,9 +69,10 @@ public class CsvExporter {
                .append("Details")
                .append("\n");
     }
-    
+
     /**
      * Appends a single log entry as a CSV row
+     * Byte fields are hex-encoded straight into the row buffer (hex never needs escaping)
      */
     private static void appendCsvRow(StringBuilder builder, CallLogEntry entry) {
         builder.append(escapeCsv(entry.getTimestamp())).append(",");
@@ -67,27 +82,27 @@ public class CsvExporter {
         builder.append(entry.getThreadId()).append(",");
         builder.append(escapeCsv(entry.getThreadName())).append(",");
         builder.append(entry.getProcessId()).append(",");
-        builder.append(entry.getExecutionTimeMs()).append(",");
-        
-        // APDU Command and Response
-        if (entry.getApduInfo() != null) {
-            builder.append(escapeCsv(entry.getApduInfo().getCommand())).append(",");
-            builder.append(escapeCsv(entry.getApduInfo().getResponse())).append(",");
-        } else {
-            builder.append(",,");
-        }
-        
-        // AID, Select Response, Details
-        builder.append(escapeCsv(entry.getAid())).append(",");
-        builder.append(escapeCsv(entry.getSelectResponse())).append(",");
+        builder.append(entry.getExecutionTimeUs()).append(",");
+
+        // APDU Command and Response, AID, Select Response
+        appendHex(builder, entry.getApduCommandBytes()).append(",");
+        appendHex(builder, entry.getApduResponseBytes()).append(",");
+        appendHex(builder, entry.getAidBytes()).append(",");
+        appendHex(builder, entry.getSelectResponseBytes()).append(",");
+
+        // Details
         builder.append(escapeCsv(entry.getDetails()));
         builder.append("\n");
     }
-    
+
+    private static StringBuilder appendHex(StringBuilder builder, byte[] bytes) {
+        return bytes != null ? Hex.append(builder, bytes, 0, bytes.length) : builder;
+    }
+
     /**
      * Escapes a string value for CSV format
      * Handles commas, quotes, and newlines according to RFC 4180
-     * 
+     *
      * @param value The string value to escape
      * @return Escaped string suitable for CSV, or empty string if value is null
      */
@@ -95,12 +110,12 @@ public class CsvExporter {
         if (value == null) {
             return "";
         }
-        
+
         // If value contains comma, quote, or newline, wrap in quotes and escape internal quotes
         if (value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
             return "\"" + value.replace("\"", "\"\"") + "\"";
         }
-        
+
         return value;
     }
 }
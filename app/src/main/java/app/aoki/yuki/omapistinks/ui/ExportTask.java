@@ -0,0 +1,196 @@
+package app.aoki.yuki.omapistinks.ui;
+
+import app.aoki.yuki.omapistinks.R;
+import app.aoki.yuki.omapistinks.core.CallLogEntry;
+
+import android.app.Activity;
+import android.content.ClipData;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AlertDialog;
+import androidx.core.content.FileProvider;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background export of entries to a file, shared through FileProvider
+ *
+ * The writer streams into a buffered file in the app cache, so memory use does not grow
+ * with the capture and nothing large travels through an Intent. A dialog shows progress
+ * and offers cancellation; a cancelled or failed export deletes its partial file.
+ */
+public final class ExportTask {
+
+    private static final String TAG = "OmapiStinks.Export";
+
+    // Matches res/xml/export_paths.xml
+    private static final String EXPORT_DIR = "exports";
+    private static final String AUTHORITY_SUFFIX = ".exports";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "OmapiStinks-export");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Progress callback handed to writers
+     */
+    public interface Progress {
+        /**
+         * Report how many entries have been written
+         * @return false once the export was cancelled; the writer should return promptly
+         */
+        boolean update(int written);
+    }
+
+    /**
+     * Streams entries in one export format
+     */
+    public interface EntryWriter {
+        void write(List<CallLogEntry> entries, OutputStream out, Progress progress) throws IOException;
+    }
+
+    private final Activity activity;
+    private final List<CallLogEntry> entries;
+    private final String fileName;
+    private final String mimeType;
+    private final EntryWriter writer;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private AlertDialog dialog;
+    private ProgressBar progressBar;
+    private TextView progressText;
+    private long lastProgressMs;
+
+    private ExportTask(Activity activity, List<CallLogEntry> entries, String fileName, String mimeType,
+                       EntryWriter writer) {
+        this.activity = activity;
+        this.entries = entries;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+        this.writer = writer;
+    }
+
+    /**
+     * Export on a background thread, then offer the file through the share sheet
+     * @param entries snapshot to export; must not be modified while the export runs
+     * @param fileName name of the file, e.g. "omapistinks-20240101-120000.csv"
+     */
+    public static void start(Activity activity, List<CallLogEntry> entries, String fileName, String mimeType,
+                             EntryWriter writer) {
+        new ExportTask(activity, entries, fileName, mimeType, writer).run();
+    }
+
+    private void run() {
+        View view = activity.getLayoutInflater().inflate(R.layout.dialog_export, null);
+        progressBar = view.findViewById(R.id.exportProgressBar);
+        progressText = view.findViewById(R.id.exportProgressText);
+        progressBar.setMax(entries.size());
+        progressText.setText("Exporting " + entries.size() + " logs...");
+
+        dialog = new AlertDialog.Builder(activity)
+                .setTitle("Export")
+                .setView(view)
+                .setCancelable(false)
+                .setNegativeButton("Cancel", (d, which) -> cancelled.set(true))
+                .show();
+
+        File dir = new File(activity.getCacheDir(), EXPORT_DIR);
+        EXECUTOR.execute(() -> export(dir));
+    }
+
+    private void export(File dir) {
+        File file = new File(dir, fileName);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            deleteOldExports(dir);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+                writer.write(entries, out, this::onProgress);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Export failed: " + e.getMessage(), e);
+            file.delete();
+            finish(null, "Export failed: " + e.getMessage());
+            return;
+        }
+        if (cancelled.get()) {
+            file.delete();
+            finish(null, "Export cancelled");
+            return;
+        }
+        finish(file, null);
+    }
+
+    /**
+     * Called on the export thread; forwards at most one update per PROGRESS_INTERVAL_MS
+     */
+    private boolean onProgress(int written) {
+        long now = android.os.SystemClock.uptimeMillis();
+        if (now - lastProgressMs >= PROGRESS_INTERVAL_MS) {
+            lastProgressMs = now;
+            activity.runOnUiThread(() -> {
+                progressBar.setProgress(written);
+                progressText.setText("Exported " + written + " of " + entries.size() + " logs");
+            });
+        }
+        return !cancelled.get();
+    }
+
+    private void finish(File file, String message) {
+        activity.runOnUiThread(() -> {
+            dialog.dismiss();
+            if (activity.isFinishing() || activity.isDestroyed()) {
+                return;
+            }
+            if (file == null) {
+                Toast.makeText(activity, message, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            share(file);
+        });
+    }
+
+    private void share(File file) {
+        Uri uri = FileProvider.getUriForFile(activity, activity.getPackageName() + AUTHORITY_SUFFIX, file);
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType(mimeType);
+        shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
+        shareIntent.putExtra(Intent.EXTRA_SUBJECT, "OMAPI Stinks Export - " + entries.size() + " logs");
+        // ClipData carries the read grant through the chooser to the chosen app
+        shareIntent.setClipData(ClipData.newRawUri(file.getName(), uri));
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        activity.startActivity(Intent.createChooser(shareIntent, "Export " + file.getName()));
+    }
+
+    /**
+     * Only the latest export is kept; earlier ones were already handed to the share sheet
+     */
+    private static void deleteOldExports(File dir) {
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File f : old) {
+                f.delete();
+            }
+        }
+    }
+}
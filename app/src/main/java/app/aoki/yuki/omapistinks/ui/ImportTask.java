@@ -0,0 +1,109 @@
+package app.aoki.yuki.omapistinks.ui;
+
+import app.aoki.yuki.omapistinks.R;
+
+import android.app.Activity;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AlertDialog;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background import of a JSON Lines capture chosen by the user
+ * Shows progress (by bytes read) and can be cancelled; entries imported so far are kept.
+ */
+public final class ImportTask {
+
+    private static final String TAG = "OmapiStinks.Import";
+
+    // Progress bar resolution
+    private static final int PROGRESS_MAX = 1000;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "OmapiStinks-import");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Activity activity;
+    private final Uri uri;
+    private final Runnable onDone;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private AlertDialog dialog;
+    private ProgressBar progressBar;
+    private TextView progressText;
+
+    private ImportTask(Activity activity, Uri uri, Runnable onDone) {
+        this.activity = activity;
+        this.uri = uri;
+        this.onDone = onDone;
+    }
+
+    /**
+     * Import the document at uri (from ACTION_OPEN_DOCUMENT) into CallLogger
+     * onDone runs on the main thread once the import has finished, failed or been cancelled.
+     */
+    public static void start(Activity activity, Uri uri, Runnable onDone) {
+        new ImportTask(activity, uri, onDone).run();
+    }
+
+    private void run() {
+        View view = activity.getLayoutInflater().inflate(R.layout.dialog_export, null);
+        progressBar = view.findViewById(R.id.exportProgressBar);
+        progressText = view.findViewById(R.id.exportProgressText);
+        progressBar.setMax(PROGRESS_MAX);
+        progressText.setText("Opening...");
+
+        dialog = new AlertDialog.Builder(activity)
+                .setTitle("Import")
+                .setView(view)
+                .setCancelable(false)
+                .setNegativeButton("Cancel", (d, which) -> cancelled.set(true))
+                .show();
+
+        EXECUTOR.execute(this::importCapture);
+    }
+
+    private void importCapture() {
+        JsonlImporter importer = new JsonlImporter((bytesRead, totalBytes, imported) -> {
+            int permille = totalBytes > 0 ? (int) (bytesRead * PROGRESS_MAX / totalBytes) : 0;
+            activity.runOnUiThread(() -> {
+                progressBar.setProgress(permille);
+                progressText.setText("Imported " + imported + " logs");
+            });
+            return !cancelled.get();
+        });
+
+        String message;
+        try (ParcelFileDescriptor pfd = activity.getContentResolver().openFileDescriptor(uri, "r");
+             FileInputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+            boolean complete = importer.importFrom(in);
+            message = (complete ? "Imported " : "Import cancelled after ") + importer.getImported() + " logs"
+                    + (importer.getSkipped() > 0 ? " (" + importer.getSkipped() + " malformed lines skipped)" : "");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Import failed: " + e.getMessage(), e);
+            message = "Import failed after " + importer.getImported() + " logs: " + e.getMessage();
+        }
+
+        String result = message;
+        activity.runOnUiThread(() -> {
+            dialog.dismiss();
+            if (!activity.isFinishing() && !activity.isDestroyed()) {
+                onDone.run();
+                Toast.makeText(activity, result, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+}
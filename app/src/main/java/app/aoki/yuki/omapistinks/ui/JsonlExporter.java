@@ -0,0 +1,180 @@
+package app.aoki.yuki.omapistinks.ui;
+
+import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.Hex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports CallLogEntry data as JSON Lines (one object per line), optionally gzip-compressed
+ * This is the lossless format: JsonlImporter reads it back into the store.
+ *
+ * Line: {"ts":epochNanos,"elapsed":nanos,"pkg":..,"fn":..,"type":..,"pid":..,"tid":..,
+ *        "thread":..,"us":executionTimeUs,"cmd":hex,"rsp":hex,"aid":hex,"sel":hex,
+ *        "details":..,"error":..,"stack":[[class,method,file,line],...]}
+ * Absent (null) fields are omitted.
+ */
+public class JsonlExporter implements ExportTask.EntryWriter {
+
+    public static final String MIME_TYPE = "application/x-ndjson";
+    public static final String GZIP_MIME_TYPE = "application/gzip";
+    public static final String EXTENSION = ".jsonl";
+    public static final String GZIP_EXTENSION = ".jsonl.gz";
+
+    static final String KEY_TIMESTAMP = "ts";
+    static final String KEY_ELAPSED = "elapsed";
+    static final String KEY_PACKAGE = "pkg";
+    static final String KEY_FUNCTION = "fn";
+    static final String KEY_TYPE = "type";
+    static final String KEY_PROCESS_ID = "pid";
+    static final String KEY_THREAD_ID = "tid";
+    static final String KEY_THREAD_NAME = "thread";
+    static final String KEY_EXECUTION_TIME_US = "us";
+    static final String KEY_COMMAND = "cmd";
+    static final String KEY_RESPONSE = "rsp";
+    static final String KEY_AID = "aid";
+    static final String KEY_SELECT_RESPONSE = "sel";
+    static final String KEY_DETAILS = "details";
+    static final String KEY_ERROR = "error";
+    static final String KEY_STACK = "stack";
+
+    private static final int GZIP_BUFFER = 64 * 1024;
+
+    // Entries between progress reports
+    private static final int PROGRESS_STEP = 256;
+
+    private final boolean gzip;
+
+    public JsonlExporter(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public String getMimeType() {
+        return gzip ? GZIP_MIME_TYPE : MIME_TYPE;
+    }
+
+    public String getExtension() {
+        return gzip ? GZIP_EXTENSION : EXTENSION;
+    }
+
+    @Override
+    public void write(List<CallLogEntry> entries, OutputStream out, ExportTask.Progress progress) throws IOException {
+        GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, GZIP_BUFFER) : null;
+        Writer writer = new OutputStreamWriter(compressed != null ? compressed : out, StandardCharsets.UTF_8);
+        StringBuilder line = new StringBuilder(512);
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                line.setLength(0);
+                appendEntry(line, entries.get(i));
+                writer.append(line);
+                if ((i + 1) % PROGRESS_STEP == 0 && !progress.update(i + 1)) {
+                    return;
+                }
+            }
+            progress.update(entries.size());
+        } finally {
+            writer.flush();
+            if (compressed != null) {
+                // Write the trailer; the caller closes the underlying stream
+                compressed.finish();
+            }
+        }
+    }
+
+    private static void appendEntry(StringBuilder sb, CallLogEntry entry) {
+        sb.append('{');
+        sb.append('"').append(KEY_TIMESTAMP).append("\":").append(entry.getTimestampNanos());
+        sb.append(",\"").append(KEY_ELAPSED).append("\":").append(entry.getElapsedRealtimeNanos());
+        appendString(sb, KEY_PACKAGE, entry.getPackageName());
+        appendString(sb, KEY_FUNCTION, entry.getFunctionName());
+        appendString(sb, KEY_TYPE, entry.getType());
+        sb.append(",\"").append(KEY_PROCESS_ID).append("\":").append(entry.getProcessId());
+        sb.append(",\"").append(KEY_THREAD_ID).append("\":").append(entry.getThreadId());
+        appendString(sb, KEY_THREAD_NAME, entry.getThreadName());
+        sb.append(",\"").append(KEY_EXECUTION_TIME_US).append("\":").append(entry.getExecutionTimeUs());
+        appendHex(sb, KEY_COMMAND, entry.getApduCommandBytes());
+        appendHex(sb, KEY_RESPONSE, entry.getApduResponseBytes());
+        appendHex(sb, KEY_AID, entry.getAidBytes());
+        appendHex(sb, KEY_SELECT_RESPONSE, entry.getSelectResponseBytes());
+        appendString(sb, KEY_DETAILS, entry.getDetails());
+        appendString(sb, KEY_ERROR, entry.getError());
+
+        StackTraceElement[] frames = entry.getStackTraceElements();
+        if (frames != null && frames.length > 0) {
+            sb.append(",\"").append(KEY_STACK).append("\":[");
+            for (int i = 0; i < frames.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('[');
+                appendQuoted(sb, frames[i].getClassName());
+                sb.append(',');
+                appendQuoted(sb, frames[i].getMethodName());
+                sb.append(',');
+                appendQuoted(sb, frames[i].getFileName());
+                sb.append(',').append(frames[i].getLineNumber()).append(']');
+            }
+            sb.append(']');
+        }
+        sb.append("}\n");
+    }
+
+    private static void appendString(StringBuilder sb, String key, String value) {
+        if (value != null) {
+            sb.append(",\"").append(key).append("\":");
+            appendQuoted(sb, value);
+        }
+    }
+
+    private static void appendHex(StringBuilder sb, String key, byte[] value) {
+        if (value != null) {
+            sb.append(",\"").append(key).append("\":\"");
+            Hex.append(sb, value, 0, value.length).append('"');
+        }
+    }
+
+    /**
+     * JSON string literal; null becomes null
+     */
+    private static void appendQuoted(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00");
+                        Hex.append(sb, c);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
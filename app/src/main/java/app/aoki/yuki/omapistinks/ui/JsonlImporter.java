@@ -0,0 +1,497 @@
+package app.aoki.yuki.omapistinks.ui;
+
+import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.CallLogger;
+import app.aoki.yuki.omapistinks.core.CaptureJournal;
+import app.aoki.yuki.omapistinks.core.StackTable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads a JsonlExporter capture (plain or gzip) back into CallLogger
+ *
+ * Plain files are memory-mapped in windows and split into lines straight from the
+ * mapping; gzip files are inflated in fixed-size chunks. Each line is parsed in place by a
+ * small parser that only understands the exporter's flat schema, and entries are handed
+ * to CallLogger in batches (which also journals them). Repeated strings are shared and
+ * stacks are interned in StackTable, so heap use depends on the store capacity rather
+ * than on the file size. Malformed lines are counted and skipped.
+ */
+public final class JsonlImporter {
+
+    private static final int BATCH_SIZE = 4096;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final int GZIP_CHUNK = 64 * 1024;
+    private static final int MAX_SHARED_STRINGS = 4096;
+
+    /**
+     * Progress callback, called on the importing thread after every batch
+     */
+    public interface Progress {
+        /**
+         * @return false to stop importing; entries already stored are kept
+         */
+        boolean update(long bytesRead, long totalBytes, int imported);
+    }
+
+    private final Progress progress;
+    private List<CallLogEntry> batch = new ArrayList<>(BATCH_SIZE);
+    // Package, function, type and thread names repeat on nearly every line
+    private final Map<String, String> strings = new HashMap<>();
+    private byte[] line = new byte[4096];
+    private int lineLength;
+    private int pos;
+    private long bytesRead;
+    private long totalBytes;
+    private int imported;
+    private int skipped;
+    private boolean stopped;
+
+    public JsonlImporter(Progress progress) {
+        this.progress = progress;
+    }
+
+    public int getImported() {
+        return imported;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Import a whole file
+     * @return false if the progress callback stopped the import
+     */
+    public boolean importFrom(FileInputStream in) throws IOException {
+        CaptureJournal.awaitRecovery();
+        FileChannel channel = in.getChannel();
+        totalBytes = channel.size();
+        if (isGzip(channel)) {
+            channel.position(0);
+            try (InputStream gzip = new GZIPInputStream(Channels.newInputStream(channel), GZIP_CHUNK)) {
+                byte[] chunk = new byte[GZIP_CHUNK];
+                int n;
+                while (!stopped && (n = gzip.read(chunk)) > 0) {
+                    feed(ByteBuffer.wrap(chunk, 0, n));
+                    // Progress is measured on the compressed input
+                    bytesRead = channel.position();
+                }
+            }
+        } else {
+            for (long offset = 0; offset < totalBytes && !stopped; offset += MAP_WINDOW) {
+                long size = Math.min(MAP_WINDOW, totalBytes - offset);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                feed(window);
+                bytesRead = offset + size;
+            }
+        }
+        if (!stopped && lineLength > 0) {
+            parseLine();
+        }
+        flush();
+        return !stopped;
+    }
+
+    private static boolean isGzip(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        channel.read(magic, 0);
+        return magic.position() == 2 && (magic.get(0) & 0xFF) == 0x1F && (magic.get(1) & 0xFF) == 0x8B;
+    }
+
+    /**
+     * Split a buffer into lines; a trailing partial line is carried to the next call
+     */
+    private void feed(ByteBuffer buf) {
+        int start = buf.position();
+        int end = buf.limit();
+        for (int i = start; i < end && !stopped; i++) {
+            if (buf.get(i) == '\n') {
+                append(buf, start, i);
+                parseLine();
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            append(buf, start, end);
+        }
+    }
+
+    private void append(ByteBuffer buf, int from, int to) {
+        int n = to - from;
+        if (lineLength + n > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + n));
+        }
+        ByteBuffer view = buf.duplicate();
+        view.limit(to).position(from);
+        view.get(line, lineLength, n);
+        lineLength += n;
+    }
+
+    private void parseLine() {
+        int length = lineLength;
+        lineLength = 0;
+        while (length > 0 && (line[length - 1] == '\r' || line[length - 1] == ' ')) {
+            length--;
+        }
+        if (length == 0) {
+            return;
+        }
+        try {
+            batch.add(parseEntry(length));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            skipped++;
+            return;
+        }
+        if (batch.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (!batch.isEmpty()) {
+            CallLogger.getInstance().addLogs(batch);
+            imported += batch.size();
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+        if (!progress.update(bytesRead, totalBytes, imported)) {
+            stopped = true;
+        }
+    }
+
+    private CallLogEntry parseEntry(int end) {
+        pos = 0;
+        CallLogEntry.Builder builder = new CallLogEntry.Builder()
+                .threadId(0)
+                .threadName(null)
+                .processId(0);
+        skipWhitespace(end);
+        expect('{', end);
+        skipWhitespace(end);
+        if (peek(end) == '}') {
+            throw new IllegalArgumentException("Empty object");
+        }
+        while (true) {
+            skipWhitespace(end);
+            String key = readString(end, false);
+            skipWhitespace(end);
+            expect(':', end);
+            skipWhitespace(end);
+            readField(builder, key, end);
+            skipWhitespace(end);
+            byte c = peek(end);
+            pos++;
+            if (c == '}') {
+                break;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Expected , or } at " + (pos - 1));
+            }
+        }
+        return builder.build();
+    }
+
+    private void readField(CallLogEntry.Builder builder, String key, int end) {
+        if (peek(end) == 'n') {
+            expectLiteral("null", end);
+            return;
+        }
+        switch (key) {
+            case JsonlExporter.KEY_TIMESTAMP:
+                builder.timestampNanos(readLong(end));
+                break;
+            case JsonlExporter.KEY_ELAPSED:
+                builder.elapsedRealtimeNanos(readLong(end));
+                break;
+            case JsonlExporter.KEY_PACKAGE:
+                builder.packageName(readString(end, true));
+                break;
+            case JsonlExporter.KEY_FUNCTION:
+                builder.functionName(readString(end, true));
+                break;
+            case JsonlExporter.KEY_TYPE:
+                builder.type(readString(end, true));
+                break;
+            case JsonlExporter.KEY_PROCESS_ID:
+                builder.processId((int) readLong(end));
+                break;
+            case JsonlExporter.KEY_THREAD_ID:
+                builder.threadId(readLong(end));
+                break;
+            case JsonlExporter.KEY_THREAD_NAME:
+                builder.threadName(readString(end, true));
+                break;
+            case JsonlExporter.KEY_EXECUTION_TIME_US:
+                builder.executionTimeUs(readLong(end));
+                break;
+            case JsonlExporter.KEY_COMMAND:
+                builder.apduCommand(readHex(end));
+                break;
+            case JsonlExporter.KEY_RESPONSE:
+                builder.apduResponse(readHex(end));
+                break;
+            case JsonlExporter.KEY_AID:
+                builder.aid(readHex(end));
+                break;
+            case JsonlExporter.KEY_SELECT_RESPONSE:
+                builder.selectResponse(readHex(end));
+                break;
+            case JsonlExporter.KEY_DETAILS:
+                builder.details(readString(end, false));
+                break;
+            case JsonlExporter.KEY_ERROR:
+                builder.error(readString(end, false));
+                break;
+            case JsonlExporter.KEY_STACK:
+                StackTraceElement[] frames = readStack(end);
+                if (frames.length > 0) {
+                    long callSiteId = StackTable.callSiteId(frames);
+                    StackTable.getInstance().put(callSiteId, frames);
+                    builder.callSiteId(callSiteId);
+                }
+                break;
+            default:
+                skipValue(end);
+        }
+    }
+
+    /**
+     * [[class, method, file, line], ...]
+     */
+    private StackTraceElement[] readStack(int end) {
+        List<StackTraceElement> frames = new ArrayList<>();
+        expect('[', end);
+        skipWhitespace(end);
+        if (peek(end) == ']') {
+            pos++;
+            return new StackTraceElement[0];
+        }
+        while (true) {
+            skipWhitespace(end);
+            expect('[', end);
+            String cls = readNullableString(end);
+            expectSeparator(end);
+            String method = readNullableString(end);
+            expectSeparator(end);
+            String file = readNullableString(end);
+            expectSeparator(end);
+            int lineNumber = (int) readLong(end);
+            skipWhitespace(end);
+            expect(']', end);
+            frames.add(new StackTraceElement(cls != null ? cls : "?", method != null ? method : "?", file, lineNumber));
+            skipWhitespace(end);
+            byte c = peek(end);
+            pos++;
+            if (c == ']') {
+                break;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Expected , or ] in stack");
+            }
+        }
+        return frames.toArray(new StackTraceElement[0]);
+    }
+
+    private void expectSeparator(int end) {
+        skipWhitespace(end);
+        expect(',', end);
+        skipWhitespace(end);
+    }
+
+    private String readNullableString(int end) {
+        skipWhitespace(end);
+        if (peek(end) == 'n') {
+            expectLiteral("null", end);
+            return null;
+        }
+        return readString(end, true);
+    }
+
+    /**
+     * @param shared return a shared instance for repeated values
+     */
+    private String readString(int end, boolean shared) {
+        expect('"', end);
+        int start = pos;
+        boolean escaped = false;
+        while (true) {
+            if (pos >= end) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            byte c = line[pos];
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                escaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        String s = escaped ? unescape(start, pos) : new String(line, start, pos - start, StandardCharsets.UTF_8);
+        pos++;
+        if (!shared) {
+            return s;
+        }
+        String existing = strings.get(s);
+        if (existing != null) {
+            return existing;
+        }
+        if (strings.size() < MAX_SHARED_STRINGS) {
+            strings.put(s, s);
+        }
+        return s;
+    }
+
+    private String unescape(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        int runStart = start;
+        int i = start;
+        while (i < end) {
+            if (line[i] != '\\') {
+                i++;
+                continue;
+            }
+            sb.append(new String(line, runStart, i - runStart, StandardCharsets.UTF_8));
+            byte e = line[i + 1];
+            switch (e) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(new String(line, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                    i += 4;
+                    break;
+                default:
+                    // \" \\ \/
+                    sb.append((char) e);
+            }
+            i += 2;
+            runStart = i;
+        }
+        sb.append(new String(line, runStart, end - runStart, StandardCharsets.UTF_8));
+        return sb.toString();
+    }
+
+    /**
+     * Hex string literal decoded directly from the line bytes
+     */
+    private byte[] readHex(int end) {
+        expect('"', end);
+        int start = pos;
+        while (pos < end && line[pos] != '"') {
+            pos++;
+        }
+        if (pos >= end || ((pos - start) & 1) != 0) {
+            throw new IllegalArgumentException("Bad hex field");
+        }
+        byte[] out = new byte[(pos - start) / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(line[start + 2 * i], 16);
+            int lo = Character.digit(line[start + 2 * i + 1], 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Bad hex digit");
+            }
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        pos++;
+        return out;
+    }
+
+    private long readLong(int end) {
+        boolean negative = peek(end) == '-';
+        if (negative) {
+            pos++;
+        }
+        int start = pos;
+        long v = 0;
+        while (pos < end && line[pos] >= '0' && line[pos] <= '9') {
+            v = v * 10 + (line[pos] - '0');
+            pos++;
+        }
+        if (pos == start) {
+            throw new IllegalArgumentException("Expected number at " + start);
+        }
+        return negative ? -v : v;
+    }
+
+    /**
+     * Skip a value of an unknown key (string, number, literal, array or object)
+     */
+    private void skipValue(int end) {
+        byte c = peek(end);
+        if (c == '"') {
+            readString(end, false);
+        } else if (c == '[' || c == '{') {
+            int depth = 0;
+            do {
+                c = line[pos];
+                if (c == '"') {
+                    readString(end, false);
+                    continue;
+                }
+                if (c == '[' || c == '{') {
+                    depth++;
+                } else if (c == ']' || c == '}') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0 && pos < end);
+        } else {
+            while (pos < end && line[pos] != ',' && line[pos] != '}') {
+                pos++;
+            }
+        }
+    }
+
+    private byte peek(int end) {
+        if (pos >= end) {
+            throw new IllegalArgumentException("Unexpected end of line");
+        }
+        return line[pos];
+    }
+
+    private void expect(char c, int end) {
+        if (peek(end) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + pos);
+        }
+        pos++;
+    }
+
+    private void expectLiteral(String literal, int end) {
+        for (int i = 0; i < literal.length(); i++) {
+            expect(literal.charAt(i), end);
+        }
+    }
+
+    private void skipWhitespace(int end) {
+        while (pos < end && (line[pos] == ' ' || line[pos] == '\t')) {
+            pos++;
+        }
+    }
+}
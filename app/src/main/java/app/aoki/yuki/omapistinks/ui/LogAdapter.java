@@ -3,6 +3,7 @@ package app.aoki.yuki.omapistinks.ui;
 import app.aoki.yuki.omapistinks.core.ApduInfo;
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
 import app.aoki.yuki.omapistinks.core.Constants;
+import app.aoki.yuki.omapistinks.core.Hex;
 import app.aoki.yuki.omapistinks.R;
 
 import android.view.LayoutInflater;
@@ -19,17 +20,55 @@ import java.util.List;
 
 public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
 
-    private List<CallLogEntry> logs;
+    // Visible entries are logs[start, logs.size()); evicting from the front only moves start
+    private ArrayList<CallLogEntry> logs;
+    private int start;
 
     public LogAdapter() {
         this.logs = new ArrayList<>();
     }
 
+    /**
+     * Replace all entries (filter change, clear); rebinds every visible card
+     */
     public void setLogs(List<CallLogEntry> logs) {
-        this.logs = logs;
+        this.logs = new ArrayList<>(logs);
+        this.start = 0;
         notifyDataSetChanged();
     }
 
+    /**
+     * Append entries at the end, binding only the new cards
+     */
+    public void appendLogs(List<CallLogEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        int position = getItemCount();
+        logs.addAll(entries);
+        notifyItemRangeInserted(position, entries.size());
+    }
+
+    /**
+     * Drop leading entries whose sequence is below the given one (evicted from CallLogger)
+     */
+    public void removeOlderThan(long sequence) {
+        int removed = 0;
+        while (start + removed < logs.size() && logs.get(start + removed).getSequence() < sequence) {
+            removed++;
+        }
+        if (removed == 0) {
+            return;
+        }
+        start += removed;
+        // Compact once the dead prefix dominates, keeping eviction amortized O(1)
+        if (start > logs.size() / 2) {
+            logs = new ArrayList<>(logs.subList(start, logs.size()));
+            start = 0;
+        }
+        notifyItemRangeRemoved(0, removed);
+    }
+
     @NonNull
     @Override
     public LogViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -41,7 +80,7 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
         view.findViewById(R.id.logCard).setOnClickListener(v -> {
             int position = holder.getAdapterPosition();
             if (position != RecyclerView.NO_POSITION) {
-                openDetailActivity(parent.getContext(), logs.get(position));
+                openDetailActivity(parent.getContext(), logs.get(start + position));
             }
         });
         
@@ -56,17 +95,17 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
         intent.putExtra("type", entry.getType());
         
         if (entry.getApduInfo() != null) {
-            intent.putExtra("apduCommand", entry.getApduInfo().getCommand());
-            intent.putExtra("apduResponse", entry.getApduInfo().getResponse());
+            intent.putExtra("apduCommand", entry.getApduInfo().getCommandBytes());
+            intent.putExtra("apduResponse", entry.getApduInfo().getResponseBytes());
         }
         
-        intent.putExtra("aid", entry.getAid());
-        intent.putExtra("selectResponse", entry.getSelectResponse());
+        intent.putExtra("aid", entry.getAidBytes());
+        intent.putExtra("selectResponse", entry.getSelectResponseBytes());
         intent.putExtra("details", entry.getDetails());
         intent.putExtra("threadId", entry.getThreadId());
         intent.putExtra("threadName", entry.getThreadName());
         intent.putExtra("processId", entry.getProcessId());
-        intent.putExtra("executionTimeMs", entry.getExecutionTimeMs());
+        intent.putExtra("executionTimeUs", entry.getExecutionTimeUs());
         intent.putExtra("stackTraceElements", entry.getStackTraceElements());
         intent.putExtra(Constants.EXTRA_STACKTRACE, entry.getStackTraceElements());
         
@@ -75,7 +114,7 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
 
     @Override
     public void onBindViewHolder(@NonNull LogViewHolder holder, int position) {
-        CallLogEntry entry = logs.get(position);
+        CallLogEntry entry = logs.get(start + position);
         
         // Set timestamp (short format)
         holder.timestampText.setText(entry.getShortTimestamp());
@@ -99,9 +138,9 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
             holder.detailsText.setVisibility(View.GONE);
         } else if (Constants.TYPE_OPEN_CHANNEL.equals(entry.getType())) {
             // Show AID for open channel
-            String aid = entry.getAid();
-            if (aid != null && !aid.isEmpty()) {
-                holder.detailsText.setText("AID: " + aid);
+            byte[] aid = entry.getAidBytes();
+            if (aid != null && aid.length > 0) {
+                holder.detailsText.setText("AID: " + Hex.encode(aid));
                 holder.detailsText.setVisibility(View.VISIBLE);
             } else {
                 holder.detailsText.setVisibility(View.GONE);
@@ -118,11 +157,11 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
         }
         
         // Handle APDU display for transmit calls
-        if (entry.isTransmit() && entry.getApduInfo() != null) {
-            ApduInfo apdu = entry.getApduInfo();
-            
+        // Parsed once per entry; the formatted text is memoized in ApduInfo
+        ApduInfo apdu = entry.isTransmit() ? entry.getApduInfo() : null;
+        if (apdu != null) {
             // Show command if available
-            if (apdu.getCommand() != null) {
+            if (apdu.getCommandBytes() != null) {
                 holder.apduCommandLayout.setVisibility(View.VISIBLE);
                 holder.apduCommandText.setText(apdu.getFormattedCommand());
             } else {
@@ -130,7 +169,7 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
             }
             
             // Show response if available
-            if (apdu.getResponse() != null) {
+            if (apdu.getResponseBytes() != null) {
                 holder.apduResponseLayout.setVisibility(View.VISIBLE);
                 holder.apduResponseText.setText(apdu.getFormattedResponse());
             } else {
@@ -140,10 +179,10 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
             // For open channel, show select response as "response"
             holder.apduCommandLayout.setVisibility(View.GONE);
             
-            String selectResponse = entry.getSelectResponse();
-            if (selectResponse != null && !selectResponse.isEmpty()) {
+            byte[] selectResponse = entry.getSelectResponseBytes();
+            if (selectResponse != null && selectResponse.length > 0) {
                 holder.apduResponseLayout.setVisibility(View.VISIBLE);
-                holder.apduResponseText.setText(selectResponse);
+                holder.apduResponseText.setText(Hex.encode(selectResponse));
             } else {
                 holder.apduResponseLayout.setVisibility(View.GONE);
             }
@@ -155,7 +194,7 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
 
     @Override
     public int getItemCount() {
-        return logs.size();
+        return logs.size() - start;
     }
 
     static class LogViewHolder extends RecyclerView.ViewHolder {
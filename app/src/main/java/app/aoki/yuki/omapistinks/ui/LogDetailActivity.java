@@ -2,6 +2,9 @@ package app.aoki.yuki.omapistinks.ui;
 
 import app.aoki.yuki.omapistinks.core.Constants;
 import app.aoki.yuki.omapistinks.core.ApduInfo;
+import app.aoki.yuki.omapistinks.core.BerTlv;
+import app.aoki.yuki.omapistinks.core.Hex;
+import app.aoki.yuki.omapistinks.core.Timestamps;
 import app.aoki.yuki.omapistinks.R;
 
 import android.content.ClipData;
@@ -22,9 +25,12 @@ import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class LogDetailActivity extends AppCompatActivity {
 
+    private static final int TLV_INDENT_DP = 12;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -42,15 +48,19 @@ public class LogDetailActivity extends AppCompatActivity {
         String packageName = getIntent().getStringExtra("packageName");
         String function = getIntent().getStringExtra("function");
         String type = getIntent().getStringExtra("type");
-        String apduCommand = getIntent().getStringExtra("apduCommand");
-        String apduResponse = getIntent().getStringExtra("apduResponse");
-        String aid = getIntent().getStringExtra("aid");
-        String selectResponse = getIntent().getStringExtra("selectResponse");
+        // Payloads arrive as raw bytes; hex is produced here for display and copy
+        byte[] apduCommandBytes = getIntent().getByteArrayExtra("apduCommand");
+        byte[] apduResponseBytes = getIntent().getByteArrayExtra("apduResponse");
+        String apduCommand = Hex.encode(apduCommandBytes);
+        String apduResponse = Hex.encode(apduResponseBytes);
+        String aid = Hex.encode(getIntent().getByteArrayExtra("aid"));
+        byte[] selectResponseBytes = getIntent().getByteArrayExtra("selectResponse");
+        String selectResponse = Hex.encode(selectResponseBytes);
         String details = getIntent().getStringExtra("details");
         long threadId = getIntent().getLongExtra("threadId", 0);
         String threadName = getIntent().getStringExtra("threadName");
         int processId = getIntent().getIntExtra("processId", 0);
-        long executionTimeMs = getIntent().getLongExtra("executionTimeMs", 0);
+        long executionTimeUs = getIntent().getLongExtra("executionTimeUs", 0);
 
         // New optional extras
         String error = getIntent().getStringExtra("error");
@@ -114,8 +124,8 @@ public class LogDetailActivity extends AppCompatActivity {
         // Build type info with execution details
         StringBuilder typeInfo = new StringBuilder();
         typeInfo.append("🏷 ").append(type != null ? type : "N/A");
-        if (executionTimeMs > 0) {
-            typeInfo.append("\n⏲ Execution time: ").append(executionTimeMs).append(" ms");
+        if (executionTimeUs > 0) {
+            typeInfo.append("\n⏲ Execution time: ").append(Timestamps.formatDuration(executionTimeUs));
         }
         if (threadId > 0) {
             typeInfo.append("\n🧵 Thread: ").append(threadName != null ? threadName : "unknown");
@@ -137,7 +147,7 @@ public class LogDetailActivity extends AppCompatActivity {
 
         // Show relevant cards based on type
         if (Constants.TYPE_TRANSMIT.equals(type)) {
-            ApduInfo apduInfo = new ApduInfo(apduCommand, apduResponse);
+            ApduInfo apduInfo = new ApduInfo(apduCommandBytes, apduResponseBytes);
 
             if (apduCommand != null && !apduCommand.isEmpty()) {
                 cardApduCommand.setVisibility(View.VISIBLE);
@@ -148,6 +158,11 @@ public class LogDetailActivity extends AppCompatActivity {
                 cardApduResponse.setVisibility(View.VISIBLE);
                 apduResponseView.setText(apduInfo.getFormattedResponse());
                 btnCopyResponse.setOnClickListener(v -> copyToClipboard("APDU Response", apduResponse));
+                if (apduInfo.getSw1() >= 0) {
+                    // Response data without SW1 SW2
+                    showTlv(findViewById(R.id.responseTlvContainer),
+                            BerTlv.decode(apduResponseBytes, 0, apduResponseBytes.length - 2));
+                }
             }
             // Show AID if available for transmit calls (Channel mapped via SessionOpenChannelHook)
             if (aid != null && !aid.isEmpty()) {
@@ -165,6 +180,7 @@ public class LogDetailActivity extends AppCompatActivity {
                 cardSelectResponse.setVisibility(View.VISIBLE);
                 selectResponseView.setText(selectResponse);
                 btnCopySelectResponse.setOnClickListener(v -> copyToClipboard("Select Response", selectResponse));
+                showTlv(findViewById(R.id.selectResponseTlvContainer), BerTlv.decode(selectResponseBytes));
             }
         } else {
             if (details != null && !details.isEmpty()) {
@@ -253,6 +269,94 @@ public class LogDetailActivity extends AppCompatActivity {
         
     }
 
+    /**
+     * Show decoded TLVs as a tree; templates start collapsed and are decoded when first tapped
+     * Nothing is shown unless the payload starts with a constructed object, so plain data
+     * that happens to parse as TLV is left as hex.
+     */
+    private void showTlv(LinearLayout container, List<BerTlv> nodes) {
+        if (nodes == null || !nodes.get(0).isConstructed()) {
+            return;
+        }
+        container.setVisibility(View.VISIBLE);
+        addTlvRows(container, nodes, 0);
+    }
+
+    private void addTlvRows(LinearLayout container, List<BerTlv> nodes, int depth) {
+        float density = getResources().getDisplayMetrics().density;
+        int indent = (int) (TLV_INDENT_DP * depth * density);
+        for (BerTlv node : nodes) {
+            TextView row = new TextView(this);
+            row.setTypeface(android.graphics.Typeface.MONOSPACE);
+            row.setTextSize(13);
+            row.setPadding(indent, 4, 0, 4);
+            container.addView(row);
+
+            // Long-press copies the whole TLV
+            row.setOnLongClickListener(v -> {
+                copyToClipboard("TLV " + node.getTagHex(), node.getEncodedHex());
+                return true;
+            });
+
+            if (!node.isConstructed() || node.getValueLength() == 0) {
+                row.setText(formatTlvRow(node, null));
+                continue;
+            }
+            row.setText(formatTlvRow(node, "▸"));
+            LinearLayout childContainer = new LinearLayout(this);
+            childContainer.setOrientation(LinearLayout.VERTICAL);
+            childContainer.setVisibility(View.GONE);
+            container.addView(childContainer);
+            row.setOnClickListener(v -> {
+                if (childContainer.getVisibility() == View.VISIBLE) {
+                    childContainer.setVisibility(View.GONE);
+                    row.setText(formatTlvRow(node, "▸"));
+                    return;
+                }
+                if (childContainer.getChildCount() == 0) {
+                    List<BerTlv> children = node.getChildren();
+                    if (children != null) {
+                        addTlvRows(childContainer, children, depth + 1);
+                    } else {
+                        // Constructed bit set but the value is not TLV
+                        TextView raw = new TextView(this);
+                        raw.setTypeface(android.graphics.Typeface.MONOSPACE);
+                        raw.setTextSize(13);
+                        raw.setPadding((int) (TLV_INDENT_DP * (depth + 1) * density), 4, 0, 4);
+                        raw.setText(node.getValueHex());
+                        childContainer.addView(raw);
+                    }
+                }
+                childContainer.setVisibility(View.VISIBLE);
+                row.setText(formatTlvRow(node, "▾"));
+            });
+        }
+    }
+
+    /**
+     * "▸ 6F FCI Template (32)" for templates, "84 DF Name: A000000003" for primitives
+     */
+    private static String formatTlvRow(BerTlv node, String marker) {
+        StringBuilder sb = new StringBuilder();
+        if (marker != null) {
+            sb.append(marker).append(' ');
+        }
+        sb.append(node.getTagHex());
+        if (node.getName() != null) {
+            sb.append(' ').append(node.getName());
+        }
+        if (marker != null) {
+            sb.append(" (").append(node.getValueLength()).append(')');
+            return sb.toString();
+        }
+        sb.append(": ").append(node.getValueHex());
+        String text = node.getText();
+        if (text != null) {
+            sb.append(" \"").append(text).append('"');
+        }
+        return sb.toString();
+    }
+
     private void copyToClipboard(String label, String text) {
         ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
         ClipData clip = ClipData.newPlainText(label, text);
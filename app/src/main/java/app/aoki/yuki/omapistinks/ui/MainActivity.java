@@ -2,7 +2,15 @@ package app.aoki.yuki.omapistinks.ui;
 
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
 import app.aoki.yuki.omapistinks.core.CallLogger;
+import app.aoki.yuki.omapistinks.core.CaptureJournal;
+import app.aoki.yuki.omapistinks.core.CaptureRules;
+import app.aoki.yuki.omapistinks.core.CaptureRulesProvider;
 import app.aoki.yuki.omapistinks.core.Constants;
+import app.aoki.yuki.omapistinks.core.DeliveryPolicy;
+import app.aoki.yuki.omapistinks.core.FlightRecorderPolicy;
+import app.aoki.yuki.omapistinks.core.LogIndex;
+import app.aoki.yuki.omapistinks.core.LogQuery;
+import app.aoki.yuki.omapistinks.core.StackCapturePolicy;
 import app.aoki.yuki.omapistinks.R;
 
 import android.content.BroadcastReceiver;
@@ -32,9 +40,11 @@ import com.google.android.material.chip.Chip;
 import com.google.android.material.textfield.TextInputEditText;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class MainActivity extends AppCompatActivity {
@@ -42,12 +52,38 @@ public class MainActivity extends AppCompatActivity {
     private RecyclerView recyclerView;
     private LogAdapter adapter;
     private Handler handler;
-    private Runnable refreshRunnable;
+    private Runnable updateRunnable;
+    private final AtomicBoolean updatePosted = new AtomicBoolean();
+    // Highest CallLogger sequence already run through the filters
+    private long lastSeenSequence;
     
-    private static final int REFRESH_INTERVAL_MS = 1000;
+    private static final int REQUEST_IMPORT = 1;
+
+    // Full queries run here so large stores and parallel scans never block the UI
+    private static final ExecutorService QUERY_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "OmapiStinks-query");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Bumped for every full query; results of older ones are dropped
+    private volatile int queryGeneration;
+    // Generation whose result the list shows
+    private int shownGeneration;
+
+    // Coalesce change notifications so bursts of ingestion cause one UI update
+    private static final int UPDATE_THROTTLE_MS = 100;
+
+    private final CallLogger.Listener logListener = () -> {
+        if (updatePosted.compareAndSet(false, true)) {
+            handler.postDelayed(updateRunnable, UPDATE_THROTTLE_MS);
+        }
+    };
 
     // Filter state
     private String searchQuery = "";
+    // Compiled form of searchQuery (see LogQuery), null when the query is empty
+    private LogQuery searchFilter = null;
     private String packageFilter = null;
     private String functionFilter = null;
     private long timeRangeStart = 0;
@@ -72,12 +108,9 @@ public class MainActivity extends AppCompatActivity {
         recyclerView.setAdapter(adapter);
 
         handler = new Handler(Looper.getMainLooper());
-        refreshRunnable = new Runnable() {
-            @Override
-            public void run() {
-                refreshLogs();
-                handler.postDelayed(this, REFRESH_INTERVAL_MS);
-            }
+        updateRunnable = () -> {
+            updatePosted.set(false);
+            applyNewLogs();
         };
     }
 
@@ -85,16 +118,18 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         
-        // Load existing logs (captured by manifest receiver)
+        // Load existing logs (captured while in the background), then follow appends
+        CallLogger.getInstance().addListener(logListener);
         refreshLogs();
-        handler.postDelayed(refreshRunnable, REFRESH_INTERVAL_MS);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         
-        handler.removeCallbacks(refreshRunnable);
+        CallLogger.getInstance().removeListener(logListener);
+        handler.removeCallbacks(updateRunnable);
+        updatePosted.set(false);
     }
 
     @Override
@@ -123,6 +158,24 @@ public class MainActivity extends AppCompatActivity {
         } else if (id == R.id.action_export) {
             exportLogs();
             return true;
+        } else if (id == R.id.action_import) {
+            importLogs();
+            return true;
+        } else if (id == R.id.action_capture_rules) {
+            showCaptureRulesDialog();
+            return true;
+        } else if (id == R.id.action_flight_recorder) {
+            showFlightRecorderDialog();
+            return true;
+        } else if (id == R.id.action_stack_capture) {
+            showStackCaptureDialog();
+            return true;
+        } else if (id == R.id.action_delivery) {
+            showDeliveryDialog();
+            return true;
+        } else if (id == R.id.action_log_capacity) {
+            showLogCapacityDialog();
+            return true;
         } else if (id == R.id.action_help) {
             showHelp();
             return true;
@@ -131,62 +184,140 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Rebuild the whole list; used when filters change or the store is reset
+     */
     private void refreshLogs() {
-        List<CallLogEntry> logs = CallLogger.getInstance().getLogs();
-        
-        // Apply filters
-        List<CallLogEntry> filteredLogs = filterLogs(logs);
-        
-        adapter.setLogs(filteredLogs);
+        int generation = ++queryGeneration;
+        queryLogs(generation, (latest, filteredLogs) -> {
+            shownGeneration = generation;
+            // The result may already include entries appended after reading latest
+            lastSeenSequence = filteredLogs.isEmpty() ? latest
+                    : Math.max(latest, filteredLogs.get(filteredLogs.size() - 1).getSequence());
+
+            adapter.setLogs(filteredLogs);
+            // Appends that arrived while the query ran
+            applyNewLogs();
+
+            // Don't auto-scroll - let user control their scroll position
+        });
+    }
+    
+    /**
+     * Apply only what changed since the last update: evictions at the head, appends at the tail
+     */
+    private void applyNewLogs() {
+        if (shownGeneration != queryGeneration) {
+            // A full query is pending; it catches up when its result is shown
+            return;
+        }
+        CallLogger logger = CallLogger.getInstance();
+        adapter.removeOlderThan(logger.getOldestSequence());
         
-        // Don't auto-scroll - let user control their scroll position
+        List<CallLogEntry> fresh = logger.getLogsSince(lastSeenSequence);
+        if (fresh.isEmpty()) {
+            return;
+        }
+        lastSeenSequence = fresh.get(fresh.size() - 1).getSequence();
+        adapter.appendLogs(filterLogs(fresh));
+    }
+    
+    /**
+     * Receives a query result on the main thread
+     */
+    private interface QueryResult {
+        void onResult(long latest, List<CallLogEntry> entries);
+    }
+
+    /**
+     * All retained entries passing the filters, queried on QUERY_EXECUTOR
+     * Field and time filters go through the index. The result is posted to the main thread
+     * and dropped if another query was started (or the activity finished) meanwhile.
+     */
+    private void queryLogs(int generation, QueryResult callback) {
+        LogIndex.Query query = new LogIndex.Query()
+                .where(LogIndex.Field.PACKAGE, packageFilter)
+                .where(LogIndex.Field.FUNCTION, functionFilter)
+                .timeRange(timeRangeStart, timeRangeEnd);
+        LogQuery filter = searchFilter;
+        QUERY_EXECUTOR.execute(() -> {
+            if (generation != queryGeneration) {
+                return;
+            }
+            CallLogger logger = CallLogger.getInstance();
+            long latest = logger.getLatestSequence();
+            // The query adds its own indexable terms, then its predicates run in parallel
+            List<CallLogEntry> result = filter != null ? filter.run(logger, query) : logger.query(query);
+            handler.post(() -> {
+                if (generation == queryGeneration && !isFinishing()) {
+                    callback.onResult(latest, result);
+                }
+            });
+        });
     }
     
     private List<CallLogEntry> filterLogs(List<CallLogEntry> logs) {
         List<CallLogEntry> filtered = new ArrayList<>();
         
         for (CallLogEntry entry : logs) {
-            // Apply search query filter
-            if (!searchQuery.isEmpty()) {
-                String searchLower = searchQuery.toLowerCase(java.util.Locale.ROOT);
-                String message = entry.getMessage();
-                boolean matches = (message != null && message.toLowerCase(java.util.Locale.ROOT).contains(searchLower)) ||
-                                (entry.getPackageName() != null && entry.getPackageName().toLowerCase(java.util.Locale.ROOT).contains(searchLower)) ||
-                                (entry.getFunctionName() != null && entry.getFunctionName().toLowerCase(java.util.Locale.ROOT).contains(searchLower));
-                if (!matches) continue;
+            if (matchesFilters(entry)) {
+                filtered.add(entry);
             }
-            
-            // Apply package filter
-            if (packageFilter != null && !packageFilter.isEmpty()) {
-                if (entry.getPackageName() == null || !entry.getPackageName().equals(packageFilter)) {
-                    continue;
-                }
+        }
+        
+        return filtered;
+    }
+    
+    private boolean matchesFilters(CallLogEntry entry) {
+        // Apply search query filter
+        if (searchFilter != null && !searchFilter.matches(entry)) {
+            return false;
+        }
+        
+        // Apply package filter
+        if (packageFilter != null && !packageFilter.isEmpty()) {
+            if (entry.getPackageName() == null || !entry.getPackageName().equals(packageFilter)) {
+                return false;
             }
-            
-            // Apply function filter
-            if (functionFilter != null && !functionFilter.isEmpty()) {
-                if (!entry.getFunctionName().equals(functionFilter)) {
-                    continue;
-                }
+        }
+        
+        // Apply function filter
+        if (functionFilter != null && !functionFilter.isEmpty()) {
+            if (!entry.getFunctionName().equals(functionFilter)) {
+                return false;
             }
-            
-            // Apply time range filter
-            if (timeRangeStart > 0 || timeRangeEnd < Long.MAX_VALUE) {
-                try {
-                    long entryTime = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", java.util.Locale.getDefault()).parse(entry.getTimestamp()).getTime();
-                    if (entryTime < timeRangeStart || entryTime > timeRangeEnd) {
-                        continue;
-                    }
-                } catch (Exception e) {
-                    // If timestamp parsing fails, include the entry
-                }
+        }
+        
+        // Apply time range filter
+        if (timeRangeStart > 0 || timeRangeEnd < Long.MAX_VALUE) {
+            long entryTime = entry.getTimestampMillis();
+            if (entryTime < timeRangeStart || entryTime > timeRangeEnd) {
+                return false;
             }
-            
-            // All filters passed
-            filtered.add(entry);
         }
         
-        return filtered;
+        // All filters passed
+        return true;
+    }
+    
+    /**
+     * Compile and apply a filter query; an invalid query keeps the previous filter
+     * @return true if the query was accepted
+     */
+    private boolean setSearchQuery(String query) {
+        String trimmed = query.trim();
+        LogQuery compiled = null;
+        if (!trimmed.isEmpty()) {
+            try {
+                compiled = LogQuery.parse(trimmed);
+            } catch (IllegalArgumentException e) {
+                Toast.makeText(this, "Invalid filter: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                return false;
+            }
+        }
+        searchQuery = trimmed;
+        searchFilter = compiled;
+        return true;
     }
     
     private void showFilterDialog() {
@@ -220,12 +351,12 @@ public class MainActivity extends AppCompatActivity {
         dialogTimeChip.setOnClickListener(v -> showTimeRangeDialogInner(dialogTimeChip));
         
         builder.setPositiveButton("Apply", (dialog, which) -> {
-            searchQuery = dialogSearchEditText.getText().toString();
+            setSearchQuery(dialogSearchEditText.getText().toString());
             refreshLogs();
         });
         
         builder.setNeutralButton("Clear All", (dialog, which) -> {
-            searchQuery = "";
+            setSearchQuery("");
             packageFilter = null;
             functionFilter = null;
             timeRangeStart = 0;
@@ -238,15 +369,9 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void showPackageFilterDialogInner(Chip parentChip) {
-        List<CallLogEntry> logs = CallLogger.getInstance().getLogs();
-        Set<String> packages = new HashSet<>();
-        for (CallLogEntry entry : logs) {
-            if (entry.getPackageName() != null && !entry.getPackageName().isEmpty()) {
-                packages.add(entry.getPackageName());
-            }
-        }
-        
-        String[] packageArray = packages.toArray(new String[0]);
+        Map<String, Integer> facets = CallLogger.getInstance().getFacets(LogIndex.Field.PACKAGE);
+        String[] packageArray = facets.keySet().toArray(new String[0]);
+        String[] labels = facetLabels(facets);
         
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Filter by Package");
@@ -261,7 +386,7 @@ public class MainActivity extends AppCompatActivity {
             }
         }
         
-        builder.setSingleChoiceItems(packageArray, selectedIndex, (dialog, which) -> {
+        builder.setSingleChoiceItems(labels, selectedIndex, (dialog, which) -> {
             packageFilter = packageArray[which];
             parentChip.setChecked(true);
             parentChip.setText("Package: " + packageFilter.substring(packageFilter.lastIndexOf('.') + 1));
@@ -279,13 +404,9 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void showFunctionFilterDialogInner(Chip parentChip) {
-        List<CallLogEntry> logs = CallLogger.getInstance().getLogs();
-        Set<String> functions = new HashSet<>();
-        for (CallLogEntry entry : logs) {
-            functions.add(entry.getFunctionName());
-        }
-        
-        String[] functionArray = functions.toArray(new String[0]);
+        Map<String, Integer> facets = CallLogger.getInstance().getFacets(LogIndex.Field.FUNCTION);
+        String[] functionArray = facets.keySet().toArray(new String[0]);
+        String[] labels = facetLabels(facets);
         
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Filter by Function");
@@ -300,7 +421,7 @@ public class MainActivity extends AppCompatActivity {
             }
         }
         
-        builder.setSingleChoiceItems(functionArray, selectedIndex, (dialog, which) -> {
+        builder.setSingleChoiceItems(labels, selectedIndex, (dialog, which) -> {
             functionFilter = functionArray[which];
             parentChip.setChecked(true);
             parentChip.setText("Fn: " + functionFilter);
@@ -317,6 +438,18 @@ public class MainActivity extends AppCompatActivity {
         builder.show();
     }
     
+    /**
+     * "value (count)" labels in facet order
+     */
+    private static String[] facetLabels(Map<String, Integer> facets) {
+        String[] labels = new String[facets.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> e : facets.entrySet()) {
+            labels[i++] = e.getKey() + " (" + e.getValue() + ")";
+        }
+        return labels;
+    }
+    
     private void showTimeRangeDialogInner(Chip parentChip) {
         // Simple time range filter - last N seconds
         String[] options = {"Last 10 seconds", "Last 30 seconds", "Last minute", "Last 5 minutes", "All time"};
@@ -345,9 +478,10 @@ public class MainActivity extends AppCompatActivity {
 
     private void clearLogs() {
         CallLogger.getInstance().clearLogs();
+        CaptureJournal.clear();
 
         // Reset filters
-        searchQuery = "";
+        setSearchQuery("");
         packageFilter = null;
         functionFilter = null;
         timeRangeStart = 0;
@@ -358,24 +492,243 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void exportLogs() {
-        List<CallLogEntry> filteredLogs = filterLogs(CallLogger.getInstance().getLogs());
-        
+        // Exporting does not change the list, so it shares the shown generation
+        queryLogs(queryGeneration, (latest, filteredLogs) -> showExportDialog(filteredLogs));
+    }
+
+    private void showExportDialog(List<CallLogEntry> filteredLogs) {
         if (filteredLogs.isEmpty()) {
             Toast.makeText(this, "No logs to export", Toast.LENGTH_SHORT).show();
             return;
         }
         
-        // Export as CSV using dedicated exporter
-        String csvContent = CsvExporter.exportToCsv(filteredLogs);
-        
-        // Share via Intent
-        Intent shareIntent = new Intent(Intent.ACTION_SEND);
-        shareIntent.setType("text/csv");
-        shareIntent.putExtra(Intent.EXTRA_TEXT, csvContent);
-        shareIntent.putExtra(Intent.EXTRA_SUBJECT, "OMAPI Stinks Export - " + filteredLogs.size() + " logs");
-        
-        Intent chooser = Intent.createChooser(shareIntent, "Export logs as CSV");
-        startActivity(chooser);
+        // Stream to a file in the background and share it by URI
+        String baseName = "omapistinks-" + new java.text.SimpleDateFormat("yyyyMMdd-HHmmss", java.util.Locale.US)
+                .format(new java.util.Date());
+        String[] formats = {"CSV", "pcapng (Wireshark, GSMTAP SIM)", "JSON Lines", "JSON Lines (gzip)"};
+        new AlertDialog.Builder(this)
+                .setTitle("Export " + filteredLogs.size() + " logs as")
+                .setItems(formats, (dialog, which) -> {
+                    if (which == 0) {
+                        ExportTask.start(this, filteredLogs, baseName + CsvExporter.EXTENSION,
+                                CsvExporter.MIME_TYPE, new CsvExporter());
+                    } else if (which == 1) {
+                        ExportTask.start(this, filteredLogs, baseName + PcapngExporter.EXTENSION,
+                                PcapngExporter.MIME_TYPE, new PcapngExporter());
+                    } else {
+                        JsonlExporter exporter = new JsonlExporter(which == 3);
+                        ExportTask.start(this, filteredLogs, baseName + exporter.getExtension(),
+                                exporter.getMimeType(), exporter);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Pick a JSON Lines capture (plain or gzip) to load back into the log store
+     */
+    private void importLogs() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        // Gzip and .jsonl files are reported under inconsistent MIME types
+        intent.setType("*/*");
+        startActivityForResult(intent, REQUEST_IMPORT);
+    }
+    
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_IMPORT && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            ImportTask.start(this, data.getData(), this::refreshLogs);
+        }
+    }
+    
+    private void showStackCaptureDialog() {
+        android.content.SharedPreferences prefs = getSharedPreferences(StackCapturePolicy.PREFS_NAME, MODE_PRIVATE);
+        StackCapturePolicy policy = StackCapturePolicy.load(prefs);
+        StackCapturePolicy.Mode[] modes = StackCapturePolicy.Mode.values();
+        String[] labels = {
+                "Every call",
+                "Every " + policy.getSampleInterval() + "th call",
+                "Slow (≥ " + policy.getSlowThresholdUs() / 1000 + " ms) or failed calls",
+                "Never"
+        };
+
+        new AlertDialog.Builder(this)
+                .setTitle("Capture call stacks")
+                .setSingleChoiceItems(labels, policy.getMode().ordinal(), (dialog, which) -> {
+                    policy.withMode(modes[which]).save(prefs);
+                    CaptureRulesProvider.notifyChanged(this);
+                    dialog.dismiss();
+                    Toast.makeText(this,
+                        "Applies to running apps that can reach the logger, otherwise on their next connection",
+                        Toast.LENGTH_SHORT).show();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Edit the rules hooked processes use to decide what is logged at all
+     */
+    private void showCaptureRulesDialog() {
+        android.content.SharedPreferences prefs = getSharedPreferences(CaptureRules.PREFS_NAME, MODE_PRIVATE);
+        CaptureRules rules = CaptureRules.load(prefs);
+        android.view.View view = getLayoutInflater().inflate(R.layout.dialog_capture_rules, null);
+        TextInputEditText allowPackages = view.findViewById(R.id.rulesAllowPackages);
+        TextInputEditText denyPackages = view.findViewById(R.id.rulesDenyPackages);
+        TextInputEditText aidPrefixes = view.findViewById(R.id.rulesAidPrefixes);
+        TextInputEditText ins = view.findViewById(R.id.rulesIns);
+        android.widget.CheckBox headersOnly = view.findViewById(R.id.rulesHeadersOnly);
+        android.widget.CheckBox errorsOnly = view.findViewById(R.id.rulesErrorsOnly);
+        allowPackages.setText(rules.getAllowPackagesText());
+        denyPackages.setText(rules.getDenyPackagesText());
+        aidPrefixes.setText(rules.getAidPrefixesText());
+        ins.setText(rules.getInsText());
+        headersOnly.setChecked(rules.isHeadersOnly());
+        errorsOnly.setChecked(rules.isErrorsOnly());
+
+        new AlertDialog.Builder(this)
+                .setTitle("Capture rules")
+                .setView(view)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    try {
+                        CaptureRules.parse(
+                                String.valueOf(allowPackages.getText()),
+                                String.valueOf(denyPackages.getText()),
+                                String.valueOf(aidPrefixes.getText()),
+                                String.valueOf(ins.getText()),
+                                headersOnly.isChecked(),
+                                errorsOnly.isChecked()).save(prefs);
+                    } catch (IllegalArgumentException e) {
+                        Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    CaptureRulesProvider.notifyChanged(this);
+                    Toast.makeText(this, "Capture rules sent to hooked apps", Toast.LENGTH_SHORT).show();
+                })
+                .setNeutralButton("Capture all", (dialog, which) -> {
+                    CaptureRules.DEFAULT.save(prefs);
+                    CaptureRulesProvider.notifyChanged(this);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    private void showFlightRecorderDialog() {
+        android.content.SharedPreferences prefs = getSharedPreferences(FlightRecorderPolicy.PREFS_NAME, MODE_PRIVATE);
+        FlightRecorderPolicy policy = FlightRecorderPolicy.load(prefs);
+        android.view.View view = getLayoutInflater().inflate(R.layout.dialog_flight_recorder, null);
+        android.widget.CheckBox enabled = view.findViewById(R.id.recorderEnabled);
+        TextInputEditText maxEntries = view.findViewById(R.id.recorderMaxEntries);
+        TextInputEditText windowSeconds = view.findViewById(R.id.recorderWindowSeconds);
+        TextInputEditText latencyMs = view.findViewById(R.id.recorderLatencyMs);
+        enabled.setChecked(policy.isEnabled());
+        maxEntries.setText(String.valueOf(policy.getMaxEntries()));
+        windowSeconds.setText(String.valueOf(policy.getWindowMs() / 1000));
+        latencyMs.setText(String.valueOf(policy.getLatencyThresholdUs() / 1000));
+
+        new AlertDialog.Builder(this)
+                .setTitle("Flight recorder")
+                .setView(view)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    try {
+                        new FlightRecorderPolicy(
+                                enabled.isChecked(),
+                                Integer.parseInt(String.valueOf(maxEntries.getText()).trim()),
+                                Long.parseLong(String.valueOf(windowSeconds.getText()).trim()) * 1000,
+                                Long.parseLong(String.valueOf(latencyMs.getText()).trim()) * 1000,
+                                policy.getDumpRequest()).save(prefs);
+                    } catch (NumberFormatException e) {
+                        Toast.makeText(this, "Enter whole numbers", Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    CaptureRulesProvider.notifyChanged(this);
+                })
+                .setNeutralButton("Dump now", (dialog, which) -> {
+                    // Hooked apps dump when they see a new request number
+                    FlightRecorderPolicy saved = FlightRecorderPolicy.load(prefs);
+                    saved.withDumpRequest(saved.getDumpRequest() + 1).save(prefs);
+                    CaptureRulesProvider.notifyChanged(this);
+                    Toast.makeText(this, "Dump requested from hooked apps", Toast.LENGTH_SHORT).show();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    private void showDeliveryDialog() {
+        android.content.SharedPreferences prefs = getSharedPreferences(DeliveryPolicy.PREFS_NAME, MODE_PRIVATE);
+        DeliveryPolicy policy = DeliveryPolicy.load(prefs);
+        android.view.View view = getLayoutInflater().inflate(R.layout.dialog_delivery, null);
+        TextInputEditText capacity = view.findViewById(R.id.deliveryQueueCapacity);
+        android.widget.RadioGroup overflow = view.findViewById(R.id.deliveryOverflow);
+        TextInputEditText blockTimeout = view.findViewById(R.id.deliveryBlockTimeout);
+        capacity.setText(String.valueOf(policy.getQueueCapacity()));
+        blockTimeout.setText(String.valueOf(policy.getBlockTimeoutMs()));
+        switch (policy.getOverflow()) {
+            case DROP_OLDEST:
+                overflow.check(R.id.deliveryDropOldest);
+                break;
+            case BLOCK:
+                overflow.check(R.id.deliveryBlock);
+                break;
+            default:
+                overflow.check(R.id.deliveryDropNewest);
+                break;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("Delivery")
+                .setView(view)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    int checked = overflow.getCheckedRadioButtonId();
+                    DeliveryPolicy.Overflow selected = checked == R.id.deliveryDropOldest ? DeliveryPolicy.Overflow.DROP_OLDEST
+                            : checked == R.id.deliveryBlock ? DeliveryPolicy.Overflow.BLOCK
+                            : DeliveryPolicy.Overflow.DROP_NEWEST;
+                    try {
+                        new DeliveryPolicy(
+                                Integer.parseInt(String.valueOf(capacity.getText()).trim()),
+                                selected,
+                                Long.parseLong(String.valueOf(blockTimeout.getText()).trim())).save(prefs);
+                    } catch (NumberFormatException e) {
+                        Toast.makeText(this, "Enter whole numbers", Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    CaptureRulesProvider.notifyChanged(this);
+                })
+                .setNeutralButton("Defaults", (dialog, which) -> {
+                    DeliveryPolicy.DEFAULT.save(prefs);
+                    CaptureRulesProvider.notifyChanged(this);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    private void showLogCapacityDialog() {
+        final int[] capacities = {1_000, 10_000, 100_000, 250_000};
+        String[] labels = new String[capacities.length];
+        int checked = -1;
+        int current = CallLogger.getInstance().getCapacity();
+        for (int i = 0; i < capacities.length; i++) {
+            labels[i] = String.format(java.util.Locale.ROOT, "%,d entries", capacities[i]);
+            if (capacities[i] == current) {
+                checked = i;
+            }
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("Keep the latest")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    CallLogger.getInstance().setCapacity(capacities[which]);
+                    getSharedPreferences(CallLogger.PREFS_NAME, MODE_PRIVATE).edit()
+                            .putInt(CallLogger.KEY_CAPACITY, capacities[which])
+                            .apply();
+                    dialog.dismiss();
+                    refreshLogs();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
     }
     
     private void showHelp() {
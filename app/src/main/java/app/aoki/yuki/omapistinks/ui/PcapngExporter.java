@@ -0,0 +1,233 @@
+package app.aoki.yuki.omapistinks.ui;
+
+import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.Hex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Exports CallLogEntry data as pcapng for Wireshark
+ *
+ * Each entry becomes one Enhanced Packet Block holding an IPv4/UDP datagram to port 4729
+ * with a GSMTAP v2 header of type SIM, which Wireshark hands to its ISO 7816 (GSM SIM)
+ * dissector. The payload is the command APDU followed by the response APDU, as SIMtrace
+ * captures do; entries without APDU bytes (openChannel, close, ...) carry an empty payload.
+ * Package, function, AID, thread and latency are attached as the packet comment.
+ *
+ * The interface uses nanosecond timestamps (if_tsresol = 9). Blocks are written one at a
+ * time from a reused buffer.
+ */
+public class PcapngExporter implements ExportTask.EntryWriter {
+
+    public static final String MIME_TYPE = "application/x-pcapng";
+    public static final String EXTENSION = ".pcapng";
+
+    private static final int BLOCK_SHB = 0x0A0D0D0A;
+    private static final int BLOCK_IDB = 0x00000001;
+    private static final int BLOCK_EPB = 0x00000006;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    private static final int OPT_END = 0;
+    private static final int OPT_COMMENT = 1;
+    private static final int SHB_USERAPPL = 4;
+    private static final int IF_NAME = 2;
+    private static final int IF_TSRESOL = 9;
+
+    // LINKTYPE_RAW: packets start with the IPv4 header
+    private static final int LINKTYPE_RAW = 101;
+
+    private static final int GSMTAP_PORT = 4729;
+    private static final int GSMTAP_VERSION = 2;
+    private static final int GSMTAP_TYPE_SIM = 4;
+
+    private static final int IPV4_HEADER = 20;
+    private static final int UDP_HEADER = 8;
+    private static final int GSMTAP_HEADER = 16;
+    private static final int HEADERS = IPV4_HEADER + UDP_HEADER + GSMTAP_HEADER;
+    // IPv4 total length is 16 bits
+    private static final int MAX_PAYLOAD = 0xFFFF - HEADERS;
+
+    // Option length is 16 bits; keep it 4-byte aligned
+    private static final int MAX_OPTION = 0xFFFC;
+
+    // Entries between progress reports
+    private static final int PROGRESS_STEP = 256;
+
+    private ByteBuffer buf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+    @Override
+    public void write(List<CallLogEntry> entries, OutputStream out, ExportTask.Progress progress) throws IOException {
+        writeSectionHeader(out);
+        writeInterfaceDescription(out);
+
+        StringBuilder comment = new StringBuilder(128);
+        for (int i = 0; i < entries.size(); i++) {
+            writePacket(out, entries.get(i), comment);
+            if ((i + 1) % PROGRESS_STEP == 0 && !progress.update(i + 1)) {
+                return;
+            }
+        }
+        progress.update(entries.size());
+    }
+
+    private void writeSectionHeader(OutputStream out) throws IOException {
+        begin(BLOCK_SHB);
+        buf.putInt(BYTE_ORDER_MAGIC);
+        buf.putShort((short) 1);   // major
+        buf.putShort((short) 0);   // minor
+        buf.putLong(-1L);          // section length unknown
+        putOption(SHB_USERAPPL, "OMAPI Stinks".getBytes(StandardCharsets.UTF_8));
+        putEndOfOptions();
+        end(out);
+    }
+
+    private void writeInterfaceDescription(OutputStream out) throws IOException {
+        begin(BLOCK_IDB);
+        buf.putShort((short) LINKTYPE_RAW);
+        buf.putShort((short) 0);   // reserved
+        buf.putInt(0);             // snaplen: unlimited
+        putOption(IF_NAME, "omapi".getBytes(StandardCharsets.UTF_8));
+        putOption(IF_TSRESOL, new byte[]{9});
+        putEndOfOptions();
+        end(out);
+    }
+
+    private void writePacket(OutputStream out, CallLogEntry entry, StringBuilder comment) throws IOException {
+        byte[] command = entry.getApduCommandBytes();
+        byte[] response = entry.getApduResponseBytes();
+        int commandLength = command != null ? Math.min(command.length, MAX_PAYLOAD) : 0;
+        int responseLength = response != null ? Math.min(response.length, MAX_PAYLOAD - commandLength) : 0;
+        int payload = commandLength + responseLength;
+        int packetLength = HEADERS + payload;
+
+        comment.setLength(0);
+        appendComment(comment, entry);
+        byte[] commentBytes = comment.toString().getBytes(StandardCharsets.UTF_8);
+        if (commentBytes.length > MAX_OPTION) {
+            commentBytes = java.util.Arrays.copyOf(commentBytes, MAX_OPTION);
+        }
+
+        ensure(64 + packetLength + commentBytes.length);
+        begin(BLOCK_EPB);
+        long ts = entry.getTimestampNanos();
+        buf.putInt(0);                      // interface ID
+        buf.putInt((int) (ts >>> 32));
+        buf.putInt((int) ts);
+        buf.putInt(packetLength);           // captured length
+        buf.putInt(packetLength);           // original length
+
+        // Packet bytes are big-endian network order
+        int start = buf.position();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        putIpv4Header(packetLength);
+        buf.putShort((short) GSMTAP_PORT);  // UDP source port
+        buf.putShort((short) GSMTAP_PORT);  // UDP destination port
+        buf.putShort((short) (UDP_HEADER + GSMTAP_HEADER + payload));
+        buf.putShort((short) 0);            // UDP checksum: not computed
+        buf.put((byte) GSMTAP_VERSION);
+        buf.put((byte) (GSMTAP_HEADER / 4));
+        buf.put((byte) GSMTAP_TYPE_SIM);
+        buf.put((byte) 0);                  // timeslot
+        buf.putShort((short) 0);            // ARFCN
+        buf.put((byte) 0);                  // signal dBm
+        buf.put((byte) 0);                  // SNR dB
+        buf.putInt(0);                      // frame number
+        buf.put((byte) 0);                  // sub type
+        buf.put((byte) 0);                  // antenna
+        buf.put((byte) 0);                  // sub slot
+        buf.put((byte) 0);                  // reserved
+        if (commandLength > 0) {
+            buf.put(command, 0, commandLength);
+        }
+        if (responseLength > 0) {
+            buf.put(response, 0, responseLength);
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        pad(buf.position() - start);
+
+        putOption(OPT_COMMENT, commentBytes);
+        putEndOfOptions();
+        end(out);
+    }
+
+    private void putIpv4Header(int totalLength) {
+        int start = buf.position();
+        buf.put((byte) 0x45);               // version 4, 5 words
+        buf.put((byte) 0);                  // DSCP/ECN
+        buf.putShort((short) totalLength);
+        buf.putShort((short) 0);            // identification
+        buf.putShort((short) 0x4000);       // don't fragment
+        buf.put((byte) 64);                 // TTL
+        buf.put((byte) 17);                 // UDP
+        buf.putShort((short) 0);            // checksum, filled below
+        buf.putInt(0x7F000001);             // 127.0.0.1
+        buf.putInt(0x7F000001);
+        int sum = 0;
+        for (int i = 0; i < IPV4_HEADER; i += 2) {
+            sum += buf.getShort(start + i) & 0xFFFF;
+        }
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum += sum >>> 16;
+        buf.putShort(start + 10, (short) ~sum);
+    }
+
+    private static void appendComment(StringBuilder sb, CallLogEntry entry) {
+        sb.append(entry.getFunctionName());
+        sb.append(" pkg=").append(entry.getPackageName());
+        if (entry.getAidBytes() != null) {
+            sb.append(" aid=");
+            Hex.append(sb, entry.getAidBytes(), 0, entry.getAidBytes().length);
+        }
+        sb.append(" pid=").append(entry.getProcessId());
+        sb.append(" tid=").append(entry.getThreadId());
+        if (entry.getThreadName() != null) {
+            sb.append(" thread=").append(entry.getThreadName());
+        }
+        sb.append(" latency=").append(entry.getExecutionTimeUs()).append("us");
+        if (entry.getError() != null) {
+            sb.append(" error=").append(entry.getError());
+        }
+    }
+
+    private void ensure(int size) {
+        if (buf.capacity() < size) {
+            buf = ByteBuffer.allocate(Integer.highestOneBit(size) * 2).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private void begin(int type) {
+        buf.clear();
+        buf.putInt(type);
+        buf.putInt(0);                      // total length, patched in end()
+    }
+
+    private void end(OutputStream out) throws IOException {
+        int length = buf.position() + 4;
+        buf.putInt(4, length);
+        buf.putInt(length);
+        out.write(buf.array(), 0, length);
+    }
+
+    private void putOption(int code, byte[] value) {
+        buf.putShort((short) code);
+        buf.putShort((short) value.length);
+        buf.put(value);
+        pad(value.length);
+    }
+
+    private void putEndOfOptions() {
+        buf.putShort((short) OPT_END);
+        buf.putShort((short) 0);
+    }
+
+    private void pad(int length) {
+        for (int i = length; (i & 3) != 0; i++) {
+            buf.put((byte) 0);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package app.aoki.yuki.omapistinks.xposed;
+
+import app.aoki.yuki.omapistinks.core.CaptureRules;
+import app.aoki.yuki.omapistinks.core.CaptureRulesProvider;
+import app.aoki.yuki.omapistinks.core.Constants;
+import app.aoki.yuki.omapistinks.core.DeliveryPolicy;
+import app.aoki.yuki.omapistinks.core.FlightRecorderPolicy;
+import app.aoki.yuki.omapistinks.core.StackCapturePolicy;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import de.robv.android.xposed.XposedBridge;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Keeps CaptureRules, StackCapturePolicy, FlightRecorderPolicy and DeliveryPolicy of the
+ * hooked process in sync with the logger app
+ *
+ * Fetches the configuration from CaptureRulesProvider once the app context exists, then
+ * refetches whenever the provider URI changes. All IPC happens on a dedicated thread;
+ * hooks only read the published values. If the provider cannot be reached the process keeps
+ * the defaults until LogIngestService.openRing delivers the same configuration (flight
+ * recording excepted: it stays off without the provider).
+ *
+ * A new FlightRecorderPolicy dump request, or the recorder being switched off, is passed
+ * to the dump handler so the recorded entries are sent.
+ */
+public final class CaptureRulesClient {
+
+    private static final String TAG = "OmapiStinks";
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static volatile Consumer<String> dumpHandler;
+    // Whether a recorder policy was fetched before; the first one carries no new request
+    private static boolean recorderFetched;
+
+    private CaptureRulesClient() {
+    }
+
+    /**
+     * Start syncing; only the first call per process has an effect
+     */
+    public static void start(Context context) {
+        if (context == null || !started.compareAndSet(false, true)) {
+            return;
+        }
+        Context appCtx = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        HandlerThread thread = new HandlerThread(TAG + "-rules");
+        thread.setDaemon(true);
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        handler.post(() -> {
+            ContentResolver resolver = appCtx.getContentResolver();
+            try {
+                resolver.registerContentObserver(CaptureRulesProvider.URI, false, new ContentObserver(handler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        fetch(resolver);
+                    }
+                });
+            } catch (Throwable t) {
+                // Logger app not installed or not visible to this package
+                XposedBridge.log(TAG + ": Cannot observe capture rules: " + t);
+            }
+            fetch(resolver);
+        });
+    }
+
+    /**
+     * Receives flight-recorder dump requests with their reason; called on the rules thread
+     */
+    public static void setDumpHandler(Consumer<String> handler) {
+        dumpHandler = handler;
+    }
+
+    private static void fetch(ContentResolver resolver) {
+        try {
+            Bundle config = resolver.call(CaptureRulesProvider.URI, CaptureRulesProvider.METHOD_GET_CONFIG, null, null);
+            if (config == null) {
+                return;
+            }
+            CaptureRules rules = CaptureRules.fromBundle(config.getBundle(Constants.EXTRA_CAPTURE_RULES));
+            if (rules != null) {
+                CaptureRules.setCurrent(rules);
+            }
+            StackCapturePolicy policy = StackCapturePolicy.fromBundle(config.getBundle(Constants.EXTRA_STACK_POLICY));
+            if (policy != null) {
+                StackCapturePolicy.setCurrent(policy);
+            }
+            DeliveryPolicy delivery = DeliveryPolicy.fromBundle(config.getBundle(Constants.EXTRA_DELIVERY_POLICY));
+            if (delivery != null) {
+                DeliveryPolicy.setCurrent(delivery);
+            }
+            FlightRecorderPolicy recorder = FlightRecorderPolicy.fromBundle(config.getBundle(Constants.EXTRA_RECORDER_POLICY));
+            if (recorder != null) {
+                FlightRecorderPolicy previous = FlightRecorderPolicy.current();
+                FlightRecorderPolicy.setCurrent(recorder);
+                String reason = null;
+                if (recorderFetched && recorder.getDumpRequest() != previous.getDumpRequest()) {
+                    reason = "manual";
+                } else if (previous.isEnabled() && !recorder.isEnabled()) {
+                    reason = "recorder disabled";
+                }
+                recorderFetched = true;
+                Consumer<String> handler = dumpHandler;
+                if (reason != null && handler != null) {
+                    handler.accept(reason);
+                }
+            }
+        } catch (Throwable t) {
+            XposedBridge.log(TAG + ": Cannot fetch capture rules: " + t);
+        }
+    }
+}
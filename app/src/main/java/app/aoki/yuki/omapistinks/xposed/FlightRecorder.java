@@ -0,0 +1,159 @@
+package app.aoki.yuki.omapistinks.xposed;
+
+import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.EntryCodec;
+import app.aoki.yuki.omapistinks.core.FlightRecorderPolicy;
+import app.aoki.yuki.omapistinks.core.StackTable;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.robv.android.xposed.XposedBridge;
+
+/**
+ * In-process ring of the most recent entries, used by LogBroadcaster in flight-recorder mode
+ *
+ * Entries are held as EntryCodec records plus their capture time, not as CallLogEntry
+ * objects, so a full ring costs about a hundred bytes per entry. A captured stack is
+ * symbolized when the entry is recorded and interned in StackTable; the record keeps only
+ * the call-site ID. A dump takes the records out of the ring as they are (Dump) and the
+ * flusher decodes them, so the hooked thread that fires the trigger only copies references.
+ * The entry that fires the trigger is passed through as is. The oldest record is overwritten
+ * once the ring holds FlightRecorderPolicy.getMaxEntries(). The window in seconds is applied
+ * when the ring is dumped.
+ */
+final class FlightRecorder {
+
+    private static final String TAG = "OmapiStinks.FlightRecorder";
+
+    private byte[][] records = new byte[0][];
+    private long[] elapsedNanos = new long[0];
+    // Index of the next write
+    private int head;
+    private int size;
+
+    /**
+     * Records taken out of the ring by a trigger, still encoded
+     */
+    static final class Dump {
+        final List<byte[]> records;
+        // Entry that fired the trigger, or null for a manual dump
+        final CallLogEntry trigger;
+        final String reason;
+
+        Dump(List<byte[]> records, CallLogEntry trigger, String reason) {
+            this.records = records;
+            this.trigger = trigger;
+            this.reason = reason;
+        }
+
+        boolean isEmpty() {
+            return records.isEmpty() && trigger == null;
+        }
+
+        /**
+         * Decode the records; called on the flusher thread
+         * @return the dumped entries, oldest first and ending with the trigger entry
+         */
+        List<CallLogEntry> decode() {
+            List<CallLogEntry> out = new ArrayList<>(records.size() + 1);
+            for (byte[] record : records) {
+                try {
+                    out.addAll(EntryCodec.decode(record, StackTable.getInstance()));
+                } catch (IllegalArgumentException e) {
+                    XposedBridge.log(TAG + ": Dropped unreadable record: " + e.getMessage());
+                }
+            }
+            if (trigger != null) {
+                out.add(trigger);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Record an entry
+     * @param triggerReason why this entry fires a dump, or null if it does not
+     * @return the dump ending with this entry, or null if not triggered
+     */
+    Dump record(CallLogEntry entry, FlightRecorderPolicy policy, String triggerReason) {
+        if (triggerReason != null) {
+            return new Dump(take(policy), entry, triggerReason);
+        }
+        byte[] record = encode(entry);
+        synchronized (this) {
+            if (records.length != policy.getMaxEntries()) {
+                resize(policy.getMaxEntries());
+            }
+            records[head] = record;
+            elapsedNanos[head] = entry.getElapsedRealtimeNanos();
+            head = (head + 1) % records.length;
+            if (size < records.length) {
+                size++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take every record inside the policy window and empty the ring
+     */
+    Dump drain(FlightRecorderPolicy policy, String reason) {
+        return new Dump(take(policy), null, reason);
+    }
+
+    private List<byte[]> take(FlightRecorderPolicy policy) {
+        long cutoff = SystemClock.elapsedRealtimeNanos() - TimeUnit.MILLISECONDS.toNanos(policy.getWindowMs());
+        synchronized (this) {
+            List<byte[]> taken = new ArrayList<>(size);
+            int start = head - size;
+            if (start < 0) {
+                start += records.length;
+            }
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % records.length;
+                if (elapsedNanos[index] >= cutoff) {
+                    taken.add(records[index]);
+                }
+                records[index] = null;
+            }
+            size = 0;
+            return taken;
+        }
+    }
+
+    private static byte[] encode(CallLogEntry entry) {
+        StackTraceElement[] frames = entry.getStackTraceElements();
+        long callSiteId = 0;
+        if (frames != null && frames.length > 0) {
+            callSiteId = StackTable.callSiteId(frames);
+            StackTable.getInstance().put(callSiteId, frames);
+        }
+        return new EntryCodec.Encoder().add(entry, callSiteId, null).toByteArray();
+    }
+
+    /**
+     * Change the capacity, keeping the newest records
+     */
+    private void resize(int capacity) {
+        byte[][] resized = new byte[capacity][];
+        long[] resizedNanos = new long[capacity];
+        int keep = Math.min(size, capacity);
+        int start = head - keep;
+        if (start < 0) {
+            start += records.length;
+        }
+        for (int i = 0; i < keep; i++) {
+            int index = (start + i) % records.length;
+            resized[i] = records[index];
+            resizedNanos[i] = elapsedNanos[index];
+        }
+        records = resized;
+        elapsedNanos = resizedNanos;
+        size = keep;
+        head = keep % capacity;
+    }
+}
@@ -1,26 +1,153 @@
 package app.aoki.yuki.omapistinks.xposed;
 
+import app.aoki.yuki.omapistinks.BuildConfig;
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.CaptureRules;
 import app.aoki.yuki.omapistinks.core.Constants;
+import app.aoki.yuki.omapistinks.core.DeliveryPolicy;
+import app.aoki.yuki.omapistinks.core.EntryCodec;
+import app.aoki.yuki.omapistinks.core.FlightRecorderPolicy;
+import app.aoki.yuki.omapistinks.core.ILogIngestService;
+import app.aoki.yuki.omapistinks.core.SharedRing;
+import app.aoki.yuki.omapistinks.core.StackCapturePolicy;
+import app.aoki.yuki.omapistinks.core.StackTable;
+import app.aoki.yuki.omapistinks.core.Timestamps;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
 
 import de.robv.android.xposed.XposedBridge;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Handles broadcasting structured log data to the UI app
  * Uses ContextProvider for lazy context resolution with fallback support
+ *
+ * Hooks only enqueue entries; a background flusher thread drains the queue and
+ * sends them in batches (every BATCH_SIZE entries or every FLUSH_INTERVAL_MS)
+ * so the hooked binder/UI thread never pays for Intent building or IPC.
+ *
+ * Batches are encoded with EntryCodec and go through a cached binding to
+ * LogIngestService (oneway submitEncoded);
+ * the manifest broadcast is only used while the service is not connected.
+ * Once bound, entries are written into a SharedMemory ring obtained from the service
+ * and the service is only signalled when it may have gone idle before the new records;
+ * entries that do not fit a ring slot (or arrive while it is full) use submitEncoded.
+ *
+ * Stacks are interned: each entry carries a call-site ID, and the frames are only
+ * included the first time the connected service instance sees that ID.
+ *
+ * In flight-recorder mode (FlightRecorderPolicy) entries go into an in-process ring
+ * instead of the queue; nothing is sent and the flusher does not even start until a
+ * trigger fires. The dumped records are handed to the flusher as one item, outside the
+ * queue and its DeliveryPolicy, and decoded there; a marker entry follows them.
+ *
+ * Every queued entry gets the next per-process source sequence number, paired with a token
+ * that is new for every process (SOURCE_TOKEN) so a reused PID starts a new stream. The
+ * queue is bounded by DeliveryPolicy, whose overflow policy decides what is dropped;
+ * dropped entries, and batches that cannot be delivered at all, are counted and leave a
+ * gap in the sequence that the app reports as lost entries. After drops a delivery stats entry is sent at most every
+ * STATS_INTERVAL_MS.
  */
 public class LogBroadcaster {
     private static final String TAG = "OmapiStinks";
+
+    // Wake the flusher early once this many entries are pending; also the max entries per IPC
+    private static final int BATCH_SIZE = 32;
+    private static final long FLUSH_INTERVAL_MS = 200;
+    // How often a blocked hooked thread rechecks for room in the queue
+    private static final long BLOCK_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Minimum delay between delivery stats entries
+    private static final long STATS_INTERVAL_MS = 10_000;
+    // Minimum delay before retrying a failed or dropped service binding
+    private static final long REBIND_INTERVAL_MS = 5000;
+    // Forget (and later resend) interned stacks beyond this many distinct call sites
+    private static final int MAX_SENT_CALL_SITES = 1024;
+
+    // Shared by every broadcaster in the process so the receiver sees one stream per PID
+    private static final AtomicLong NEXT_SOURCE_SEQUENCE = new AtomicLong();
+    // Tells this process's stream apart from an earlier process with the same PID; the class
+    // is loaded after the zygote fork, so two processes never share a value
+    private static final long SOURCE_TOKEN = SystemClock.elapsedRealtimeNanos() | 1;
+
     private final ContextProvider contextProvider;
     private final String packageName;
-    private final SimpleDateFormat dateFormat;
+
+    private final ConcurrentLinkedQueue<CallLogEntry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    // Flight recorder dumps waiting to be decoded by the flusher; not counted in pending
+    private final ConcurrentLinkedQueue<FlightRecorder.Dump> dumps = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flusherStarted = new AtomicBoolean();
+    private volatile Thread flusher;
+
+    private final FlightRecorder recorder = new FlightRecorder();
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    // Dropped count at the last stats entry, and when it was sent; flusher thread only
+    private long reportedDropped;
+    private long lastStatsMs;
+
+    // Binder connection state; bind attempts are made from the flusher thread only
+    private volatile ILogIngestService ingestService;
+    private volatile boolean bound;
+    private long nextBindAttemptMs;
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            ingestService = ILogIngestService.Stub.asInterface(service);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // Binding stays registered; the system reconnects when the service restarts
+            ingestService = null;
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            ingestService = null;
+            bound = false;
+        }
+
+        @Override
+        public void onNullBinding(ComponentName name) {
+            ingestService = null;
+            bound = false;
+        }
+    };
+
+    // Shared ring state; touched by the flusher thread only
+    private final Binder ringToken = new Binder();
+    private ILogIngestService ringOwner;
+    private SharedMemory ringMemory;
+    private ByteBuffer ringMapping;
+    private SharedRing ring;
+
+    // Call sites whose frames the current service instance has already received; flusher thread only
+    private final Set<Long> sentCallSites = new HashSet<>();
+    private ILogIngestService callSiteReceiver;
 
     /**
      * Constructor using ContextProvider for lazy context resolution
@@ -30,21 +157,222 @@ public class LogBroadcaster {
     public LogBroadcaster(ContextProvider contextProvider, String packageName) {
         this.contextProvider = contextProvider;
         this.packageName = packageName;
-        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
     }
 
     /**
-     * Send a structured log entry via broadcast
-     * Context is resolved lazily each time to handle cases where context becomes available later
+     * Queue a structured log entry for delivery.
+     * Called on the hooked thread, so this only enqueues and (at most) wakes the flusher.
      */
     public void logMessage(CallLogEntry entry) {
+        if (entry == null) {
+            return;
+        }
+        FlightRecorderPolicy policy = FlightRecorderPolicy.current();
+        if (policy.isEnabled()) {
+            FlightRecorder.Dump dump = recorder.record(entry, policy, policy.triggerReason(entry));
+            if (dump != null) {
+                enqueueDump(dump);
+            }
+            return;
+        }
+        enqueue(entry);
+    }
+
+    /**
+     * Send whatever the flight recorder holds, e.g. on a manual trigger from the app
+     * @param reason shown in the marker entry
+     */
+    public void dumpFlightRecorder(String reason) {
+        FlightRecorder.Dump dump = recorder.drain(FlightRecorderPolicy.current(), reason);
+        if (!dump.isEmpty()) {
+            enqueueDump(dump);
+        }
+    }
+
+    /**
+     * Hand a dump to the flusher; never blocks or drops, whatever the overflow policy
+     */
+    private void enqueueDump(FlightRecorder.Dump dump) {
+        dumps.offer(dump);
+        Thread t = flusher;
+        if (t == null) {
+            startFlusher();
+        } else {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Decode a dump into the batch, followed by its marker entry; flusher thread only
+     */
+    private void addDump(FlightRecorder.Dump dump, ArrayList<CallLogEntry> batch) {
+        List<CallLogEntry> entries = dump.decode();
+        entries.add(CallLogEntry.createHookEntry(packageName, "FlightRecorder",
+                "Flight recorder dump (" + dump.reason + "): " + entries.size() + " entries"));
+        for (CallLogEntry entry : entries) {
+            entry.assignSourceSequence(SOURCE_TOKEN, NEXT_SOURCE_SEQUENCE.incrementAndGet());
+            enqueuedCount.incrementAndGet();
+            batch.add(entry);
+            if (batch.size() >= BATCH_SIZE) {
+                sendBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void enqueue(CallLogEntry entry) {
+        entry.assignSourceSequence(SOURCE_TOKEN, NEXT_SOURCE_SEQUENCE.incrementAndGet());
+        enqueuedCount.incrementAndGet();
+        DeliveryPolicy policy = DeliveryPolicy.current();
+        int size = pending.incrementAndGet();
+        if (size > policy.getQueueCapacity() && !makeRoom(policy)) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        queue.offer(entry);
+
+        Thread t = flusher;
+        if (t == null) {
+            startFlusher();
+        } else if (size >= BATCH_SIZE) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Apply the overflow policy for an entry whose slot in pending is already counted
+     * @return true if the entry may be queued (slot kept), false if it is dropped (slot released)
+     */
+    private boolean makeRoom(DeliveryPolicy policy) {
+        switch (policy.getOverflow()) {
+            case DROP_OLDEST:
+                if (queue.poll() != null) {
+                    pending.decrementAndGet();
+                    droppedCount.incrementAndGet();
+                }
+                // Otherwise the flusher emptied the queue in the meantime
+                return true;
+            case BLOCK:
+                pending.decrementAndGet();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getBlockTimeoutMs());
+                Thread t = flusher;
+                if (t != null) {
+                    LockSupport.unpark(t);
+                }
+                while (true) {
+                    if (pending.incrementAndGet() <= policy.getQueueCapacity()) {
+                        return true;
+                    }
+                    pending.decrementAndGet();
+                    if (System.nanoTime() >= deadline) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, BLOCK_POLL_NANOS);
+                }
+            default:
+                pending.decrementAndGet();
+                return false;
+        }
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Entries lost to queue overflow or failed delivery
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private void startFlusher() {
+        if (!flusherStarted.compareAndSet(false, true)) {
+            return;
+        }
+        Thread t = new Thread(this::flushLoop, TAG + "-flusher");
+        t.setDaemon(true);
+        flusher = t;
+        t.start();
+    }
+
+    private void flushLoop() {
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+        ArrayList<CallLogEntry> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            if (pending.get() < BATCH_SIZE) {
+                LockSupport.parkNanos(this, intervalNanos);
+            }
+            try {
+                FlightRecorder.Dump dump;
+                while ((dump = dumps.poll()) != null) {
+                    addDump(dump, batch);
+                }
+                CallLogEntry entry;
+                while ((entry = queue.poll()) != null) {
+                    pending.decrementAndGet();
+                    batch.add(entry);
+                    if (batch.size() >= BATCH_SIZE) {
+                        sendBatch(batch);
+                        batch.clear();
+                    }
+                }
+                addStatsEntry(batch);
+                if (!batch.isEmpty()) {
+                    sendBatch(batch);
+                    batch.clear();
+                }
+            } catch (Throwable t) {
+                batch.clear();
+                XposedBridge.log(TAG + ": Error in flusher: " + t);
+            }
+        }
+    }
+
+    /**
+     * Add a delivery stats entry when entries were dropped since the last one
+     */
+    private void addStatsEntry(ArrayList<CallLogEntry> batch) {
+        long dropped = droppedCount.get();
+        long now = SystemClock.elapsedRealtime();
+        if (dropped == reportedDropped || now - lastStatsMs < STATS_INTERVAL_MS) {
+            return;
+        }
+        reportedDropped = dropped;
+        lastStatsMs = now;
+        CallLogEntry stats = CallLogEntry.createHookEntry(packageName, "LogBroadcaster",
+                "Delivery stats: " + enqueuedCount.get() + " queued, " + sentCount.get() + " sent, "
+                        + dropped + " dropped (" + DeliveryPolicy.current().getOverflow() + ")");
+        stats.assignSourceSequence(SOURCE_TOKEN, NEXT_SOURCE_SEQUENCE.incrementAndGet());
+        enqueuedCount.incrementAndGet();
+        batch.add(stats);
+    }
+
+    /**
+     * Send a batch of entries as a single IPC
+     * Context is resolved lazily each time to handle cases where context becomes available later
+     */
+    private void sendBatch(ArrayList<CallLogEntry> batch) {
+        // Entries already written to the ring or handed to IPC
+        int delivered = 0;
+        // Prepared entries not handed off yet; their interning decisions are undone on failure
+        List<Outgoing> undelivered = null;
         try {
-            String logMsg = TAG + ": [" + packageName + "] " + entry.getFunctionName() + " (" + entry.getType() + ") [TID:" + entry.getThreadId() + ", PID:" + entry.getProcessId() + ", " + entry.getExecutionTimeMs() + "ms]";
-            if (entry.hasError()) {
-                logMsg += " ERROR: " + entry.getError();
+            // Per-entry trace for development only; release builds keep the flusher free of string building
+            if (BuildConfig.DEBUG) {
+                for (CallLogEntry entry : batch) {
+                    String logMsg = TAG + ": [" + packageName + "] " + entry.getFunctionName() + " (" + entry.getType() + ") [TID:" + entry.getThreadId() + ", PID:" + entry.getProcessId() + ", " + Timestamps.formatDuration(entry.getExecutionTimeUs()) + "]";
+                    if (entry.hasError()) {
+                        logMsg += " ERROR: " + entry.getError();
+                    }
+                    XposedBridge.log(logMsg);
+                }
             }
-            XposedBridge.log(logMsg);
-            
+
             // Resolve context lazily each time we send
             Context ctx = null;
             try {
@@ -52,69 +380,275 @@ public class LogBroadcaster {
             } catch (Throwable t) {
                 XposedBridge.log(TAG + ": Error obtaining context from ContextProvider: " + t);
             }
-            
+
             if (ctx != null) {
-                Intent intent = new Intent(Constants.BROADCAST_ACTION);
-                intent.setClassName(Constants.PACKAGE_NAME, Constants.PACKAGE_NAME + ".core.LogReceiver");
-                intent.putExtra(Constants.EXTRA_TIMESTAMP, entry.getTimestamp());
-                intent.putExtra(Constants.EXTRA_SHORT_TIMESTAMP, entry.getShortTimestamp());
-                intent.putExtra(Constants.EXTRA_PACKAGE, entry.getPackageName());
-                intent.putExtra(Constants.EXTRA_FUNCTION, entry.getFunctionName());
-                intent.putExtra(Constants.EXTRA_TYPE, entry.getType());
-                
-                if (entry.getApduInfo() != null) {
-                    intent.putExtra(Constants.EXTRA_APDU_COMMAND, entry.getApduInfo().getCommand());
-                    intent.putExtra(Constants.EXTRA_APDU_RESPONSE, entry.getApduInfo().getResponse());
+                // No-op after the first call; covers processes whose hooks never saw an SEService
+                CaptureRulesClient.start(ctx);
+                ensureBound(ctx);
+                ILogIngestService service = ingestService;
+                if (service != callSiteReceiver || sentCallSites.size() > MAX_SENT_CALL_SITES) {
+                    // New receiver process (or a full dictionary): start interning from scratch
+                    sentCallSites.clear();
+                    callSiteReceiver = service;
                 }
-                
-                intent.putExtra(Constants.EXTRA_AID, entry.getAid());
-                intent.putExtra(Constants.EXTRA_SELECT_RESPONSE, entry.getSelectResponse());
-                intent.putExtra(Constants.EXTRA_DETAILS, entry.getDetails());
-                intent.putExtra(Constants.EXTRA_THREAD_ID, entry.getThreadId());
-                intent.putExtra(Constants.EXTRA_THREAD_NAME, entry.getThreadName());
-                intent.putExtra(Constants.EXTRA_PROCESS_ID, entry.getProcessId());
-                intent.putExtra(Constants.EXTRA_EXECUTION_TIME_MS, entry.getExecutionTimeMs());
-                intent.putExtra(Constants.EXTRA_ERROR, entry.getError());
-
-                if (entry.hasStackTrace()) {
-                    intent.putExtra(Constants.EXTRA_STACKTRACE, entry.getStackTraceElements());
+
+                List<Outgoing> outgoing = new ArrayList<>(batch.size());
+                for (CallLogEntry entry : batch) {
+                    outgoing.add(prepare(entry));
                 }
+                undelivered = outgoing;
 
-                intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
-                
-                ctx.sendBroadcast(intent);
+                List<Outgoing> remaining = writeToRing(outgoing);
+                undelivered = remaining;
+                delivered = batch.size() - remaining.size();
+                if (!remaining.isEmpty()) {
+                    byte[] payload = encode(remaining);
+                    if (!submitToService(payload)) {
+                        sendBroadcast(ctx, payload);
+                    }
+                }
+                undelivered = null;
+                delivered = batch.size();
             } else {
-                XposedBridge.log(TAG + ": Context is null; skipping broadcast for " + entry.getFunctionName());
+                XposedBridge.log(TAG + ": Context is null; dropping " + batch.size() + " entries");
+            }
+        } catch (Throwable t) {
+            XposedBridge.log(TAG + ": Error broadcasting log batch, dropping "
+                    + (batch.size() - delivered) + " entries: " + t.getMessage());
+        }
+        if (undelivered != null) {
+            forgetCallSites(undelivered);
+        }
+        sentCount.addAndGet(delivered);
+        droppedCount.addAndGet(batch.size() - delivered);
+    }
+
+    /**
+     * Undo prepare() for entries that never left the process, so the next entry from
+     * those call sites carries its frames again
+     */
+    private void forgetCallSites(List<Outgoing> undelivered) {
+        for (Outgoing o : undelivered) {
+            if (o.frames != null && o.callSiteId != 0) {
+                sentCallSites.remove(o.callSiteId);
+            }
+        }
+    }
+
+    /**
+     * Bind LogIngestService once; retried periodically if the binding fails or dies
+     */
+    private void ensureBound(Context ctx) {
+        if (bound) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now < nextBindAttemptMs) {
+            return;
+        }
+        nextBindAttemptMs = now + REBIND_INTERVAL_MS;
+
+        Context appCtx = ctx.getApplicationContext() != null ? ctx.getApplicationContext() : ctx;
+        try {
+            // Drop a dead binding before rebinding
+            appCtx.unbindService(connection);
+        } catch (Throwable ignored) {
+            // Was not bound
+        }
+        try {
+            Intent intent = new Intent();
+            intent.setClassName(Constants.PACKAGE_NAME, Constants.PACKAGE_NAME + ".core.LogIngestService");
+            bound = appCtx.bindService(intent, connection, Context.BIND_AUTO_CREATE);
+            if (!bound) {
+                XposedBridge.log(TAG + ": LogIngestService not bindable; using broadcast fallback");
+            }
+        } catch (Throwable t) {
+            bound = false;
+            XposedBridge.log(TAG + ": Error binding LogIngestService: " + t);
+        }
+    }
+
+    /**
+     * Write entries into the shared ring, ringing the doorbell if the reader may be idle
+     * @return entries that could not be written and still need delivery
+     */
+    private List<Outgoing> writeToRing(List<Outgoing> outgoing) {
+        ILogIngestService service = ingestService;
+        SharedRing r = service != null ? obtainRing(service) : null;
+        if (r == null) {
+            return outgoing;
+        }
+
+        long start = r.writePosition();
+        List<Outgoing> overflow = new ArrayList<>();
+        writeRecords(r, outgoing, overflow);
+
+        // Decided after writing, so a reader that went idle in the meantime is still woken
+        if (r.needsDoorbell(start)) {
+            try {
+                service.ringDoorbell();
+            } catch (RemoteException e) {
+                // Service died; its ring and anything left in it go with it
+                ingestService = null;
+                releaseRing();
+                return outgoing;
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * Pack entries into as few ring records as fit a slot, halving runs that are too large
+     * @return number of records written
+     */
+    private static int writeRecords(SharedRing r, List<Outgoing> outgoing, List<Outgoing> overflow) {
+        byte[] payload = encode(outgoing);
+        if (payload.length <= r.maxPayload()) {
+            if (r.write(payload)) {
+                return 1;
+            }
+            overflow.addAll(outgoing);
+            return 0;
+        }
+        if (outgoing.size() == 1) {
+            overflow.addAll(outgoing);
+            return 0;
+        }
+        int mid = outgoing.size() / 2;
+        return writeRecords(r, outgoing.subList(0, mid), overflow)
+                + writeRecords(r, outgoing.subList(mid, outgoing.size()), overflow);
+    }
+
+    /**
+     * Map the ring for the currently connected service instance, opening it on first use
+     */
+    private SharedRing obtainRing(ILogIngestService service) {
+        if (ringOwner == service) {
+            return ring;
+        }
+        releaseRing();
+        // Remember the attempt even on failure so we do not retry against the same instance
+        ringOwner = service;
+        try {
+            Bundle result = service.openRing(ringToken);
+            SharedMemory memory = null;
+            if (result != null) {
+                StackCapturePolicy policy = StackCapturePolicy.fromBundle(result.getBundle(Constants.EXTRA_STACK_POLICY));
+                if (policy != null) {
+                    StackCapturePolicy.setCurrent(policy);
+                }
+                CaptureRules rules = CaptureRules.fromBundle(result.getBundle(Constants.EXTRA_CAPTURE_RULES));
+                if (rules != null) {
+                    CaptureRules.setCurrent(rules);
+                }
+                DeliveryPolicy delivery = DeliveryPolicy.fromBundle(result.getBundle(Constants.EXTRA_DELIVERY_POLICY));
+                if (delivery != null) {
+                    DeliveryPolicy.setCurrent(delivery);
+                }
+                if (Build.VERSION.SDK_INT >= 33) {
+                    memory = result.getParcelable(Constants.EXTRA_RING, SharedMemory.class);
+                } else {
+                    memory = result.getParcelable(Constants.EXTRA_RING);
+                }
+            }
+            if (memory == null) {
+                return null;
+            }
+            ByteBuffer mapping = memory.mapReadWrite();
+            SharedRing attached = SharedRing.attach(mapping);
+            if (attached == null) {
+                SharedMemory.unmap(mapping);
+                memory.close();
+                return null;
             }
+            ringMemory = memory;
+            ringMapping = mapping;
+            ring = attached;
         } catch (Throwable t) {
-            XposedBridge.log(TAG + ": Error broadcasting log: " + t.getMessage());
+            XposedBridge.log(TAG + ": Shared ring unavailable, using submitEncoded: " + t);
+        }
+        return ring;
+    }
+
+    private void releaseRing() {
+        if (ringMapping != null) {
+            SharedMemory.unmap(ringMapping);
+        }
+        if (ringMemory != null) {
+            ringMemory.close();
         }
+        ring = null;
+        ringMapping = null;
+        ringMemory = null;
+        ringOwner = null;
     }
 
     /**
-     * Create a timestamp for log entries
+     * @return true if the batch was handed to the Binder service
      */
-    public String createTimestamp() {
-        return dateFormat.format(new Date());
+    private boolean submitToService(byte[] payload) {
+        ILogIngestService service = ingestService;
+        if (service == null) {
+            return false;
+        }
+        try {
+            service.submitEncoded(payload);
+            return true;
+        } catch (RemoteException e) {
+            // Dead or oversized transaction; fall back until the connection recovers
+            ingestService = null;
+            XposedBridge.log(TAG + ": submitEncoded failed, falling back to broadcast: " + e);
+            return false;
+        }
+    }
+
+    private void sendBroadcast(Context ctx, byte[] payload) {
+        Intent intent = new Intent(Constants.BROADCAST_ACTION);
+        intent.setClassName(Constants.PACKAGE_NAME, Constants.PACKAGE_NAME + ".core.LogReceiver");
+        intent.putExtra(Constants.EXTRA_ENCODED, payload);
+        intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+
+        ctx.sendBroadcast(intent);
     }
 
     /**
-     * Create a short timestamp for display
+     * Resolve the entry's stack and decide whether its frames still need to be sent
+     * The call site counts as sent from here on; sendBatch rolls that back if the entry
+     * is not handed off.
      */
-    public String createShortTimestamp() {
-        SimpleDateFormat shortFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.getDefault());
-        return shortFormat.format(new Date());
+    private Outgoing prepare(CallLogEntry entry) {
+        StackTraceElement[] frames = entry.getStackTraceElements();
+        if (frames == null || frames.length == 0) {
+            return new Outgoing(entry, 0, null);
+        }
+        long callSiteId = StackTable.callSiteId(frames);
+        // Without a service connection the receiver may be a fresh process; always send frames
+        if (callSiteReceiver == null || sentCallSites.add(callSiteId)) {
+            return new Outgoing(entry, callSiteId, frames);
+        }
+        return new Outgoing(entry, callSiteId, null);
+    }
+
+    private static byte[] encode(List<Outgoing> outgoing) {
+        EntryCodec.Encoder encoder = new EntryCodec.Encoder();
+        for (Outgoing o : outgoing) {
+            encoder.add(o.entry, o.callSiteId, o.frames);
+        }
+        return encoder.toByteArray();
     }
 
     /**
-     * Helper to convert byte array to hex string
+     * Entry ready for encoding, with its interning decision already made
      */
-    public static String bytesToHex(byte[] bytes) {
-        if (bytes == null) return null;
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02X", b));
+    private static final class Outgoing {
+        final CallLogEntry entry;
+        final long callSiteId;
+        final StackTraceElement[] frames;
+
+        Outgoing(CallLogEntry entry, long callSiteId, StackTraceElement[] frames) {
+            this.entry = entry;
+            this.callSiteId = callSiteId;
+            this.frames = frames;
         }
-        return sb.toString();
     }
 }
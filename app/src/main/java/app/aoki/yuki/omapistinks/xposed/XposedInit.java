@@ -4,111 +4,226 @@ import android.content.Context;
 
 import de.robv.android.xposed.IXposedHookLoadPackage;
 import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
 
+import app.aoki.yuki.omapistinks.BuildConfig;
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
 import app.aoki.yuki.omapistinks.core.Constants;
+import app.aoki.yuki.omapistinks.core.Timestamps;
 import app.aoki.yuki.omapistinks.xposed.hooks.ChannelTransmitHook;
 import app.aoki.yuki.omapistinks.xposed.hooks.SessionOpenChannelHook;
 import app.aoki.yuki.omapistinks.xposed.hooks.TerminalTransmitHook;
 
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Xposed Module entry point for hooking OMAPI calls
  * Hooks are organized by functionality in separate classes
+ *
+ * handleLoadPackage runs in every process on the device, so it does as little as possible:
+ * client OMAPI (Channel/Session) hooks are only installed when the app constructs its first
+ * SEService, which every OMAPI client must do before it can open a session. Apps that never
+ * use OMAPI pay for one class lookup and one constructor hook, send nothing, and get no
+ * Application.attach hook; the context comes from the SEService constructor (or from
+ * ActivityThread when the broadcaster first needs it).
+ *
+ * The legacy org.simalliance API is found the same way, without probing every process:
+ * a device copy is a shared library listed in ApplicationInfo, and a copy bundled in the
+ * APK can only work on top of android.se.omapi (there is no legacy service to talk to), so
+ * it is looked up when the first android.se.omapi SEService is constructed.
  */
 public class XposedInit implements IXposedHookLoadPackage {
 
-    private Context appContext;
+    private static final String TAG = "OmapiStinks";
+
+    private static final String OMAPI_PACKAGE = "android.se.omapi";
+    private static final String LEGACY_OMAPI_PACKAGE = "org.simalliance.openmobileapi";
+
+    private volatile Context appContext;
+    // Legacy hooks installed or deferred; at most once per process
+    private final AtomicBoolean legacyHooked = new AtomicBoolean();
     private LogBroadcaster broadcaster;
+    // Time spent in handleLoadPackage, reported once hooks are installed
+    private long startupOverheadNanos;
 
     @Override
     public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
-        // Hook Application.attach to get context for broadcasting
-        hookApplicationContext(lpparam);
-        
+        long start = System.nanoTime();
+
         // Provide a ContextProvider that resolves context lazily
         // This allows the broadcaster to work even when context is initially null
         ContextProvider provider = new ContextProvider() {
             @Override
             public Context getContext() {
-                // Return the hooked context (may be null initially, but will be set later)
-                return appContext;
+                Context ctx = appContext;
+                if (ctx == null) {
+                    ctx = currentApplication();
+                    appContext = ctx;
+                }
+                return ctx;
             }
         };
-        
+
         // Initialize broadcaster with provider (will resolve context lazily)
         broadcaster = new LogBroadcaster(provider, lpparam.packageName);
-        
+        CaptureRulesClient.setDumpHandler(broadcaster::dumpFlightRecorder);
+
         // Hook system SecureElement service
         if (lpparam.packageName.equals("com.android.se")) {
             hookSystemService(lpparam);
         }
-        
-        // Hook client-side OMAPI for ALL packages (no whitelist)
-        // This allows hooking any app that uses OMAPI
-        hookClientOmapi(lpparam);
+
+        // Client-side OMAPI for ALL packages (no whitelist), installed on first use
+        deferClientHooks(lpparam, OMAPI_PACKAGE);
+        deferLegacyClientHooks(lpparam);
+
+        startupOverheadNanos = System.nanoTime() - start;
+        if (BuildConfig.DEBUG) {
+            XposedBridge.log(TAG + ": [" + lpparam.packageName + "] load overhead "
+                    + Timestamps.formatDuration(startupOverheadNanos / 1000));
+        }
+    }
+
+    /**
+     * Application of this process via ActivityThread; called lazily from the flusher thread
+     */
+    private static Context currentApplication() {
+        try {
+            return (Context) Class.forName("android.app.ActivityThread")
+                    .getMethod("currentApplication").invoke(null);
+        } catch (Throwable t) {
+            return null;
+        }
     }
-    
-    private void hookApplicationContext(LoadPackageParam lpparam) {
+
+    /**
+     * Hook the SEService constructors of an OMAPI package; the first construction installs
+     * the Channel/Session hooks and removes the constructor hooks again
+     */
+    private void deferClientHooks(LoadPackageParam lpparam, String packagePrefix) {
+        Class<?> seService = XposedHelpers.findClassIfExists(packagePrefix + ".SEService", lpparam.classLoader);
+        if (seService == null) {
+            return;
+        }
         try {
-            XposedHelpers.findAndHookMethod("android.app.Application", lpparam.classLoader,
-                    "attach", Context.class, new XC_MethodHook() {
-                @Override
-                protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    try {
-                        appContext = (Context) param.args[0];
-                        // No need to recreate broadcaster; provider reads appContext lazily
-                        
-                        // Log the hook notification (broadcaster will use the updated appContext)
-                        if (broadcaster != null) {
-                            CallLogEntry hookEntry = CallLogEntry.createHookEntry(
-                                lpparam.packageName,
-                                "Application.attach",
-                                "OMAPI hooks installed for package: " + lpparam.packageName
-                            );
-                            broadcaster.logMessage(hookEntry);
-                        }
-                    } catch (Throwable t) {
-                        // Log error if something went wrong in the hook
-                        if (broadcaster != null) {
-                            CallLogEntry errorEntry = CallLogEntry.createErrorEntry(
-                                lpparam.packageName,
-                                "Application.attach",
-                                Constants.TYPE_OTHER,
-                                "Error in attach hook: " + t.getMessage()
-                            );
-                            broadcaster.logMessage(errorEntry);
-                        }
-                    }
-                }
-            });
+            LazyInstaller installer = new LazyInstaller(lpparam, packagePrefix);
+            installer.unhooks = XposedBridge.hookAllConstructors(seService, installer);
         } catch (Throwable t) {
-            // Context hook failed, broadcaster will work without context (Xposed log only)
+            // Constructors could not be hooked; fall back to installing now
+            hookOmapiPackage(lpparam, packagePrefix);
+        }
+    }
+
+    /**
+     * Defer the legacy hooks if the device ships the legacy API as a shared library of this
+     * app; visible in ApplicationInfo at no cost. A bundled copy is left to hookBundledLegacy.
+     */
+    private void deferLegacyClientHooks(LoadPackageParam lpparam) {
+        String[] libraries = lpparam.appInfo != null ? lpparam.appInfo.sharedLibraryFiles : null;
+        if (libraries == null) {
+            return;
         }
+        for (String library : libraries) {
+            if (library != null && library.contains(LEGACY_OMAPI_PACKAGE)
+                    && legacyHooked.compareAndSet(false, true)) {
+                deferClientHooks(lpparam, LEGACY_OMAPI_PACKAGE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Install the legacy hooks now if the APK bundles the legacy API; called once the app
+     * uses android.se.omapi. The bundled SEService may be the one being constructed, so the
+     * hooks go in directly instead of waiting for its constructor.
+     */
+    private void hookBundledLegacy(LoadPackageParam lpparam) {
+        if (legacyHooked.get()
+                || XposedHelpers.findClassIfExists(LEGACY_OMAPI_PACKAGE + ".SEService", lpparam.classLoader) == null
+                || !legacyHooked.compareAndSet(false, true)) {
+            return;
+        }
+        hookOmapiPackage(lpparam, LEGACY_OMAPI_PACKAGE);
     }
-    
-    private void hookClientOmapi(LoadPackageParam lpparam) {
-        // Hook modern android.se.omapi package (Android 9+)
-        hookOmapiPackage(lpparam, "android.se.omapi");
-        
-        // Hook legacy org.simalliance.openmobileapi package
-        hookOmapiPackage(lpparam, "org.simalliance.openmobileapi");
+
+    /**
+     * One-shot installer run in the SEService constructor, before the service is bound
+     */
+    private final class LazyInstaller extends XC_MethodHook {
+        private final LoadPackageParam lpparam;
+        private final String packagePrefix;
+        private final AtomicBoolean installed = new AtomicBoolean();
+        volatile Set<XC_MethodHook.Unhook> unhooks;
+
+        LazyInstaller(LoadPackageParam lpparam, String packagePrefix) {
+            this.lpparam = lpparam;
+            this.packagePrefix = packagePrefix;
+        }
+
+        @Override
+        protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+            if (!installed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                long start = System.nanoTime();
+                // SEService(Context, ...) in both APIs
+                if (appContext == null && param.args.length > 0 && param.args[0] instanceof Context) {
+                    Context ctx = (Context) param.args[0];
+                    appContext = ctx.getApplicationContext() != null ? ctx.getApplicationContext() : ctx;
+                }
+                hookOmapiPackage(lpparam, packagePrefix);
+                if (packagePrefix.equals(OMAPI_PACKAGE)) {
+                    hookBundledLegacy(lpparam);
+                }
+                long installNanos = System.nanoTime() - start;
+
+                // Fetch capture rules in the background and follow later changes
+                CaptureRulesClient.start(appContext);
+
+                CallLogEntry hookEntry = CallLogEntry.createHookEntry(
+                    lpparam.packageName,
+                    packagePrefix + ".SEService.<init>",
+                    "OMAPI hooks installed for package: " + lpparam.packageName
+                        + " (install " + Timestamps.formatDuration(installNanos / 1000)
+                        + ", load overhead " + Timestamps.formatDuration(startupOverheadNanos / 1000) + ")"
+                );
+                broadcaster.logMessage(hookEntry);
+            } catch (Throwable t) {
+                CallLogEntry errorEntry = CallLogEntry.createErrorEntry(
+                    lpparam.packageName,
+                    packagePrefix + ".SEService.<init>",
+                    Constants.TYPE_OTHER,
+                    "Error installing OMAPI hooks: " + t.getMessage()
+                );
+                broadcaster.logMessage(errorEntry);
+            } finally {
+                Set<XC_MethodHook.Unhook> hooks = unhooks;
+                if (hooks != null) {
+                    for (XC_MethodHook.Unhook unhook : hooks) {
+                        unhook.unhook();
+                    }
+                }
+            }
+        }
     }
-    
+
     private void hookOmapiPackage(LoadPackageParam lpparam, String packagePrefix) {
         // Hook Channel.transmit - captures APDU command and response
         ChannelTransmitHook.hook(lpparam, packagePrefix + ".Channel", broadcaster);
         // Hook Channel.close - drop Channel->AID mapping on close
         ChannelTransmitHook.hookClose(lpparam, packagePrefix + ".Channel", broadcaster);
-        
+
         // Hook Session.openBasicChannel - captures AID and select response
         SessionOpenChannelHook.hookBasicChannel(lpparam, packagePrefix + ".Session", broadcaster);
-        
+
         // Hook Session.openLogicalChannel - captures AID and select response
         SessionOpenChannelHook.hookLogicalChannel(lpparam, packagePrefix + ".Session", broadcaster);
     }
-    
+
     private void hookSystemService(LoadPackageParam lpparam) {
         // Hook com.android.se.Terminal.transmit() - system-wide APDU monitoring
         TerminalTransmitHook.hook(lpparam, broadcaster);
@@ -0,0 +1,51 @@
+package app.aoki.yuki.omapistinks.xposed.hooks;
+
+import de.robv.android.xposed.XC_MethodHook.MethodHookParam;
+
+/**
+ * Per-invocation hook state stored on the MethodHookParam
+ * A single XC_MethodHook instance serves every concurrent call, so nothing
+ * call-specific may live in its fields
+ */
+final class CallState {
+
+    private static final String KEY_START_NANOS = "omapistinks.startNanos";
+    private static final String KEY_COMMAND = "omapistinks.command";
+
+    private CallState() {
+    }
+
+    /**
+     * Record the start of this invocation (call from beforeHookedMethod)
+     */
+    static void start(MethodHookParam param) {
+        param.setObjectExtra(KEY_START_NANOS, System.nanoTime());
+    }
+
+    /**
+     * Whether start() ran for this invocation, i.e. the capture rules selected it
+     */
+    static boolean isStarted(MethodHookParam param) {
+        return param.getObjectExtra(KEY_START_NANOS) != null;
+    }
+
+    /**
+     * Microseconds since start() for this invocation, or 0 if it was not recorded
+     */
+    static long elapsedMicros(MethodHookParam param) {
+        Object start = param.getObjectExtra(KEY_START_NANOS);
+        if (!(start instanceof Long)) {
+            return 0;
+        }
+        return (System.nanoTime() - (Long) start) / 1000;
+    }
+
+    static void setCommand(MethodHookParam param, byte[] command) {
+        param.setObjectExtra(KEY_COMMAND, command);
+    }
+
+    static byte[] getCommand(MethodHookParam param) {
+        Object command = param.getObjectExtra(KEY_COMMAND);
+        return command instanceof byte[] ? (byte[]) command : null;
+    }
+}
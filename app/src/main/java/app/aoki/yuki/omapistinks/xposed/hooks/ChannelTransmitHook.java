@@ -5,6 +5,7 @@ import de.robv.android.xposed.XposedHelpers;
 import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
 
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.CaptureRules;
 import app.aoki.yuki.omapistinks.core.Constants;
 import app.aoki.yuki.omapistinks.xposed.LogBroadcaster;
 import app.aoki.yuki.omapistinks.xposed.hooks.SessionOpenChannelHook;
@@ -18,35 +19,48 @@ public class ChannelTransmitHook {
         try {
             Class<?> clazz = XposedHelpers.findClass(className, lpparam.classLoader);
             XposedHelpers.findAndHookMethod(clazz, "transmit", byte[].class, new XC_MethodHook() {
-                private String commandHex;
-                private long startTime;
-                
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    byte[] command = (byte[]) param.args[0];
-                    commandHex = LogBroadcaster.bytesToHex(command);
-                    startTime = System.currentTimeMillis();
+                    // Filter before copying anything; skipped calls leave no CallState
+                    CaptureRules rules = CaptureRules.current();
+                    byte[] arg = (byte[]) param.args[0];
+                    if (!rules.capturesPackage(lpparam.packageName) || !rules.capturesCommand(arg)
+                            || !rules.capturesAid(SessionOpenChannelHook.getAidForChannel(param.thisObject))) {
+                        return;
+                    }
+                    // Copy: the caller may reuse its buffer after transmit returns
+                    CallState.setCommand(param, rules.copyCommand(arg));
+                    CallState.start(param);
                 }
                 
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                    if (!CallState.isStarted(param)) {
+                        return;
+                    }
                     try {
-                        long executionTime = System.currentTimeMillis() - startTime;
-                        byte[] response = (byte[]) param.getResult();
-                        String responseHex = response != null ? LogBroadcaster.bytesToHex(response) : null;
+                        long executionTimeUs = CallState.elapsedMicros(param);
+                        CaptureRules rules = CaptureRules.current();
+                        byte[] result = (byte[]) param.getResult();
+                        if (!rules.capturesResult(result, param.hasThrowable() || result == null)) {
+                            return;
+                        }
+                        byte[] command = CallState.getCommand(param);
+                        byte[] response = rules.copyResponse(result);
 
                         // Resolve Channel instance and associated AID (if any)
                         Object channel = param.thisObject;
-                        String aidHex = SessionOpenChannelHook.getAidForChannel(channel);
+                        byte[] aid = SessionOpenChannelHook.getAidForChannel(channel);
                         
                         // Create structured log entry using factory method (includes AID when available)
                         CallLogEntry entry = CallLogEntry.createTransmitEntry(
                             lpparam.packageName,
                             "Channel.transmit",
-                            commandHex,
-                            responseHex,
-                            aidHex,
-                            executionTime
+                            command,
+                            response,
+                            aid,
+                            executionTimeUs,
+                            param.getThrowable()
                         );
                         
                         broadcaster.logMessage(entry);
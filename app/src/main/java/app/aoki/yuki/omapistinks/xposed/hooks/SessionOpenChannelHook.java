@@ -5,6 +5,7 @@ import de.robv.android.xposed.XposedHelpers;
 import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
 
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.CaptureRules;
 import app.aoki.yuki.omapistinks.core.Constants;
 import app.aoki.yuki.omapistinks.xposed.LogBroadcaster;
 
@@ -13,16 +14,18 @@ import app.aoki.yuki.omapistinks.xposed.LogBroadcaster;
  */
 public class SessionOpenChannelHook {
     
-    // Map Channel instance to associated AID (hex). Use WeakHashMap to avoid leaks across GC.
-    private static final java.util.Map<Object, String> CHANNEL_AID_MAP = new java.util.WeakHashMap<>();
+    // Map Channel instance to associated AID bytes. Use WeakHashMap to avoid leaks across GC.
+    // Synchronized: channels are opened and used from many threads concurrently.
+    private static final java.util.Map<Object, byte[]> CHANNEL_AID_MAP =
+            java.util.Collections.synchronizedMap(new java.util.WeakHashMap<>());
     
-    public static void setAidForChannel(Object channel, String aidHex) {
-        if (channel != null && aidHex != null && !aidHex.isEmpty()) {
-            CHANNEL_AID_MAP.put(channel, aidHex);
+    public static void setAidForChannel(Object channel, byte[] aid) {
+        if (channel != null && aid != null && aid.length > 0) {
+            CHANNEL_AID_MAP.put(channel, aid);
         }
     }
     
-    public static String getAidForChannel(Object channel) {
+    public static byte[] getAidForChannel(Object channel) {
         return channel != null ? CHANNEL_AID_MAP.get(channel) : null;
     }
     
@@ -46,33 +49,45 @@ public class SessionOpenChannelHook {
             
             // Hook version with byte[] aid
             XposedHelpers.findAndHookMethod(clazz, methodName, byte[].class, new XC_MethodHook() {
-                private long startTime;
-                
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    startTime = System.currentTimeMillis();
+                    // Nothing from a filtered-out package is logged, so skip the AID mapping too
+                    if (CaptureRules.current().capturesPackage(lpparam.packageName)) {
+                        CallState.start(param);
+                    }
                 }
                 
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                    if (!CallState.isStarted(param)) {
+                        return;
+                    }
                     try {
-                        long executionTime = System.currentTimeMillis() - startTime;
-                        byte[] aid = (byte[]) param.args[0];
-                        String aidHex = LogBroadcaster.bytesToHex(aid);
+                        long executionTimeUs = CallState.elapsedMicros(param);
+                        byte[] arg = (byte[]) param.args[0];
+                        byte[] aid = arg != null ? arg.clone() : null;
                         Object channel = param.getResult();
                         
-                        // Map AID to Channel for future transmit lookups
-                        setAidForChannel(channel, aidHex);
+                        // Map AID to Channel for future transmit lookups (even if this call is not logged)
+                        setAidForChannel(channel, aid);
+                        
+                        CaptureRules rules = CaptureRules.current();
+                        if (!rules.capturesAid(aid)) {
+                            return;
+                        }
                         
                         // Get select response from channel
-                        String selectResponse = extractSelectResponse(channel);
+                        byte[] selectResponse = extractSelectResponse(channel, rules);
+                        if (!rules.capturesResult(selectResponse, channel == null || param.hasThrowable())) {
+                            return;
+                        }
                         
                         CallLogEntry entry = CallLogEntry.createOpenChannelEntry(
                             lpparam.packageName,
                             "Session." + methodName,
-                            aidHex,
+                            aid,
                             selectResponse,
-                            executionTime
+                            executionTimeUs
                         );
                         
                         broadcaster.logMessage(entry);
@@ -91,34 +106,46 @@ public class SessionOpenChannelHook {
             
             // Hook version with byte[] aid and byte P2
             XposedHelpers.findAndHookMethod(clazz, methodName, byte[].class, byte.class, new XC_MethodHook() {
-                private long startTime;
-                
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    startTime = System.currentTimeMillis();
+                    // Nothing from a filtered-out package is logged, so skip the AID mapping too
+                    if (CaptureRules.current().capturesPackage(lpparam.packageName)) {
+                        CallState.start(param);
+                    }
                 }
                 
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                    if (!CallState.isStarted(param)) {
+                        return;
+                    }
                     try {
-                        long executionTime = System.currentTimeMillis() - startTime;
-                        byte[] aid = (byte[]) param.args[0];
+                        long executionTimeUs = CallState.elapsedMicros(param);
+                        byte[] arg = (byte[]) param.args[0];
+                        byte[] aid = arg != null ? arg.clone() : null;
                         byte p2 = (byte) param.args[1];
-                        String aidHex = LogBroadcaster.bytesToHex(aid);
                         Object channel = param.getResult();
                         
-                        // Map AID to Channel for future transmit lookups
-                        setAidForChannel(channel, aidHex);
+                        // Map AID to Channel for future transmit lookups (even if this call is not logged)
+                        setAidForChannel(channel, aid);
+                        
+                        CaptureRules rules = CaptureRules.current();
+                        if (!rules.capturesAid(aid)) {
+                            return;
+                        }
                         
                         // Get select response from channel
-                        String selectResponse = extractSelectResponse(channel);
+                        byte[] selectResponse = extractSelectResponse(channel, rules);
+                        if (!rules.capturesResult(selectResponse, channel == null || param.hasThrowable())) {
+                            return;
+                        }
                         
                         CallLogEntry entry = CallLogEntry.createOpenChannelEntry(
                             lpparam.packageName,
                             "Session." + methodName + "(P2=0x" + String.format("%02X", p2) + ")",
-                            aidHex,
+                            aid,
                             selectResponse,
-                            executionTime
+                            executionTimeUs
                         );
                         
                         broadcaster.logMessage(entry);
@@ -139,7 +166,7 @@ public class SessionOpenChannelHook {
         }
     }
     
-    private static String extractSelectResponse(Object channel) {
+    private static byte[] extractSelectResponse(Object channel, CaptureRules rules) {
         if (channel == null) {
             return null;
         }
@@ -147,7 +174,7 @@ public class SessionOpenChannelHook {
         try {
             byte[] selectResp = (byte[]) XposedHelpers.callMethod(channel, "getSelectResponse");
             if (selectResp != null) {
-                return LogBroadcaster.bytesToHex(selectResp);
+                return rules.copyResponse(selectResp);
             }
         } catch (Throwable t) {
             // getSelectResponse might not be available
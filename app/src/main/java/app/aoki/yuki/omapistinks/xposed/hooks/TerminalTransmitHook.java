@@ -5,6 +5,7 @@ import de.robv.android.xposed.XposedHelpers;
 import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
 
 import app.aoki.yuki.omapistinks.core.CallLogEntry;
+import app.aoki.yuki.omapistinks.core.CaptureRules;
 import app.aoki.yuki.omapistinks.core.Constants;
 import app.aoki.yuki.omapistinks.xposed.LogBroadcaster;
 
@@ -17,30 +18,44 @@ public class TerminalTransmitHook {
         try {
             Class<?> terminalClass = XposedHelpers.findClass("com.android.se.Terminal", lpparam.classLoader);
             XposedHelpers.findAndHookMethod(terminalClass, "transmit", byte[].class, new XC_MethodHook() {
-                private String commandHex;
-                private long startTime;
-                
                 @Override
                 protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    byte[] command = (byte[]) param.args[0];
-                    commandHex = LogBroadcaster.bytesToHex(command);
-                    startTime = System.currentTimeMillis();
+                    // Filter before copying anything; the AID is not known at this level
+                    CaptureRules rules = CaptureRules.current();
+                    byte[] arg = (byte[]) param.args[0];
+                    if (!rules.capturesPackage(lpparam.packageName) || !rules.capturesCommand(arg)
+                            || !rules.capturesAid(null)) {
+                        return;
+                    }
+                    // Copy: the caller may reuse its buffer after transmit returns
+                    CallState.setCommand(param, rules.copyCommand(arg));
+                    CallState.start(param);
                 }
                 
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                    if (!CallState.isStarted(param)) {
+                        return;
+                    }
                     try {
-                        long executionTime = System.currentTimeMillis() - startTime;
-                        byte[] response = (byte[]) param.getResult();
-                        String responseHex = response != null ? LogBroadcaster.bytesToHex(response) : null;
+                        long executionTimeUs = CallState.elapsedMicros(param);
+                        CaptureRules rules = CaptureRules.current();
+                        byte[] result = (byte[]) param.getResult();
+                        if (!rules.capturesResult(result, param.hasThrowable() || result == null)) {
+                            return;
+                        }
+                        byte[] command = CallState.getCommand(param);
+                        byte[] response = rules.copyResponse(result);
                         
                         // Create structured log entry using factory method
                         CallLogEntry entry = CallLogEntry.createTransmitEntry(
                             lpparam.packageName,
                             "[SYSTEM] Terminal.transmit",
-                            commandHex,
-                            responseHex,
-                            executionTime
+                            command,
+                            response,
+                            null,
+                            executionTimeUs,
+                            param.getThrowable()
                         );
                         
                         broadcaster.logMessage(entry);
@@ -0,0 +1,86 @@
+package app.aoki.yuki.omapistinks.core;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encode/decode round-trip throughput of EntryCodec on a batch shaped like real traffic
+ *
+ * Prints ns per entry and payload bytes per entry. Skipped in the default test run; run it
+ * with ./gradlew :app:testDebugUnitTest -Pbenchmark --tests '*EntryCodecBenchmark' and read
+ * the test output. Correctness is covered by EntryCodecTest.
+ */
+public class EntryCodecBenchmark {
+
+    private static final int BATCH = 512;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 1000;
+
+    private static List<CallLogEntry> batch() {
+        StackTraceElement[] frames = {
+                new StackTraceElement("android.se.omapi.Channel", "transmit", "Channel.java", 120),
+                new StackTraceElement("com.example.wallet.Applet", "exchange", "Applet.java", 88),
+        };
+        List<CallLogEntry> entries = new ArrayList<>(BATCH);
+        long timestamp = 1_700_000_000_000_000_000L;
+        for (int i = 0; i < BATCH; i++) {
+            timestamp += 250_000 + (i % 7) * 1_000;
+            entries.add(EntryCodecTest.entry(timestamp)
+                    .apduCommand(new byte[]{(byte) 0x80, (byte) 0xCA, 0x00, (byte) i, 0x00})
+                    .apduResponse(new byte[]{0x01, 0x02, 0x03, 0x04, (byte) 0x90, 0x00})
+                    .aid(new byte[]{(byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x10, 0x10})
+                    .stackTraceElements(frames)
+                    .sourceSequence(i + 1)
+                    .build());
+        }
+        return entries;
+    }
+
+    private static byte[] encode(List<CallLogEntry> entries, long callSiteId, StackTraceElement[] frames) {
+        EntryCodec.Encoder encoder = new EntryCodec.Encoder();
+        for (int i = 0; i < entries.size(); i++) {
+            // As LogBroadcaster does: frames with the first use of a call site, then only the ID
+            encoder.add(entries.get(i), callSiteId, i == 0 ? frames : null);
+        }
+        return encoder.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() {
+        Assume.assumeTrue("Benchmark; run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        List<CallLogEntry> entries = batch();
+        StackTraceElement[] frames = entries.get(0).getStackTraceElements();
+        long callSiteId = StackTable.callSiteId(frames);
+        StackTable stacks = StackTable.getInstance();
+
+        int decoded = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decoded += EntryCodec.decode(encode(entries, callSiteId, frames), stacks).size();
+        }
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        int payloadBytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            byte[] payload = encode(entries, callSiteId, frames);
+            long encoded = System.nanoTime();
+            decoded += EntryCodec.decode(payload, stacks).size();
+            decodeNanos += System.nanoTime() - encoded;
+            encodeNanos += encoded - start;
+            payloadBytes = payload.length;
+        }
+        assertEquals((WARMUP_ROUNDS + ROUNDS) * BATCH, decoded);
+
+        long total = (long) ROUNDS * BATCH;
+        System.out.println(String.format(Locale.ROOT,
+                "EntryCodec: encode %d ns/entry, decode %d ns/entry, %.1f bytes/entry (%d entries per batch)",
+                encodeNanos / total, decodeNanos / total, payloadBytes / (double) BATCH, BATCH));
+    }
+}
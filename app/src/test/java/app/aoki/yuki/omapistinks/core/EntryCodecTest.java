@@ -0,0 +1,248 @@
+package app.aoki.yuki.omapistinks.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips and malformed payloads for EntryCodec
+ */
+public class EntryCodecTest {
+
+    private static final StackTraceElement[] FRAMES = {
+            new StackTraceElement("com.example.Wallet", "pay", "Wallet.java", 42),
+            new StackTraceElement("com.example.Wallet", "lambda$pay$0", null, -2),
+    };
+
+    static CallLogEntry.Builder entry(long timestampNanos) {
+        return new CallLogEntry.Builder()
+                .timestampNanos(timestampNanos)
+                .elapsedRealtimeNanos(timestampNanos / 7)
+                .packageName("com.example.wallet")
+                .functionName("Channel.transmit")
+                .type(Constants.TYPE_TRANSMIT)
+                .threadName("main")
+                .threadId(2)
+                .processId(4321)
+                .executionTimeUs(1500);
+    }
+
+    private static List<CallLogEntry> roundTrip(EntryCodec.Encoder encoder) {
+        return EntryCodec.decode(encoder.toByteArray(), StackTable.getInstance());
+    }
+
+    private static void assertSameEntry(CallLogEntry expected, CallLogEntry actual) {
+        assertEquals(expected.getTimestampNanos(), actual.getTimestampNanos());
+        assertEquals(expected.getElapsedRealtimeNanos(), actual.getElapsedRealtimeNanos());
+        assertEquals(expected.getPackageName(), actual.getPackageName());
+        assertEquals(expected.getFunctionName(), actual.getFunctionName());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getThreadName(), actual.getThreadName());
+        assertEquals(expected.getDetails(), actual.getDetails());
+        assertEquals(expected.getError(), actual.getError());
+        assertEquals(expected.getThreadId(), actual.getThreadId());
+        assertEquals(expected.getProcessId(), actual.getProcessId());
+        assertEquals(expected.getExecutionTimeUs(), actual.getExecutionTimeUs());
+        assertArrayEquals(expected.getAidBytes(), actual.getAidBytes());
+        assertArrayEquals(expected.getSelectResponseBytes(), actual.getSelectResponseBytes());
+        assertArrayEquals(expected.getApduCommandBytes(), actual.getApduCommandBytes());
+        assertArrayEquals(expected.getApduResponseBytes(), actual.getApduResponseBytes());
+        assertEquals(expected.getSourceSequence(), actual.getSourceSequence());
+        assertEquals(expected.getSourceToken(), actual.getSourceToken());
+    }
+
+    @Test
+    public void roundTripKeepsEveryField() {
+        CallLogEntry transmit = entry(1_700_000_000_000_000_000L)
+                .apduCommand(new byte[]{0x00, (byte) 0xA4, 0x04, 0x00, 0x02, 0x3F, 0x00})
+                .apduResponse(new byte[]{(byte) 0x90, 0x00})
+                .aid(new byte[]{(byte) 0xA0, 0x00, 0x00, 0x01, 0x51})
+                .details("select \u00e9l\u00e9ment")
+                .error("SW 6A82")
+                .sourceSequence(17)
+                .build();
+        CallLogEntry open = entry(1_700_000_000_000_500_000L)
+                .functionName("Session.openLogicalChannel")
+                .type(Constants.TYPE_OPEN_CHANNEL)
+                .aid(new byte[0])
+                .selectResponse(new byte[]{0x6F, 0x00, (byte) 0x90, 0x00})
+                .build();
+
+        List<CallLogEntry> decoded = roundTrip(new EntryCodec.Encoder()
+                .add(transmit, 0, null)
+                .add(open, 0, null));
+
+        assertEquals(2, decoded.size());
+        assertSameEntry(transmit, decoded.get(0));
+        assertSameEntry(open, decoded.get(1));
+        assertEquals(0, decoded.get(1).getAidBytes().length);
+    }
+
+    @Test
+    public void roundTripKeepsNullStringsAndFields() {
+        CallLogEntry sparse = new CallLogEntry.Builder()
+                .timestampNanos(5)
+                .elapsedRealtimeNanos(5)
+                .packageName(null)
+                .functionName(null)
+                .type(null)
+                .threadName(null)
+                .threadId(0)
+                .processId(0)
+                .build();
+
+        List<CallLogEntry> decoded = roundTrip(new EntryCodec.Encoder().add(sparse, 0, null));
+
+        CallLogEntry actual = decoded.get(0);
+        assertSameEntry(sparse, actual);
+        assertNull(actual.getPackageName());
+        assertNull(actual.getThreadName());
+        assertNull(actual.getAidBytes());
+        assertNull(actual.getApduInfo());
+        assertFalse(actual.hasStackTrace());
+    }
+
+    @Test
+    public void repeatedStringsAreWrittenOnce() {
+        EntryCodec.Encoder encoder = new EntryCodec.Encoder();
+        for (int i = 0; i < 10; i++) {
+            encoder.add(entry(1_000_000L * i).build(), 0, null);
+        }
+        byte[] payload = encoder.toByteArray();
+
+        String text = new String(payload, StandardCharsets.ISO_8859_1);
+        assertEquals(text.indexOf("com.example.wallet"), text.lastIndexOf("com.example.wallet"));
+        List<CallLogEntry> decoded = EntryCodec.decode(payload, StackTable.getInstance());
+        assertEquals(10, decoded.size());
+        for (CallLogEntry e : decoded) {
+            assertEquals("com.example.wallet", e.getPackageName());
+            assertEquals("main", e.getThreadName());
+        }
+    }
+
+    @Test
+    public void roundTripKeepsNegativeDeltas() {
+        CallLogEntry later = entry(2_000_000_000L)
+                .threadId(-1)
+                .executionTimeUs(-3)
+                .sourceSequence(900)
+                .build();
+        CallLogEntry earlier = entry(1_000_000_000L)
+                .elapsedRealtimeNanos(-50)
+                .sourceSequence(12)
+                .build();
+        CallLogEntry unsequenced = entry(1_500_000_000L).build();
+
+        List<CallLogEntry> decoded = roundTrip(new EntryCodec.Encoder()
+                .add(later, 0, null)
+                .add(earlier, 0, null)
+                .add(unsequenced, 0, null));
+
+        assertSameEntry(later, decoded.get(0));
+        assertSameEntry(earlier, decoded.get(1));
+        assertSameEntry(unsequenced, decoded.get(2));
+        assertEquals(0, decoded.get(2).getSourceSequence());
+    }
+
+    @Test
+    public void roundTripKeepsSourceTokens() {
+        CallLogEntry first = entry(10).sourceToken(0x7fff_0000_0001L).sourceSequence(1).build();
+        CallLogEntry same = entry(20).sourceToken(0x7fff_0000_0001L).sourceSequence(2).build();
+        CallLogEntry other = entry(30).sourceToken(-5).sourceSequence(1).build();
+
+        List<CallLogEntry> decoded = roundTrip(new EntryCodec.Encoder()
+                .add(first, 0, null)
+                .add(same, 0, null)
+                .add(other, 0, null));
+
+        assertSameEntry(first, decoded.get(0));
+        assertSameEntry(same, decoded.get(1));
+        assertSameEntry(other, decoded.get(2));
+    }
+
+    @Test
+    public void roundTripKeepsFrames() {
+        long callSiteId = StackTable.callSiteId(FRAMES);
+        CallLogEntry interned = entry(10).build();
+        CallLogEntry idOnly = entry(20).build();
+        CallLogEntry inline = entry(30).build();
+
+        List<CallLogEntry> decoded = roundTrip(new EntryCodec.Encoder()
+                .add(interned, callSiteId, FRAMES)
+                .add(idOnly, callSiteId, null)
+                .add(inline, 0, FRAMES));
+
+        assertEquals(callSiteId, decoded.get(0).getCallSiteId());
+        assertEquals(callSiteId, decoded.get(1).getCallSiteId());
+        assertArrayEquals(FRAMES, StackTable.getInstance().get(callSiteId));
+        assertArrayEquals(FRAMES, decoded.get(1).getStackTraceElements());
+        assertEquals(0, decoded.get(2).getCallSiteId());
+        assertArrayEquals(FRAMES, decoded.get(2).getStackTraceElements());
+    }
+
+    @Test
+    public void recognizesOnlyItsOwnPayloads() {
+        assertTrue(EntryCodec.isEncoded(new EntryCodec.Encoder().toByteArray()));
+        assertFalse(EntryCodec.isEncoded(null));
+        assertFalse(EntryCodec.isEncoded(new byte[]{'O', 'E'}));
+        assertFalse(EntryCodec.isEncoded("{\"pkg\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(EntryCodec.decode(new EntryCodec.Encoder().toByteArray(), StackTable.getInstance()).isEmpty());
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        byte[] payload = new EntryCodec.Encoder()
+                .add(entry(1).aid(new byte[]{1, 2, 3}).apduCommand(new byte[]{0, 1, 2, 3})
+                        .apduResponse(new byte[]{(byte) 0x90, 0}).sourceSequence(3).build(),
+                        StackTable.callSiteId(FRAMES), FRAMES)
+                .toByteArray();
+        for (int length = 0; length < payload.length; length++) {
+            assertRejected(Arrays.copyOf(payload, length));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedPayloads() {
+        // Unknown version
+        assertRejected(new byte[]{'O', 'E', (byte) (EntryCodec.VERSION + 1), 0});
+        // Entry count larger than the payload
+        assertRejected(new byte[]{'O', 'E', EntryCodec.VERSION, (byte) 0xFF, (byte) 0xFF, 0x7F});
+        // Varint running past 64 bits
+        byte[] longVarint = new byte[4 + 11];
+        longVarint[0] = 'O';
+        longVarint[1] = 'E';
+        longVarint[2] = EntryCodec.VERSION;
+        longVarint[3] = 1;
+        Arrays.fill(longVarint, 4, longVarint.length, (byte) 0xFF);
+        assertRejected(longVarint);
+        // String ref that is negative: a ten-byte varint with the sign bit set
+        byte[] negativeRef = new byte[7 + 10];
+        System.arraycopy(new byte[]{'O', 'E', EntryCodec.VERSION, 1, 0, 0, 0}, 0, negativeRef, 0, 7);
+        Arrays.fill(negativeRef, 7, negativeRef.length - 1, (byte) 0xFF);
+        negativeRef[negativeRef.length - 1] = 0x01;
+        assertRejected(negativeRef);
+        // String ref to a dictionary slot that was never defined
+        assertRejected(new byte[]{'O', 'E', EntryCodec.VERSION, 1, 0, 0, 0, 7});
+        // Byte field longer than the rest of the payload
+        assertRejected(new byte[]{'O', 'E', EntryCodec.VERSION, 1, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 20});
+    }
+
+    private static void assertRejected(byte[] payload) {
+        try {
+            EntryCodec.decode(payload, StackTable.getInstance());
+            fail("Accepted " + Arrays.toString(payload));
+        } catch (IllegalArgumentException expected) {
+            // Malformed input is reported, never decoded into garbage entries
+        }
+    }
+}
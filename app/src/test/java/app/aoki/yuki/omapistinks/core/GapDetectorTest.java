@@ -0,0 +1,108 @@
+package app.aoki.yuki.omapistinks.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Gap detection over reordered and lost deliveries
+ */
+public class GapDetectorTest {
+
+    private static final int PID = 1234;
+    private static final long TOKEN = 0x5eed;
+    // Later than SETTLE_MS after every delivery below
+    private static final long SETTLED = TimeUnit.SECONDS.toNanos(10);
+
+    private static CallLogEntry sent(int pid, long token, long seq) {
+        return new CallLogEntry.Builder()
+                .timestampNanos(seq)
+                .elapsedRealtimeNanos(seq)
+                .packageName("com.example.wallet")
+                .functionName("Channel.transmit")
+                .processId(pid)
+                .sourceToken(token)
+                .sourceSequence(seq)
+                .build();
+    }
+
+    private static List<CallLogEntry> deliver(GapDetector detector, CallLogEntry entry) {
+        List<CallLogEntry> out = detector.process(Collections.singletonList(entry), 0);
+        return out.subList(1, out.size());
+    }
+
+    private static List<CallLogEntry> deliverAll(GapDetector detector, int pid, long token, long... seqs) {
+        List<CallLogEntry> markers = new ArrayList<>();
+        for (long seq : seqs) {
+            markers.addAll(deliver(detector, sent(pid, token, seq)));
+        }
+        return markers;
+    }
+
+    @Test
+    public void lateFirstEntryIsNotANewProcess() {
+        GapDetector detector = new GapDetector();
+
+        List<CallLogEntry> markers = deliverAll(detector, PID, TOKEN, 2, 3, 1, 4, 5);
+        markers.addAll(detector.settle(SETTLED));
+
+        assertTrue("Unexpected " + markers, markers.isEmpty());
+    }
+
+    @Test
+    public void lateEntryClosesItsGap() {
+        GapDetector detector = new GapDetector();
+
+        List<CallLogEntry> markers = deliverAll(detector, PID, TOKEN, 1, 4, 2, 3);
+        markers.addAll(detector.settle(SETTLED));
+
+        assertTrue("Unexpected " + markers, markers.isEmpty());
+    }
+
+    @Test
+    public void missingEntriesAreReportedOnceSettled() {
+        GapDetector detector = new GapDetector();
+
+        List<CallLogEntry> markers = deliverAll(detector, PID, TOKEN, 1, 2, 5, 3);
+        assertTrue(markers.isEmpty());
+        markers = detector.settle(SETTLED);
+
+        assertEquals(1, markers.size());
+        assertEquals("1 entry lost", markers.get(0).getError());
+        assertEquals(PID, markers.get(0).getProcessId());
+        assertTrue(markers.get(0).getDetails().contains("sequence 3-4"));
+        assertTrue(detector.settle(SETTLED * 2).isEmpty());
+    }
+
+    @Test
+    public void reusedPidStartsANewStream() {
+        GapDetector detector = new GapDetector();
+
+        List<CallLogEntry> markers = deliverAll(detector, PID, TOKEN, 1, 2, 3);
+        // New process on the same PID, delivering out of order from the start
+        markers.addAll(deliverAll(detector, PID, TOKEN + 1, 2, 1, 3));
+        // The old process is still heard from afterwards
+        markers.addAll(deliverAll(detector, PID, TOKEN, 4));
+        markers.addAll(detector.settle(SETTLED));
+
+        assertTrue("Unexpected " + markers, markers.isEmpty());
+    }
+
+    @Test
+    public void unsequencedEntriesAreIgnored() {
+        GapDetector detector = new GapDetector();
+
+        List<CallLogEntry> markers = deliverAll(detector, PID, TOKEN, 1);
+        markers.addAll(deliverAll(detector, PID, 0, 0, 0));
+        markers.addAll(deliverAll(detector, PID, TOKEN, 2));
+        markers.addAll(detector.settle(SETTLED));
+
+        assertTrue("Unexpected " + markers, markers.isEmpty());
+    }
+}